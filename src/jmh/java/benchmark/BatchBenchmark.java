@@ -0,0 +1,117 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量上传、批量下载和分页列表
+ * <p>
+ * 测量一整批文件的平均耗时；小文件多时主要反映每个文件的协议开销，而不是带宽。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+    @Param({"10", "100", "1000"})
+    public int fileCount;
+
+    @Param({"1024", "65536"})
+    public long fileSize;
+
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    private Path localDir;
+    private String remoteDir;
+    private List<String[]> uploads;
+    private List<String[]> downloads;
+    private CloudDisk.Client client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CloudDisk.startServer("nio".equals(mode), 0);
+        localDir = Files.createTempDirectory("cloud-jmh");
+        remoteDir = CloudDisk.REMOTE_ROOT + "batch/";
+        uploads = new ArrayList<>(fileCount);
+        downloads = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            Path source = CloudDisk.createFile(localDir.resolve("source/" + i), fileSize, i);
+            uploads.add(new String[]{source.toString(), remoteDir + i});
+            downloads.add(new String[]{remoteDir + i, localDir.resolve("download/" + i).toString()});
+        }
+        client = new CloudDisk.Client();
+
+        client.batchUpload(uploads);
+        for (String[] upload : uploads) {
+            if (CloudDisk.remoteSize(upload[1]) != fileSize) {
+                throw new IllegalStateException("准备基准测试文件失败: " + upload[1]);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        CloudDisk.cleanUp(localDir);
+    }
+
+    /**
+     * 批量下载使用的连接数，只有 batchDownload 使用
+     */
+    @State(Scope.Benchmark)
+    public static class Connections {
+        @Param({"1", "4"})
+        public int connections;
+    }
+
+    @Benchmark
+    public void batchUpload() {
+        client.batchUpload(uploads);
+    }
+
+    @Benchmark
+    public void batchDownload(Connections connections) {
+        client.batchDownload(downloads, connections.connections);
+    }
+
+    /**
+     * 按每页 100 个文件读取整个目录
+     */
+    @Benchmark
+    public int listPaged() {
+        int count = client.listAll(remoteDir, 100);
+        if (count != fileCount) {
+            throw new IllegalStateException("列表文件数不一致: " + count + "/" + fileCount);
+        }
+        return count;
+    }
+
+    /**
+     * 原有的 LIST 命令，一次返回云盘中的全部文件
+     */
+    @Benchmark
+    public List<?> listAll() {
+        return client.getFileList();
+    }
+}
@@ -0,0 +1,336 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试与服务端、客户端之间的桥接
+ * <p>
+ * 服务端和客户端位于默认包，命名包中的基准测试不能直接引用，只能经方法句柄调用。句柄在类加载时解析一次，
+ * 调用开销可以忽略。客户端固定连接 8888 端口，每个 JVM 只启动一个进程内服务端；JMH 为每组参数单独 fork
+ * 一个 JVM，所以各组参数的服务端配置互不影响，使用 -f 0 调试时只有第一组配置生效。
+ * <p>
+ * 服务端和客户端的控制台输出默认丢弃，设置 -Dbenchmark.verbose=true 时保留。
+ */
+public final class CloudDisk {
+    /**
+     * 基准测试在云盘目录中使用的子目录，结束时删除
+     */
+    public static final String REMOTE_ROOT = "jmh/";
+    private static final Path CLOUD_DIR = Paths.get("src/main/java/cloud");
+    private static final int PORT = 8888;
+    private static final long START_TIMEOUT = 30_000;
+
+    private static final ReentrantLock START_LOCK = new ReentrantLock();
+    private static boolean started;
+
+    private static final MethodHandle NEW_CLIENT;
+    private static final MethodHandle UPLOAD;
+    private static final MethodHandle UPLOAD_MULTI_THREAD;
+    private static final MethodHandle UPLOAD_RANGED;
+    private static final MethodHandle DOWNLOAD;
+    private static final MethodHandle DOWNLOAD_MULTI_THREAD;
+    private static final MethodHandle BATCH_UPLOAD;
+    private static final MethodHandle BATCH_DOWNLOAD;
+    private static final MethodHandle LIST_FILES;
+    private static final MethodHandle PAGE_FILES;
+    private static final MethodHandle PAGE_NEXT_CURSOR;
+    private static final MethodHandle GET_FILE_LIST;
+    private static final MethodHandle SET_COMPRESSION;
+    private static final MethodHandle CLOSE;
+
+    static {
+        try {
+            Class<?> client = Class.forName("EasyCloudDiskClient");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            NEW_CLIENT = lookup.findConstructor(client, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            UPLOAD = method(lookup, client, "uploadFileSingleThread", void.class, String.class, String.class);
+            UPLOAD_MULTI_THREAD = method(lookup, client, "uploadFileMultiThread", void.class, String.class, String.class);
+            UPLOAD_RANGED = method(lookup, client, "uploadFileRanged", boolean.class, String.class, String.class, int.class);
+            DOWNLOAD = method(lookup, client, "downloadFile", void.class, String.class, String.class);
+            DOWNLOAD_MULTI_THREAD = method(lookup, client, "downloadFileMultiThread", void.class, String.class, String.class);
+            BATCH_UPLOAD = method(lookup, client, "batchUpload", void.class, List.class);
+            BATCH_DOWNLOAD = method(lookup, client, "batchDownload", void.class, List.class, int.class);
+            Class<?> page = Class.forName("EasyCloudDiskClient$FileListPage");
+            LIST_FILES = method(lookup, client, "listFiles", page, String.class, String.class, int.class);
+            PAGE_FILES = method(lookup, page, "getFiles", List.class);
+            PAGE_NEXT_CURSOR = method(lookup, page, "getNextCursor", String.class);
+            GET_FILE_LIST = method(lookup, client, "getFileList", List.class);
+            SET_COMPRESSION = method(lookup, client, "setCompressionEnabled", void.class, boolean.class);
+            CLOSE = method(lookup, client, "close", void.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private CloudDisk() {
+    }
+
+    // 查找实例方法，把接收者和引用类型的返回值擦除为 Object，调用处不需要引用默认包中的类
+    private static MethodHandle method(MethodHandles.Lookup lookup, Class<?> owner, String name, Class<?> returnType,
+                                       Class<?>... parameterTypes) throws ReflectiveOperationException {
+        MethodHandle handle = lookup.findVirtual(owner, name, MethodType.methodType(returnType, parameterTypes));
+        Class<?> erasedReturn = returnType.isPrimitive() ? returnType : Object.class;
+        return handle.asType(MethodType.methodType(erasedReturn, parameterTypes).insertParameterTypes(0, Object.class));
+    }
+
+    /**
+     * 启动进程内服务端并等待端口可以连接；同一个 JVM 中重复调用不会再次启动
+     *
+     * @param nio 是否以 NIO 模式启动
+     * @param chunkSize 服务端和客户端的读写分块大小，0 表示按文件大小选取
+     */
+    public static void startServer(boolean nio, int chunkSize) {
+        START_LOCK.lock();
+        try {
+            if (started) {
+                return;
+            }
+            if (!Boolean.getBoolean("benchmark.verbose")) {
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            }
+            System.setProperty("cloud.server.nio", String.valueOf(nio));
+            System.setProperty("cloud.server.chunkSize", String.valueOf(chunkSize));
+            System.setProperty("cloud.client.chunkSize", String.valueOf(chunkSize));
+            // 不读写仓库中的MD5索引文件
+            System.setProperty("cloud.server.digestIndex", "");
+
+            Object server = Class.forName("EasyCloudDiskServer").getConstructor().newInstance();
+            MethodHandle start = MethodHandles.publicLookup().findVirtual(server.getClass(), "start",
+                    MethodType.methodType(void.class));
+            Thread thread = new Thread(() -> {
+                try {
+                    start.invoke(server);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }, "benchmark-server");
+            thread.setDaemon(true);
+            thread.start();
+            awaitPort();
+            started = true;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("启动服务端失败", e);
+        } finally {
+            START_LOCK.unlock();
+        }
+    }
+
+    private static void awaitPort() {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", PORT), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("服务端未在 " + START_TIMEOUT + " 毫秒内启动", e);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(interrupted);
+                }
+            }
+        }
+    }
+
+    /**
+     * 生成指定大小的随机内容文件，同样的种子得到同样的内容
+     */
+    public static Path createFile(Path path, long size, long seed) {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            Files.createDirectories(path.getParent());
+            try (OutputStream out = Files.newOutputStream(path)) {
+                for (long written = 0; written < size; written += buffer.length) {
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return path;
+    }
+
+    /**
+     * 删除本地目录，以及基准测试在云盘目录中留下的文件
+     */
+    public static void cleanUp(Path localDir) {
+        delete(localDir);
+        delete(CLOUD_DIR.resolve(REMOTE_ROOT));
+    }
+
+    private static void delete(Path root) {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("清理基准测试文件失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 服务端保存的文件大小，文件不存在时为 -1；用于在测量前确认操作确实成功
+     */
+    public static long remoteSize(String remotePath) {
+        Path path = CLOUD_DIR.resolve(remotePath);
+        return Files.isRegularFile(path) ? path.toFile().length() : -1;
+    }
+
+    /**
+     * EasyCloudDiskClient 的包装
+     */
+    public static final class Client implements AutoCloseable {
+        private final Object client;
+
+        public Client() {
+            try {
+                client = (Object) NEW_CLIENT.invokeExact();
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        public void setCompressionEnabled(boolean enabled) {
+            try {
+                SET_COMPRESSION.invokeExact(client, enabled);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        public void upload(String localPath, String remotePath) {
+            try {
+                UPLOAD.invokeExact(client, localPath, remotePath);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        public void uploadMultiThread(String localPath, String remotePath) {
+            try {
+                UPLOAD_MULTI_THREAD.invokeExact(client, localPath, remotePath);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        public boolean uploadRanged(String localPath, String remotePath, int streams) {
+            try {
+                return (boolean) UPLOAD_RANGED.invokeExact(client, localPath, remotePath, streams);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        public void download(String remotePath, String localPath) {
+            try {
+                DOWNLOAD.invokeExact(client, remotePath, localPath);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        public void downloadMultiThread(String remotePath, String localPath) {
+            try {
+                DOWNLOAD_MULTI_THREAD.invokeExact(client, remotePath, localPath);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        /**
+         * @param filePaths 每项为 {本地路径, 云盘路径}
+         */
+        public void batchUpload(List<String[]> filePaths) {
+            try {
+                BATCH_UPLOAD.invokeExact(client, filePaths);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        /**
+         * @param filePaths 每项为 {云盘路径, 本地路径}
+         */
+        public void batchDownload(List<String[]> filePaths, int connections) {
+            try {
+                BATCH_DOWNLOAD.invokeExact(client, filePaths, connections);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        /**
+         * 按页读取前缀下的全部文件
+         *
+         * @return 文件数，出错时为 -1
+         */
+        public int listAll(String prefix, int pageSize) {
+            try {
+                int count = 0;
+                String cursor = "";
+                do {
+                    Object page = (Object) LIST_FILES.invokeExact(client, prefix, cursor, pageSize);
+                    if (page == null) {
+                        return -1;
+                    }
+                    count += ((List<?>) (Object) PAGE_FILES.invokeExact(page)).size();
+                    cursor = (String) (Object) PAGE_NEXT_CURSOR.invokeExact(page);
+                } while (!cursor.isEmpty());
+                return count;
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        public List<?> getFileList() {
+            try {
+                return (List<?>) (Object) GET_FILE_LIST.invokeExact(client);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                CLOSE.invokeExact(client);
+            } catch (Throwable e) {
+                throw propagate(e);
+            }
+        }
+    }
+
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+}
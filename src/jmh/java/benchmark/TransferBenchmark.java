@@ -0,0 +1,130 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个文件的上传、下载和范围传输
+ * <p>
+ * 每组参数在单独的 JVM 中启动进程内服务端，经回环地址测量一次完整操作的平均耗时。只跑一部分组合时用 -p 指定参数，如
+ * <pre>
+ * java -jar target/benchmarks.jar TransferBenchmark.download -p fileSize=16777216 -p mode=nio
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+    @Param({"4096", "1048576", "16777216"})
+    public long fileSize;
+
+    // 读写分块大小，0 表示按文件大小选取
+    @Param({"0", "4096", "262144"})
+    public int chunkSize;
+
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    private Path localDir;
+    private String localFile;
+    private String remoteFile;
+    private CloudDisk.Client client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CloudDisk.startServer("nio".equals(mode), chunkSize);
+        localDir = Files.createTempDirectory("cloud-jmh");
+        localFile = CloudDisk.createFile(localDir.resolve("source"), fileSize, 1).toString();
+        remoteFile = CloudDisk.REMOTE_ROOT + "transfer";
+        client = new CloudDisk.Client();
+
+        // 下载类基准测试需要服务端已有文件，同时确认上传确实成功
+        client.upload(localFile, remoteFile);
+        if (CloudDisk.remoteSize(remoteFile) != fileSize) {
+            throw new IllegalStateException("准备基准测试文件失败: " + remoteFile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        CloudDisk.cleanUp(localDir);
+    }
+
+    /**
+     * 每个测量线程各自的下载目标，并发下载时互不覆盖
+     */
+    @State(Scope.Thread)
+    public static class Target {
+        String localPath;
+
+        @Setup(Level.Trial)
+        public void setUp(TransferBenchmark benchmark, ThreadParams threadParams) {
+            localPath = benchmark.localDir.resolve("download-" + threadParams.getThreadIndex()).toString();
+        }
+    }
+
+    /**
+     * 范围上传的并行连接数，只有 uploadRanged 使用
+     */
+    @State(Scope.Benchmark)
+    public static class Streams {
+        @Param({"1", "4"})
+        public int streams;
+    }
+
+    @Benchmark
+    public void upload() {
+        client.upload(localFile, remoteFile);
+    }
+
+    @Benchmark
+    public void uploadMultiThread() {
+        client.uploadMultiThread(localFile, CloudDisk.REMOTE_ROOT + "transfer-multi");
+    }
+
+    @Benchmark
+    public boolean uploadRanged(Streams streams) {
+        return client.uploadRanged(localFile, CloudDisk.REMOTE_ROOT + "transfer-ranged", streams.streams);
+    }
+
+    @Benchmark
+    public void download(Target target) {
+        client.download(remoteFile, target.localPath);
+    }
+
+    @Benchmark
+    public void downloadMultiThread(Target target) {
+        client.downloadMultiThread(remoteFile, target.localPath);
+    }
+
+    /**
+     * 4 个客户端线程共用一个客户端（连接池）同时下载同一个文件
+     */
+    @Benchmark
+    @Threads(4)
+    public void downloadConcurrent(Target target) {
+        client.download(remoteFile, target.localPath);
+    }
+}
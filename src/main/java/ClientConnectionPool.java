@@ -0,0 +1,199 @@
+import util.TransferTuning;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 客户端长连接池
+ * <p>
+ * 连接上的每个请求以 REQ + 请求ID 开头，后面是原有的命令和参数；服务端先回写请求ID再按原有格式响应，
+ * 处理完后不关闭连接。响应完整读取后调用 {@link Connection#recycle()} 把连接放回池中，
+ * 之后的调用不再需要重新建立 TCP 连接。出错或响应没有读完的连接在关闭时直接丢弃。
+ * <p>
+ * 请求先写入内存缓冲区，发出后如果复用的连接已被服务端关闭（空闲超时、服务端重启），换一个新连接重发一次。
+ * 因此池中的连接只用于参数都在头部、没有请求体的命令。
+ */
+class ClientConnectionPool {
+    private static final String KEEP_ALIVE_COMMAND = "REQ";
+
+    private final String host;
+    private final int port;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final int readTimeout;
+    private final TransferTuning tuning;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    /**
+     * @param maxIdle           最多保留的空闲连接数
+     * @param idleTimeoutMillis 空闲连接的最长保留时间，应小于服务端的 keepAliveTimeout
+     * @param readTimeout       读取超时（毫秒）
+     * @param tuning            建立连接时使用的套接字参数
+     */
+    ClientConnectionPool(String host, int port, int maxIdle, long idleTimeoutMillis, int readTimeout,
+                         TransferTuning tuning) {
+        this.host = host;
+        this.port = port;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.readTimeout = readTimeout;
+        this.tuning = tuning;
+    }
+
+    /**
+     * 取出一个空闲连接，没有可用的空闲连接时新建
+     */
+    Connection acquire() throws IOException {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Connection connection;
+            lock.lock();
+            try {
+                // 后进先出，最近使用的连接最不可能已被服务端关闭
+                connection = idle.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+            if (connection == null) {
+                return new Connection();
+            }
+            if (now - connection.idleSince < idleTimeoutMillis && !connection.socket.isClosed()) {
+                connection.recycled = false;
+                connection.reused = true;
+                return connection;
+            }
+            connection.discard();
+        }
+    }
+
+    /**
+     * 关闭所有空闲连接
+     */
+    void close() {
+        lock.lock();
+        try {
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                connection.discard();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Connection connection) {
+        connection.idleSince = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(connection);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        connection.discard();
+    }
+
+    /**
+     * 池中的一个连接，同一时间只由一个线程使用
+     */
+    class Connection implements Closeable {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DataOutputStream request = new DataOutputStream(pending);
+        private Socket socket;
+        private DataInputStream dis;
+        private OutputStream out;
+        private int requestId;
+        private boolean recycled = false;
+        private boolean reused = false; // 是否是从池中取出的连接，只有这种连接失败时才重发
+        private long idleSince;
+
+        private Connection() throws IOException {
+            connect();
+        }
+
+        private void connect() throws IOException {
+            socket = tuning.connect(host, port, readTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * 开始一个请求，写入 REQ 前缀、请求ID和命令
+         *
+         * @return 用于写入命令参数的输出流，参数写完后调用 {@link #response()}
+         */
+        DataOutputStream request(String command) throws IOException {
+            requestId = nextRequestId.incrementAndGet();
+            pending.reset();
+            request.writeUTF(KEEP_ALIVE_COMMAND);
+            request.writeInt(requestId);
+            request.writeUTF(command);
+            return request;
+        }
+
+        /**
+         * 发出请求并读取响应开头的请求ID
+         *
+         * @return 用于读取响应内容的输入流
+         */
+        DataInputStream response() throws IOException {
+            int echoed;
+            try {
+                pending.writeTo(out);
+                out.flush();
+                echoed = dis.readInt();
+            } catch (IOException e) {
+                // 读取超时说明服务端还在处理，不能重发
+                if (!reused || e instanceof SocketTimeoutException) {
+                    throw e;
+                }
+                // 空闲期间连接已被服务端关闭，请求还没有被处理，换新连接重发
+                reused = false;
+                discard();
+                connect();
+                pending.writeTo(out);
+                out.flush();
+                echoed = dis.readInt();
+            }
+            if (echoed != requestId) {
+                throw new IOException("响应的请求ID不匹配: 期望 " + requestId + "，实际 " + echoed);
+            }
+            return dis;
+        }
+
+        /**
+         * 响应已经完整读取，关闭时把连接放回池中
+         */
+        void recycle() {
+            recycled = true;
+        }
+
+        @Override
+        public void close() {
+            if (recycled) {
+                release(this);
+            } else {
+                discard();
+            }
+        }
+
+        private void discard() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+    }
+}
@@ -1,19 +1,52 @@
+import util.BufferPool;
+import util.ChunkIndex;
+import util.CompressedInputStream;
+import util.CompressedOutputStream;
+import util.CompressionCodec;
+import util.DeltaSync;
 import util.MD5Util;
+import util.TransferTuning;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class EasyCloudDiskClient {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 8888;
-    private static final int BUFFER_SIZE = 4096;
     private static final int THREAD_COUNT = 5; // 多线程上传的线程数
     private static final int CONNECTION_TIMEOUT = 10000; // 连接超时时间
     private static final int READ_TIMEOUT = 15000; // 读取超时时间
+    private static final long PART_CHECKPOINT = 1024 * 1024; // 多线程下载每完成这么多字节记录一次进度
+    private static final int POOL_MAX_IDLE = 8; // 连接池最多保留的空闲长连接数
+    private static final long POOL_IDLE_TIMEOUT = 30000; // 空闲长连接的保留时间，小于服务端的空闲超时
+    private static final long PACK_MAX_FILE_SIZE = 1024 * 1024; // 批量上传时不超过这个大小的文件打包发送
+    private static final int PACK_BUFFER_SIZE = 64 * 1024; // 打包上传的发送缓冲区，多个小文件合并成一次写出
+    private static final long BUFFER_POOL_BYTES_PER_CLASS = 4L * 1024 * 1024; // 缓冲区池每个大小级别最多保留的空闲字节数
+
+    // 读写分块大小和套接字缓冲区，可以通过 cloud.client.* 系统属性配置
+    private final TransferTuning tuning = TransferTuning.fromSystemProperties("cloud.client.");
+    // 下载、查询和列表请求复用的长连接
+    private final ClientConnectionPool connectionPool = new ClientConnectionPool(SERVER_ADDRESS, SERVER_PORT,
+            POOL_MAX_IDLE, POOL_IDLE_TIMEOUT, READ_TIMEOUT, tuning);
+    // STAT 和多线程下载的各分块共用的分帧连接，断开后下次使用时重建
+    private final ReentrantLock framedLock = new ReentrantLock();
+    private FramedConnection framedConnection;
+    // 单线程上传下载和批量传输是否协商传输压缩
+    private volatile boolean compressionEnabled = false;
+    // 上传下载共用的读写缓冲区
+    private final BufferPool buffers = new BufferPool("客户端缓冲区", false, BUFFER_POOL_BYTES_PER_CLASS);
 
     /**
      * 启动客户端
@@ -22,6 +55,86 @@ public class EasyCloudDiskClient {
         System.out.println("客户端已启动，连接到服务器: " + SERVER_ADDRESS + ":" + SERVER_PORT);
     }
 
+    /**
+     * 设置是否启用传输压缩，适合带宽受限、文件可压缩（日志、文本）的场景；
+     * 不可压缩的文件在服务端和客户端都会自动跳过压缩
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * 关闭连接池中的空闲连接和分帧连接
+     */
+    public void close() {
+        connectionPool.close();
+        framedLock.lock();
+        try {
+            if (framedConnection != null) {
+                framedConnection.close();
+            }
+        } finally {
+            framedLock.unlock();
+        }
+    }
+
+    // 获取分帧连接，没有或已断开时新建
+    private FramedConnection framedConnection() throws IOException {
+        framedLock.lock();
+        try {
+            if (framedConnection == null || !framedConnection.isOpen()) {
+                framedConnection = new FramedConnection(SERVER_ADDRESS, SERVER_PORT, READ_TIMEOUT, tuning);
+            }
+            return framedConnection;
+        } finally {
+            framedLock.unlock();
+        }
+    }
+
+    // 等待分帧请求的所有响应帧处理完
+    private static void awaitResponse(CompletableFuture<Void> response) throws IOException {
+        try {
+            response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待响应时被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // 写入命令名，启用压缩时在前面加上 COMPRESS 前缀和本地支持的算法
+    private void writeCommand(DataOutputStream dos, String command) throws IOException {
+        if (compressionEnabled) {
+            dos.writeUTF("COMPRESS");
+            dos.writeUTF(CompressionCodec.supported());
+        }
+        dos.writeUTF(command);
+    }
+
+    // 在长连接上开始一个请求，启用压缩时同样加上 COMPRESS 前缀
+    private DataOutputStream request(ClientConnectionPool.Connection connection, String command) throws IOException {
+        if (!compressionEnabled) {
+            return connection.request(command);
+        }
+        DataOutputStream dos = connection.request("COMPRESS");
+        dos.writeUTF(CompressionCodec.supported());
+        dos.writeUTF(command);
+        return dos;
+    }
+
+    // 启用压缩时读取服务端选定的算法，没有共同支持的算法时返回 null
+    private CompressionCodec acceptCompression(DataInputStream dis) throws IOException {
+        return compressionEnabled ? CompressionCodec.create(dis.readUTF()) : null;
+    }
+
+    private static DataInputStream contentInput(DataInputStream dis, CompressionCodec codec) {
+        return codec != null ? new DataInputStream(new CompressedInputStream(dis, codec)) : dis;
+    }
+
     /**
      * 单线程上传文件
      *
@@ -35,50 +148,69 @@ public class EasyCloudDiskClient {
             return;
         }
 
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        boolean connected = false;
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
              DataInputStream dis = new DataInputStream(socket.getInputStream());
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
 
+            connected = true;
             socket.setSoTimeout(READ_TIMEOUT);
 
-            // 发送上传命令
-            dos.writeUTF("UPLOAD");
+            // 发送上传命令，MD5在文件内容之后发送，不需要预先读一遍文件
+            writeCommand(dos, "UPLOAD_STREAM");
 
             // 发送文件信息
             dos.writeUTF(remoteFilePath);
             dos.writeLong(localFile.length());
+            dos.flush();
 
-            // 计算并发送文件MD5
-            String md5 = MD5Util.calculateMD5(localFilePath);
-            dos.writeUTF(md5);
-
-            // 发送文件内容
-            try (FileInputStream fis = new FileInputStream(localFile)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
+            // 发送文件内容，边读边计算MD5，最后发送MD5
+            MessageDigest md = MD5Util.newMD5();
+            CompressionCodec codec = acceptCompression(dis);
+            long startTime = System.nanoTime();
+            try (DigestInputStream fis = new DigestInputStream(new FileInputStream(localFile), md);
+                 BufferPool.Lease lease = buffers.acquire(tuning.chunkSizeFor(localFile.length()))) {
+                OutputStream content = codec != null ? new CompressedOutputStream(dos, codec) : dos;
+                byte[] buffer = lease.array();
                 int bytesRead;
 
                 while ((bytesRead = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
+                    content.write(buffer, 0, bytesRead);
+                }
+                content.flush();
+            } finally {
+                if (codec != null) {
+                    codec.close();
                 }
-                dos.flush();
             }
+            dos.writeUTF(MD5Util.toHex(md.digest()));
+            dos.flush();
 
             // 接收MD5校验结果
             boolean md5Match = dis.readBoolean();
             if (md5Match) {
+                tuning.recordTransfer(localFile.length(), System.nanoTime() - startTime);
                 System.out.println("文件上传成功: " + localFilePath + " -> " + remoteFilePath);
             } else {
                 System.err.println("文件上传失败，MD5校验不匹配: " + localFilePath);
             }
 
         } catch (IOException e) {
-            System.err.println("上传文件错误: " + e.getMessage());
-            e.printStackTrace();
+            if (!connected) {
+                // 连接都没有建立，服务端不可用时续传同样会失败
+                System.err.println("上传文件错误，无法连接服务器: " + e.getMessage());
+                return;
+            }
+            System.err.println("上传文件错误: " + e.getMessage() + "，尝试续传");
+            resumeUpload(localFilePath, remoteFilePath);
         }
     }
 
     /**
      * 多线程上传文件
+     * <p>
+     * 文件按 THREAD_COUNT 切分，每个分块通过独立的连接并行发送，发送时只使用固定大小的缓冲区，
+     * 内存占用与文件大小无关。
      *
      * @param localFilePath  本地文件路径
      * @param remoteFilePath 云盘文件路径
@@ -90,77 +222,491 @@ public class EasyCloudDiskClient {
             return;
         }
 
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        // 计算MD5
+        String md5 = MD5Util.calculateMD5(localFilePath);
+
+        // 分块上传，空文件也至少发送一个分块以便服务端创建文件
+        long fileSize = localFile.length();
+        long chunkSize = Math.max(1, (fileSize + THREAD_COUNT - 1) / THREAD_COUNT);
+        int partCount = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        AtomicBoolean md5Verified = new AtomicBoolean(false);
+        AtomicBoolean unreachable = new AtomicBoolean(false); // 有分块连接不上服务器
+
+        for (int i = 0; i < partCount; i++) {
+            final int partIndex = i;
+            final long startPos = partIndex * chunkSize;
+            final long length = Math.min(chunkSize, fileSize - startPos);
+
+            futures.add(executor.submit(() -> {
+                Socket socket;
+                try {
+                    socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+                } catch (IOException e) {
+                    unreachable.set(true);
+                    throw e;
+                }
+                try (socket;
+                     DataInputStream dis = new DataInputStream(socket.getInputStream());
+                     DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), tuning.chunkSizeFor(length)));
+                     RandomAccessFile raf = new RandomAccessFile(localFile, "r")) {
+
+                    socket.setSoTimeout(READ_TIMEOUT);
+
+                    // 发送分块信息
+                    dos.writeUTF("UPLOAD_MULTI");
+                    dos.writeUTF(remoteFilePath);
+                    dos.writeLong(fileSize);
+                    dos.writeInt(partIndex);
+                    dos.writeInt(partCount);
+                    dos.writeLong(startPos);
+                    dos.writeLong(length);
+                    dos.writeUTF(md5);
+
+                    // 边读边发送分块内容
+                    writeFileRange(raf, dos, startPos, length);
+
+                    // 接收分块写入结果；最后完成的分块还会收到整文件的MD5校验结果
+                    if (!dis.readBoolean()) {
+                        System.err.println("分块 " + partIndex + " 上传失败");
+                        return false;
+                    }
+                    if (dis.readBoolean()) {
+                        md5Verified.set(dis.readBoolean());
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        boolean allSuccess = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                if (!future.get()) {
+                    allSuccess = false;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                allSuccess = false;
+                System.err.println("多线程上传文件错误: " + e.getMessage());
+            }
+        }
+        executor.shutdown();
+
+        if (allSuccess && md5Verified.get()) {
+            System.out.println("多线程文件上传成功: " + localFilePath + " -> " + remoteFilePath);
+        } else if (allSuccess) {
+            System.err.println("多线程文件上传失败，MD5校验不匹配: " + localFilePath);
+        } else if (unreachable.get()) {
+            System.err.println("多线程文件上传失败，无法连接服务器: " + localFilePath);
+        } else {
+            // 已经写入的分块记录在服务端的上传日志里，只需补传缺失的部分
+            System.err.println("多线程文件上传中断，部分分块未能上传，尝试续传: " + localFilePath);
+            resumeUpload(localFilePath, remoteFilePath, md5);
+        }
+    }
+
+    /**
+     * 续传上传文件
+     * <p>
+     * 向服务端查询该文件（按路径、大小和MD5区分）尚未收到的范围，只重传这些范围，最后校验整文件MD5。
+     * 服务端没有该上传的记录时，整个文件都会作为缺失范围返回。
+     *
+     * @param localFilePath  本地文件路径
+     * @param remoteFilePath 云盘文件路径
+     * @return 上传并校验成功返回 true
+     */
+    public boolean resumeUpload(String localFilePath, String remoteFilePath) {
+        File localFile = new File(localFilePath);
+        if (!localFile.exists() || !localFile.isFile()) {
+            System.err.println("本地文件不存在或不是一个文件: " + localFilePath);
+            return false;
+        }
+        return resumeUpload(localFilePath, remoteFilePath, MD5Util.calculateMD5(localFilePath));
+    }
+
+    private boolean resumeUpload(String localFilePath, String remoteFilePath, String md5) {
+        File localFile = new File(localFilePath);
+        long fileSize = localFile.length();
+        String uploadId;
+        List<long[]> missing = new ArrayList<>();
+
+        // 查询缺失范围
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
              DataInputStream dis = new DataInputStream(socket.getInputStream());
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
 
             socket.setSoTimeout(READ_TIMEOUT);
+            dos.writeUTF("UPLOAD_QUERY");
+            dos.writeUTF(remoteFilePath);
+            dos.writeLong(fileSize);
+            dos.writeUTF(md5);
+            dos.flush();
+
+            uploadId = dis.readUTF();
+            int rangeCount = dis.readInt();
+            for (int i = 0; i < rangeCount; i++) {
+                missing.add(new long[]{dis.readLong(), dis.readLong()});
+            }
+        } catch (IOException e) {
+            System.err.println("查询续传状态失败: " + e.getMessage());
+            return false;
+        }
+
+        long missingBytes = 0;
+        for (long[] range : missing) {
+            missingBytes += range[1];
+        }
+        System.out.println("续传上传: " + localFilePath + "，需要补传 " + missing.size() + " 段共 " + missingBytes + "/" + fileSize + " 字节");
+
+        // 并行补传缺失范围
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (long[] range : missing) {
+            futures.add(executor.submit(() -> uploadRangeWithRetry(localFile, "UPLOAD_RESUME", uploadId, range[0], range[1])));
+        }
+
+        boolean allSuccess = true;
+        try {
+            for (Future<Boolean> future : futures) {
+                if (!future.get()) {
+                    allSuccess = false;
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            allSuccess = false;
+            System.err.println("续传上传错误: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+
+        if (!allSuccess) {
+            System.err.println("续传上传失败，仍有范围未能上传，可稍后再次续传: " + localFilePath);
+            return false;
+        }
+
+        // 校验整文件MD5
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+             DataInputStream dis = new DataInputStream(socket.getInputStream());
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
 
-            // 发送多线程上传命令
-            dos.writeUTF("UPLOAD_MULTI");
+            socket.setSoTimeout(READ_TIMEOUT * 2); // 服务端需要读取整个文件计算MD5
+            dos.writeUTF("UPLOAD_RESUME_FINISH");
+            dos.writeUTF(uploadId);
+            dos.flush();
 
-            // 发送文件路径
+            boolean md5Match = dis.readBoolean();
+            if (md5Match) {
+                System.out.println("续传上传成功: " + localFilePath + " -> " + remoteFilePath);
+            } else {
+                System.err.println("续传上传失败，MD5校验不匹配: " + localFilePath);
+            }
+            return md5Match;
+        } catch (IOException e) {
+            System.err.println("续传上传校验失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 去重上传文件
+     * <p>
+     * 文件按内容切分成分块，先把分块清单发给服务端；服务端已有的分块（来自任意已有文件）不再发送，
+     * 近似重复的文件只需要发送变化的部分。
+     *
+     * @param localFilePath  本地文件路径
+     * @param remoteFilePath 云盘文件路径
+     * @return 上传并校验成功返回 true
+     */
+    public boolean uploadFileDedup(String localFilePath, String remoteFilePath) {
+        File localFile = new File(localFilePath);
+        if (!localFile.exists() || !localFile.isFile()) {
+            System.err.println("本地文件不存在或不是一个文件: " + localFilePath);
+            return false;
+        }
+
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), PACK_BUFFER_SIZE));
+             RandomAccessFile raf = new RandomAccessFile(localFile, "r");
+             BufferPool.Lease lease = buffers.acquire(ChunkIndex.MAX_CHUNK)) {
+
+            // 切分的同时计算整文件MD5，只读一遍文件
+            MessageDigest md = MD5Util.newMD5();
+            List<ChunkIndex.Chunk> chunks = ChunkIndex.split(localFile, md);
+            long fileSize = 0;
+            for (ChunkIndex.Chunk chunk : chunks) {
+                fileSize += chunk.length;
+            }
+
+            socket.setSoTimeout(READ_TIMEOUT * 2); // 服务端需要先复制已有的分块
+            dos.writeUTF("CHUNK_UPLOAD");
             dos.writeUTF(remoteFilePath);
+            dos.writeLong(fileSize);
+            dos.writeInt(chunks.size());
+            for (ChunkIndex.Chunk chunk : chunks) {
+                dos.writeUTF(chunk.hash);
+                dos.writeInt(chunk.length);
+            }
+            dos.flush();
+
+            // 只发送服务端没有的分块
+            boolean[] present = new boolean[chunks.size()];
+            for (int i = 0; i < present.length; i++) {
+                present[i] = dis.readBoolean();
+            }
+            byte[] buffer = lease.array();
+            long sentBytes = 0;
+            for (int i = 0; i < present.length; i++) {
+                if (present[i]) {
+                    continue;
+                }
+                ChunkIndex.Chunk chunk = chunks.get(i);
+                raf.seek(chunk.offset);
+                raf.readFully(buffer, 0, chunk.length);
+                dos.write(buffer, 0, chunk.length);
+                sentBytes += chunk.length;
+            }
+            dos.writeUTF(MD5Util.toHex(md.digest()));
+            dos.flush();
+
+            boolean md5Match = dis.readBoolean();
+            if (md5Match) {
+                System.out.println("去重上传成功: " + localFilePath + " -> " + remoteFilePath + "，发送 " + sentBytes + "/" + fileSize + " 字节");
+            } else {
+                System.err.println("去重上传失败，校验不匹配: " + localFilePath);
+            }
+            return md5Match;
+        } catch (IOException e) {
+            System.err.println("去重上传文件错误: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 差量上传文件：服务端发送现有文件的块签名，客户端只发送变化的数据和对旧块的引用，
+     * 适合修改了少量内容的大文件
+     *
+     * @param localFilePath  本地文件路径
+     * @param remoteFilePath 云盘文件路径
+     * @return 上传并校验成功返回 true
+     */
+    public boolean uploadFileDelta(String localFilePath, String remoteFilePath) {
+        File localFile = new File(localFilePath);
+        if (!localFile.exists() || !localFile.isFile()) {
+            System.err.println("本地文件不存在或不是一个文件: " + localFilePath);
+            return false;
+        }
 
-            // 计算MD5
-            String md5 = MD5Util.calculateMD5(localFilePath);
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), PACK_BUFFER_SIZE))) {
 
-            // 分块上传
-            long fileSize = localFile.length();
-            int chunkSize = (int) Math.ceil((double) fileSize / THREAD_COUNT);
-            List<byte[]> chunks = new ArrayList<>();
+            socket.setSoTimeout(READ_TIMEOUT * 2); // 服务端需要读取整个旧文件计算签名
+            dos.writeUTF("DELTA_UPLOAD");
+            dos.writeUTF(remoteFilePath);
+            dos.flush();
 
-            // 使用线程池并行读取文件块
-            ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
-            List<Future<byte[]>> futures = new ArrayList<>();
+            // 接收签名
+            int blockSize = dis.readInt();
+            int blockCount = dis.readInt();
+            DeltaSync.Signature signature = new DeltaSync.Signature(blockSize, blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                int weak = dis.readInt();
+                byte[] strong = new byte[DeltaSync.STRONG_HASH_SIZE];
+                dis.readFully(strong);
+                signature.add(i, weak, strong);
+            }
 
-            for (int i = 0; i < THREAD_COUNT; i++) {
-                final int chunkIndex = i;
-                final long startPos = (long) chunkIndex * chunkSize;
-                final long endPos = Math.min(startPos + chunkSize, fileSize);
+            // 边读本地文件边计算差量和MD5
+            long[] literalBytes = {0};
+            MessageDigest md = MD5Util.newMD5();
+            try (InputStream in = new DigestInputStream(new FileInputStream(localFile), md)) {
+                DeltaSync.computeDelta(in, signature, new DeltaSync.DeltaSink() {
+                    @Override
+                    public void literal(byte[] data, int offset, int length) throws IOException {
+                        dos.writeByte(DeltaSync.OP_LITERAL);
+                        dos.writeInt(length);
+                        dos.write(data, offset, length);
+                        literalBytes[0] += length;
+                    }
 
-                Future<byte[]> future = executor.submit(() -> {
-                    byte[] data = new byte[(int) (endPos - startPos)];
-                    try (RandomAccessFile raf = new RandomAccessFile(localFile, "r")) {
-                        raf.seek(startPos);
-                        raf.readFully(data);
+                    @Override
+                    public void copy(int firstBlock, int count) throws IOException {
+                        dos.writeByte(DeltaSync.OP_COPY);
+                        dos.writeInt(firstBlock);
+                        dos.writeInt(count);
                     }
-                    return data;
                 });
+            }
+            dos.writeByte(DeltaSync.OP_END);
+            dos.writeUTF(MD5Util.toHex(md.digest()));
+            dos.flush();
 
-                futures.add(future);
+            boolean md5Match = dis.readBoolean();
+            if (md5Match) {
+                System.out.println("差量上传成功: " + localFilePath + " -> " + remoteFilePath + "，发送新数据 " + literalBytes[0] + "/" + localFile.length() + " 字节");
+            } else {
+                System.err.println("差量上传失败，MD5校验不匹配: " + localFilePath);
             }
+            return md5Match;
+        } catch (IOException e) {
+            System.err.println("差量上传文件错误: " + e.getMessage());
+            return false;
+        }
+    }
 
-            // 收集所有块
-            for (Future<byte[]> future : futures) {
-                chunks.add(future.get());
+    /**
+     * 多连接并行范围上传
+     * <p>
+     * 服务端先按最终大小预分配文件，之后 streamCount 个连接各自通过 RANGE_UPLOAD 写入一段连续范围，
+     * 最后由 RANGE_UPLOAD_FINISH 校验整文件MD5。每个范围都可以单独重试，
+     * 多条 TCP 流并行可以绕开高延迟链路上单条连接的窗口限制。
+     *
+     * @param localFilePath  本地文件路径
+     * @param remoteFilePath 云盘文件路径
+     * @param streamCount    并行连接数
+     * @return 上传并校验成功返回 true
+     */
+    public boolean uploadFileRanged(String localFilePath, String remoteFilePath, int streamCount) {
+        File localFile = new File(localFilePath);
+        if (!localFile.exists() || !localFile.isFile()) {
+            System.err.println("本地文件不存在或不是一个文件: " + localFilePath);
+            return false;
+        }
+        long fileSize = localFile.length();
+
+        // 预分配服务端文件
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+             DataInputStream dis = new DataInputStream(socket.getInputStream());
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+
+            socket.setSoTimeout(READ_TIMEOUT);
+            dos.writeUTF("RANGE_UPLOAD_INIT");
+            dos.writeUTF(remoteFilePath);
+            dos.writeLong(fileSize);
+            dos.flush();
+
+            if (!dis.readBoolean()) {
+                System.err.println("范围上传初始化失败: " + remoteFilePath);
+                return false;
             }
+        } catch (IOException e) {
+            System.err.println("范围上传初始化失败: " + e.getMessage());
+            return false;
+        }
 
-            executor.shutdown();
+        // 在发送数据的同时计算MD5，收尾时使用
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, streamCount) + 1);
+        Future<String> md5Future = executor.submit(() -> MD5Util.calculateMD5(localFilePath));
 
-            // 发送块数量和MD5
-            dos.writeInt(chunks.size());
-            dos.writeUTF(md5);
+        long rangeSize = Math.max(1, (fileSize + streamCount - 1) / Math.max(1, streamCount));
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (long startPos = 0; startPos < fileSize; startPos += rangeSize) {
+            final long rangeStart = startPos;
+            final long length = Math.min(rangeSize, fileSize - startPos);
+            futures.add(executor.submit(() -> uploadRangeWithRetry(localFile, "RANGE_UPLOAD", remoteFilePath, rangeStart, length)));
+        }
 
-            // 发送所有块
-            for (byte[] chunk : chunks) {
-                dos.writeInt(chunk.length);
-                dos.write(chunk);
+        boolean allSuccess = true;
+        String md5 = null;
+        try {
+            for (Future<Boolean> future : futures) {
+                if (!future.get()) {
+                    allSuccess = false;
+                }
             }
+            md5 = md5Future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            allSuccess = false;
+            System.err.println("范围上传文件错误: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+
+        if (!allSuccess || md5 == null) {
+            System.err.println("范围上传失败，部分范围未能上传: " + localFilePath);
+            return false;
+        }
+
+        // 校验整文件MD5
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+             DataInputStream dis = new DataInputStream(socket.getInputStream());
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+
+            socket.setSoTimeout(READ_TIMEOUT * 2); // 服务端需要读取整个文件计算MD5
+            dos.writeUTF("RANGE_UPLOAD_FINISH");
+            dos.writeUTF(remoteFilePath);
+            dos.writeLong(fileSize);
+            dos.writeUTF(md5);
             dos.flush();
 
-            // 接收MD5校验结果
             boolean md5Match = dis.readBoolean();
             if (md5Match) {
-                System.out.println("多线程文件上传成功: " + localFilePath + " -> " + remoteFilePath);
+                System.out.println("范围上传成功: " + localFilePath + " -> " + remoteFilePath + " (" + futures.size() + " 个连接)");
             } else {
-                System.err.println("多线程文件上传失败，MD5校验不匹配: " + localFilePath);
+                System.err.println("范围上传失败，MD5校验不匹配: " + localFilePath);
             }
+            return md5Match;
+        } catch (IOException e) {
+            System.err.println("范围上传校验失败: " + e.getMessage());
+            return false;
+        }
+    }
 
-        } catch (IOException | InterruptedException | ExecutionException e) {
-            System.err.println("多线程上传文件错误: " + e.getMessage());
-            e.printStackTrace();
+    /**
+     * 发送本地文件的一个范围，失败时重试
+     *
+     * @param command RANGE_UPLOAD（按云盘路径）或 UPLOAD_RESUME（按上传ID），两者的请求格式相同
+     * @param target  云盘路径或上传ID
+     */
+    private boolean uploadRangeWithRetry(File localFile, String command, String target, long startPos, long length) throws InterruptedException {
+        int maxRetries = 3;
+        for (int retryCount = 0; retryCount < maxRetries; retryCount++) {
+            if (retryCount > 0) {
+                Thread.sleep(1000L * retryCount);
+            }
+
+            try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+                 DataInputStream dis = new DataInputStream(socket.getInputStream());
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), tuning.chunkSizeFor(length)));
+                 RandomAccessFile raf = new RandomAccessFile(localFile, "r")) {
+
+                socket.setSoTimeout(READ_TIMEOUT);
+                dos.writeUTF(command);
+                dos.writeUTF(target);
+                dos.writeLong(startPos);
+                dos.writeLong(length);
+                writeFileRange(raf, dos, startPos, length);
+
+                if (dis.readBoolean()) {
+                    return true;
+                }
+                System.err.println(command + " 被服务端拒绝: 位置 " + startPos + ", 长度 " + length);
+            } catch (IOException e) {
+                System.err.println(command + " 失败 (重试 " + (retryCount + 1) + "/" + maxRetries + "): 位置 " + startPos + ", " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    // 从本地文件的指定位置读取 length 字节并发送，只使用一个分块大小的缓冲区
+    private void writeFileRange(RandomAccessFile raf, DataOutputStream dos, long startPos, long length) throws IOException {
+        raf.seek(startPos);
+        try (BufferPool.Lease lease = buffers.acquire(tuning.chunkSizeFor(length))) {
+            byte[] buffer = lease.array();
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("本地文件在上传过程中被截断");
+                }
+                dos.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
         }
+        dos.flush();
     }
 
     /**
@@ -170,19 +716,17 @@ public class EasyCloudDiskClient {
      * @param localFilePath  本地文件路径
      */
     public void downloadFile(String remoteFilePath, String localFilePath) {
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             DataInputStream dis = new DataInputStream(socket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-
-            socket.setSoTimeout(READ_TIMEOUT);
-
+        try (ClientConnectionPool.Connection connection = connectionPool.acquire()) {
             // 发送下载命令
-            dos.writeUTF("DOWNLOAD");
+            DataOutputStream dos = request(connection, "DOWNLOAD");
             dos.writeUTF(remoteFilePath);
+            DataInputStream dis = connection.response();
+            CompressionCodec codec = acceptCompression(dis);
 
             // 检查文件是否存在
             boolean fileExists = dis.readBoolean();
             if (!fileExists) {
+                connection.recycle();
                 System.err.println("云盘文件不存在: " + remoteFilePath);
                 return;
             }
@@ -195,24 +739,37 @@ public class EasyCloudDiskClient {
             File localFile = new File(localFilePath);
             localFile.getParentFile().mkdirs();
 
-            // 接收文件内容
-            try (FileOutputStream fos = new FileOutputStream(localFile)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
+            // 接收文件内容，边写边计算MD5
+            MessageDigest md = MD5Util.newMD5();
+            DataInputStream content = contentInput(dis, codec);
+            long startTime = System.nanoTime();
+            try (DigestOutputStream fos = new DigestOutputStream(new FileOutputStream(localFile), md);
+                 BufferPool.Lease lease = buffers.acquire(tuning.chunkSizeFor(fileSize))) {
+                byte[] buffer = lease.array();
                 int bytesRead;
                 long totalBytesRead = 0;
 
                 while (totalBytesRead < fileSize) {
-                    bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead));
+                    bytesRead = content.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead));
                     if (bytesRead == -1) break;
 
                     fos.write(buffer, 0, bytesRead);
                     totalBytesRead += bytesRead;
                 }
+                // 文件内容完整读完后连接上没有剩余数据，可以复用
+                if (totalBytesRead == fileSize) {
+                    connection.recycle();
+                }
+            } finally {
+                if (codec != null) {
+                    codec.close();
+                }
             }
 
             // 验证MD5
-            String clientMD5 = MD5Util.calculateMD5(localFilePath);
+            String clientMD5 = MD5Util.toHex(md.digest());
             if (serverMD5.equals(clientMD5)) {
+                tuning.recordTransfer(fileSize, System.nanoTime() - startTime);
                 System.out.println("文件下载成功: " + remoteFilePath + " -> " + localFilePath);
             } else {
                 System.err.println("文件下载失败，MD5校验不匹配: " + remoteFilePath);
@@ -231,58 +788,13 @@ public class EasyCloudDiskClient {
      * @param localFilePath  本地文件路径
      */
     public void downloadFileMultiThread(String remoteFilePath, String localFilePath) {
-        // 首先通过范围下载获取文件信息，避免下载整个文件
-        long fileSize;
-        String serverMD5;
-
-        try (Socket infoSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             DataInputStream infoDis = new DataInputStream(infoSocket.getInputStream());
-             DataOutputStream infoDos = new DataOutputStream(infoSocket.getOutputStream())) {
-
-            infoSocket.setSoTimeout(READ_TIMEOUT);
-
-            // 使用范围下载获取文件大小，只下载第一个字节
-            infoDos.writeUTF("RANGE_DOWNLOAD");
-            infoDos.writeUTF(remoteFilePath);
-            infoDos.writeLong(0); // 从位置0开始
-            infoDos.writeLong(1); // 只下载1个字节
-            infoDos.flush();
-
-            // 读取并丢弃这1个字节
-            infoDis.read();
-
-        } catch (IOException e) {
-            System.err.println("获取文件信息失败，尝试使用标准下载方式: " + e.getMessage());
-        }
-
-        // 使用标准下载方式获取文件信息
-        try (Socket infoSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             DataInputStream infoDis = new DataInputStream(infoSocket.getInputStream());
-             DataOutputStream infoDos = new DataOutputStream(infoSocket.getOutputStream())) {
-
-            infoSocket.setSoTimeout(READ_TIMEOUT);
-
-            // 获取文件信息
-            infoDos.writeUTF("DOWNLOAD");
-            infoDos.writeUTF(remoteFilePath);
-            infoDos.flush();
-
-            boolean fileExists = infoDis.readBoolean();
-            if (!fileExists) {
-                System.err.println("云盘文件不存在: " + remoteFilePath);
-                return;
-            }
-
-            fileSize = infoDis.readLong();
-            serverMD5 = infoDis.readUTF();
-
-            // 关闭连接前设置SO_LINGER，避免服务器端报错
-            infoSocket.setSoLinger(true, 0);
-
-        } catch (IOException e) {
-            System.err.println("获取文件信息失败: " + e.getMessage());
+        // 通过 STAT 获取文件大小和MD5，服务端不需要发送文件内容
+        FileStat stat = statFile(remoteFilePath);
+        if (stat == null) {
             return;
         }
+        long fileSize = stat.getFileSize();
+        String serverMD5 = stat.getMd5();
 
         // 创建目录（如果需要）
         File localFile = new File(localFilePath);
@@ -294,14 +806,29 @@ public class EasyCloudDiskClient {
             chunkSize++;
         }
 
-        // 准备临时文件
-        File[] tempFiles = new File[THREAD_COUNT];
+        // 每个分块的下载进度记录在 .partN 文件中，目标文件不存在或大小不符时之前的进度作废
+        File[] partFiles = new File[THREAD_COUNT];
+        boolean targetReusable = localFile.isFile() && localFile.length() == fileSize;
         for (int i = 0; i < THREAD_COUNT; i++) {
-            tempFiles[i] = new File(localFilePath + ".part" + i);
+            partFiles[i] = new File(localFilePath + ".part" + i);
+            if (!targetReusable) {
+                partFiles[i].delete();
+            }
+        }
+
+        // 预分配目标文件，各分块直接按偏移写入，不再需要合并临时文件
+        RandomAccessFile target;
+        try {
+            target = new RandomAccessFile(localFile, "rw");
+            target.setLength(fileSize);
+        } catch (IOException e) {
+            System.err.println("创建目标文件失败: " + e.getMessage());
+            return;
         }
+        FileChannel targetChannel = target.getChannel();
 
-        // 使用线程池并行下载文件块，但限制并发连接数
-        ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREAD_COUNT, 3)); // 限制最大并发连接数为3
+        // 使用线程池并行下载文件块，各分块的请求在同一个分帧连接上交错传输
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
         List<Future<Boolean>> futures = new ArrayList<>();
         CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
 
@@ -309,7 +836,7 @@ public class EasyCloudDiskClient {
             final int chunkIndex = i;
             final long startPos = (long) chunkIndex * chunkSize;
             final long endPos = Math.min(startPos + chunkSize, fileSize);
-            final File tempFile = tempFiles[chunkIndex];
+            final File partFile = partFiles[chunkIndex];
 
             if (startPos >= fileSize) {
                 latch.countDown();
@@ -320,6 +847,11 @@ public class EasyCloudDiskClient {
                 boolean success = false;
                 int retryCount = 0;
                 int maxRetries = 3;
+                // 之前的运行或本次的失败重试已经完成的字节数
+                long completed = readPartProgress(partFile, fileSize, serverMD5, endPos - startPos);
+                if (completed > 0) {
+                    System.out.println("分块 " + chunkIndex + " 已完成 " + completed + "/" + (endPos - startPos) + " 字节，继续下载剩余部分");
+                }
 
                 while (!success && retryCount < maxRetries) {
                     try {
@@ -328,44 +860,17 @@ public class EasyCloudDiskClient {
                             Thread.sleep(1000 * retryCount);
                         }
 
-                        Socket chunkSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                        chunkSocket.setSoTimeout(READ_TIMEOUT);
-                        chunkSocket.setTcpNoDelay(true);
-
-                        try (DataInputStream chunkDis = new DataInputStream(chunkSocket.getInputStream());
-                             DataOutputStream chunkDos = new DataOutputStream(chunkSocket.getOutputStream());
-                             FileOutputStream fos = new FileOutputStream(tempFile)) {
-
-                            // 发送范围下载请求
-                            chunkDos.writeUTF("RANGE_DOWNLOAD");
-                            chunkDos.writeUTF(remoteFilePath);
-                            chunkDos.writeLong(startPos);
-                            chunkDos.writeLong(endPos - startPos);
-                            chunkDos.flush();
-
-                            // 接收数据块
-                            byte[] chunkBuffer = new byte[BUFFER_SIZE];
-                            int chunkBytesRead;
-                            long remaining = endPos - startPos;
-
-                            while (remaining > 0) {
-                                chunkBytesRead = chunkDis.read(chunkBuffer, 0, (int) Math.min(chunkBuffer.length, remaining));
-                                if (chunkBytesRead == -1) break;
-
-                                fos.write(chunkBuffer, 0, chunkBytesRead);
-                                remaining -= chunkBytesRead;
-                            }
-
-                            success = true;
-                            System.out.println("下载分块 " + chunkIndex + " 完成: 位置 " + startPos + "-" + (endPos-1));
-                        } finally {
-                            try {
-                                chunkSocket.close();
-                            } catch (IOException e) {
-                                // 忽略关闭异常
-                            }
+                        if (completed < endPos - startPos) {
+                            completed = downloadRange(remoteFilePath, targetChannel, startPos, endPos, completed,
+                                    partFile, fileSize, serverMD5);
                         }
+
+                        success = true;
+                        System.out.println("下载分块 " + chunkIndex + " 完成: 位置 " + startPos + "-" + (endPos-1));
                     } catch (Exception e) {
+                        if (e instanceof PartialDownloadException) {
+                            completed = ((PartialDownloadException) e).completed;
+                        }
                         retryCount++;
                         System.err.println("下载分块 " + chunkIndex + " 失败 (重试 " + retryCount + "/" + maxRetries + "): " + e.getMessage());
                         if (retryCount >= maxRetries) {
@@ -410,36 +915,23 @@ public class EasyCloudDiskClient {
             }
         }
 
-        if (!allSuccess) {
-            System.err.println("部分分块下载失败，取消合并操作");
-            return;
+        try {
+            target.close();
+        } catch (IOException e) {
+            System.err.println("关闭目标文件失败: " + e.getMessage());
         }
 
-        // 合并所有分块
-        try (FileOutputStream fos = new FileOutputStream(localFile)) {
-            for (int i = 0; i < THREAD_COUNT; i++) {
-                File tempFile = tempFiles[i];
-                if (tempFile.exists() && tempFile.length() > 0) {
-                    try (FileInputStream fis = new FileInputStream(tempFile)) {
-                        byte[] mergeBuffer = new byte[BUFFER_SIZE];
-                        int mergeBytesRead;
-
-                        while ((mergeBytesRead = fis.read(mergeBuffer)) != -1) {
-                            fos.write(mergeBuffer, 0, mergeBytesRead);
-                        }
-                    }
-                    // 删除临时文件
-                    tempFile.delete();
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("合并文件失败: " + e.getMessage());
+        if (!allSuccess) {
+            System.err.println("部分分块下载失败，已保留下载进度，重新执行可继续下载: " + localFilePath);
             return;
         }
 
-        // 验证MD5
+        // 验证MD5；无论成功与否都清除进度记录，校验失败时下一次从头下载
         try {
             String clientMD5 = MD5Util.calculateMD5(localFilePath);
+            for (File partFile : partFiles) {
+                partFile.delete();
+            }
             if (serverMD5.equals(clientMD5)) {
                 System.out.println("多线程文件下载成功: " + remoteFilePath + " -> " + localFilePath);
             } else {
@@ -450,6 +942,147 @@ public class EasyCloudDiskClient {
         }
     }
 
+    /**
+     * 通过分帧连接上的 RANGE_DOWNLOAD 下载分块中剩余的部分，按偏移写入目标文件
+     * <p>
+     * 响应帧在分帧连接的读取线程中写入目标文件，读取线程是各分块共用的，只做写入。每写入 PART_CHECKPOINT 字节
+     * 通知当前线程，由它让数据落盘再把进度写入 .partN 文件，落盘不会阻塞同一连接上其他分块的数据。
+     *
+     * @param completed 分块中已经完成的字节数
+     * @return 分块完成后的字节数
+     * @throws PartialDownloadException 连接中断或服务端返回错误，携带中断时已完成的字节数
+     */
+    private long downloadRange(String remoteFilePath, FileChannel targetChannel, long startPos, long endPos, long completed,
+                               File partFile, long fileSize, String serverMD5) throws IOException {
+        long chunkLength = endPos - startPos;
+        // 已写入目标文件的字节数，由读取线程更新
+        AtomicLong written = new AtomicLong(completed);
+        // 需要记录进度或响应已经结束时释放
+        Semaphore checkpointDue = new Semaphore(0);
+        long checkpointed = completed;
+        try {
+            // 只请求尚未完成的部分
+            ByteBuffer request = ByteBuffer.allocate(2 + remoteFilePath.length() * 3 + 16);
+            FrameCodec.putString(request, remoteFilePath);
+            request.putLong(startPos + completed).putLong(chunkLength - completed);
+            request.flip();
+
+            long[] signalled = {completed}; // 只在读取线程中使用
+            CompletableFuture<Void> response = framedConnection().request(FrameCodec.OP_RANGE_DOWNLOAD, request, (header, payload) -> {
+                long done = written.get();
+                if (done + payload.remaining() > chunkLength) {
+                    throw new IOException("响应数据超出请求的范围");
+                }
+                while (payload.hasRemaining()) {
+                    done += targetChannel.write(payload, startPos + done);
+                }
+                written.set(done);
+                if (done - signalled[0] >= PART_CHECKPOINT) {
+                    signalled[0] = done;
+                    checkpointDue.release();
+                }
+            });
+            response.whenComplete((result, error) -> checkpointDue.release());
+
+            while (!response.isDone()) {
+                try {
+                    checkpointDue.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待响应时被中断");
+                }
+                long done = written.get();
+                if (!response.isDone() && done > checkpointed) {
+                    targetChannel.force(false);
+                    writePartProgress(partFile, fileSize, serverMD5, done);
+                    checkpointed = done;
+                }
+            }
+            awaitResponse(response);
+            if (written.get() < chunkLength) {
+                throw new EOFException("范围下载的数据不完整");
+            }
+            return written.get();
+        } catch (IOException e) {
+            throw new PartialDownloadException(e.getMessage(), written.get());
+        } finally {
+            // 记录最后的进度；中断时读取线程之后再写入的数据不计入，重试时重新下载
+            long done = written.get();
+            if (done > checkpointed) {
+                targetChannel.force(false);
+                writePartProgress(partFile, fileSize, serverMD5, done);
+            }
+        }
+    }
+
+    // 读取分块的下载进度；记录属于其他版本的文件或无法解析时返回0
+    private static long readPartProgress(File partFile, long fileSize, String serverMD5, long chunkLength) {
+        if (!partFile.isFile()) {
+            return 0;
+        }
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(partFile))) {
+            if (dis.readLong() != fileSize || !dis.readUTF().equals(serverMD5)) {
+                return 0;
+            }
+            long completed = dis.readLong();
+            return completed >= 0 && completed <= chunkLength ? completed : 0;
+        } catch (IOException e) {
+            // 旧版本留下的分块数据文件或损坏的记录，从头下载该分块
+            return 0;
+        }
+    }
+
+    // 记录分块的下载进度，带上文件大小和MD5以便区分文件版本
+    private static void writePartProgress(File partFile, long fileSize, String serverMD5, long completed) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(partFile))) {
+            dos.writeLong(fileSize);
+            dos.writeUTF(serverMD5);
+            dos.writeLong(completed);
+        }
+    }
+
+    /**
+     * 范围下载中断时抛出，携带已经写入目标文件的字节数，重试时从这里继续
+     */
+    private static class PartialDownloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long completed;
+
+        PartialDownloadException(String message, long completed) {
+            super(message);
+            this.completed = completed;
+        }
+    }
+
+    /**
+     * 查询云盘文件的元数据
+     *
+     * @param remoteFilePath 云盘文件路径
+     * @return 文件元数据；文件不存在或查询失败时返回 null
+     */
+    public FileStat statFile(String remoteFilePath) {
+        try {
+            ByteBuffer request = ByteBuffer.allocate(2 + remoteFilePath.length() * 3);
+            FrameCodec.putString(request, remoteFilePath);
+            request.flip();
+
+            AtomicReference<FileStat> stat = new AtomicReference<>();
+            awaitResponse(framedConnection().request(FrameCodec.OP_STAT, request, (header, payload) -> {
+                if (payload.get() != 0) {
+                    stat.set(new FileStat(remoteFilePath, payload.getLong(), payload.getLong(), FrameCodec.getString(payload)));
+                }
+            }));
+            if (stat.get() == null) {
+                System.err.println("云盘文件不存在: " + remoteFilePath);
+            }
+            return stat.get();
+        } catch (IOException e) {
+            System.err.println("获取文件信息失败: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * 获取云盘文件列表
      *
@@ -462,23 +1095,16 @@ public class EasyCloudDiskClient {
         boolean success = false;
 
         while (!success && retryCount < maxRetries) {
-            Socket socket = null;
             try {
                 if (retryCount > 0) {
                     System.out.println("正在尝试重新获取文件列表，第 " + retryCount + " 次重试...");
                     Thread.sleep(2000 * retryCount); // 增加重试间隔
                 }
 
-                socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                socket.setSoTimeout(READ_TIMEOUT);
-                socket.setTcpNoDelay(true);
-
-                try (DataInputStream dis = new DataInputStream(socket.getInputStream());
-                     DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-
+                try (ClientConnectionPool.Connection connection = connectionPool.acquire()) {
                     // 发送列表命令
-                    dos.writeUTF("LIST");
-                    dos.flush();
+                    connection.request("LIST");
+                    DataInputStream dis = connection.response();
 
                     // 接收文件数量
                     int fileCount = dis.readInt();
@@ -491,6 +1117,7 @@ public class EasyCloudDiskClient {
                         fileList.add(new FileInfo(filePath, fileSize));
                     }
 
+                    connection.recycle();
                     success = true;
                 }
             } catch (IOException | InterruptedException e) {
@@ -501,14 +1128,6 @@ public class EasyCloudDiskClient {
                     e.printStackTrace();
                 }
                 fileList.clear();
-            } finally {
-                if (socket != null && !socket.isClosed()) {
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        // 忽略关闭异常
-                    }
-                }
             }
         }
 
@@ -516,19 +1135,145 @@ public class EasyCloudDiskClient {
     }
 
     /**
-     * 批量上传文件
+     * 分页获取云盘文件列表，结果按路径排序
+     *
+     * @param prefix 路径前缀，空字符串表示全部
+     * @param cursor 上一页返回的游标，首页为空字符串
+     * @param limit  每页最多返回的文件数，服务端会限制上限
+     * @return 一页文件列表；出错时返回 null
+     */
+    public FileListPage listFiles(String prefix, String cursor, int limit) {
+        try (ClientConnectionPool.Connection connection = connectionPool.acquire()) {
+            DataOutputStream dos = connection.request("LIST_PAGE");
+            dos.writeUTF(prefix);
+            dos.writeUTF(cursor);
+            dos.writeInt(limit);
+            DataInputStream dis = connection.response();
+
+            List<FileInfo> files = new ArrayList<>();
+            while (dis.readBoolean()) {
+                String filePath = dis.readUTF();
+                long fileSize = dis.readLong();
+                files.add(new FileInfo(filePath, fileSize));
+            }
+            String nextCursor = dis.readUTF();
+            connection.recycle();
+            return new FileListPage(files, nextCursor);
+        } catch (IOException e) {
+            System.err.println("获取文件列表错误: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 批量上传文件：不超过 PACK_MAX_FILE_SIZE 的文件打包连续发送，整批只等待一次确认；
+     * 较大的文件仍逐个发送并等待各自的校验结果
      *
      * @param filePaths 本地文件路径和远程文件路径的映射
      */
     public void batchUpload(List<String[]> filePaths) {
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        List<String[]> packed = new ArrayList<>();
+        List<String[]> sequential = new ArrayList<>();
+        for (String[] pathPair : filePaths) {
+            File localFile = new File(pathPair[0]);
+            if (!localFile.exists() || !localFile.isFile()) {
+                System.err.println("本地文件不存在或不是一个文件: " + pathPair[0]);
+                continue;
+            }
+            (localFile.length() <= PACK_MAX_FILE_SIZE ? packed : sequential).add(pathPair);
+        }
+        if (!packed.isEmpty()) {
+            batchUploadPacked(packed);
+        }
+        if (!sequential.isEmpty()) {
+            batchUploadSequential(sequential);
+        }
+    }
+
+    /**
+     * 打包上传：所有文件连续写出，每项为路径、大小、内容和MD5，最后一次读取所有文件的校验结果
+     */
+    private void batchUploadPacked(List<String[]> filePaths) {
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), PACK_BUFFER_SIZE));
+             BufferPool.Lease lease = buffers.acquire(tuning.chunkSizeFor(PACK_MAX_FILE_SIZE))) {
+
+            socket.setSoTimeout(READ_TIMEOUT * 2); // 批量操作需要更长的超时时间
+
+            writeCommand(dos, "BATCH_PACK");
+            dos.writeInt(filePaths.size());
+            CompressionCodec codec = null;
+            if (compressionEnabled) {
+                dos.flush();
+                codec = acceptCompression(dis);
+            }
+
+            byte[] buffer = lease.array();
+            for (String[] pathPair : filePaths) {
+                File localFile = new File(pathPair[0]);
+                long fileSize = localFile.length();
+                dos.writeUTF(pathPair[1]);
+                dos.writeLong(fileSize);
+
+                // 大小已经发出，必须恰好发送这么多字节，文件在此期间变化时不能让数据流错位
+                MessageDigest md = MD5Util.newMD5();
+                CompressedOutputStream compressed = codec != null ? new CompressedOutputStream(dos, codec) : null;
+                OutputStream content = compressed != null ? compressed : dos;
+                try (DigestInputStream fis = new DigestInputStream(new FileInputStream(localFile), md)) {
+                    long remaining = fileSize;
+                    while (remaining > 0) {
+                        int bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new EOFException("文件在上传过程中被截断: " + pathPair[0]);
+                        }
+                        content.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                }
+                if (compressed != null) {
+                    compressed.finish();
+                }
+                dos.writeUTF(MD5Util.toHex(md.digest()));
+            }
+            dos.flush();
+            if (codec != null) {
+                codec.close();
+            }
+
+            // 汇总确认
+            int fileCount = dis.readInt();
+            if (fileCount != filePaths.size()) {
+                throw new IOException("打包上传确认的文件数不匹配: 期望 " + filePaths.size() + "，实际 " + fileCount);
+            }
+            int succeeded = 0;
+            for (String[] pathPair : filePaths) {
+                if (dis.readBoolean()) {
+                    succeeded++;
+                } else {
+                    System.err.println("文件上传失败，MD5校验不匹配: " + pathPair[0]);
+                }
+            }
+            System.out.println("打包上传完成: " + succeeded + "/" + fileCount + " 个文件校验成功");
+
+        } catch (IOException e) {
+            System.err.println("打包上传文件错误: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 逐个上传文件，每个文件等待服务端的MD5校验结果后再发送下一个
+     */
+    private void batchUploadSequential(List<String[]> filePaths) {
+        try (Socket socket = tuning.connect(SERVER_ADDRESS, SERVER_PORT, CONNECTION_TIMEOUT);
              DataInputStream dis = new DataInputStream(socket.getInputStream());
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
 
             socket.setSoTimeout(READ_TIMEOUT * 2); // 批量操作需要更长的超时时间
 
-            // 发送批量上传命令
-            dos.writeUTF("BATCH_UPLOAD");
+            // 发送批量上传命令，每个文件的MD5在内容之后发送
+            dos.writeUTF("BATCH_UPLOAD_STREAM");
             dos.writeInt(filePaths.size());
 
             for (String[] pathPair : filePaths) {
@@ -536,28 +1281,23 @@ public class EasyCloudDiskClient {
                 String remotePath = pathPair[1];
 
                 File localFile = new File(localPath);
-                if (!localFile.exists() || !localFile.isFile()) {
-                    System.err.println("本地文件不存在或不是一个文件: " + localPath);
-                    continue;
-                }
 
                 // 发送文件信息
                 dos.writeUTF(remotePath);
                 dos.writeLong(localFile.length());
 
-                // 计算并发送文件MD5
-                String md5 = MD5Util.calculateMD5(localPath);
-                dos.writeUTF(md5);
-
-                // 发送文件内容
-                try (FileInputStream fis = new FileInputStream(localFile)) {
-                    byte[] buffer = new byte[BUFFER_SIZE];
+                // 发送文件内容，边读边计算MD5，最后发送MD5
+                MessageDigest md = MD5Util.newMD5();
+                try (DigestInputStream fis = new DigestInputStream(new FileInputStream(localFile), md);
+                     BufferPool.Lease lease = buffers.acquire(tuning.chunkSizeFor(localFile.length()))) {
+                    byte[] buffer = lease.array();
                     int bytesRead;
 
                     while ((bytesRead = fis.read(buffer)) != -1) {
                         dos.write(buffer, 0, bytesRead);
                     }
                 }
+                dos.writeUTF(MD5Util.toHex(md.digest()));
 
                 // 接收MD5校验结果
                 boolean md5Match = dis.readBoolean();
@@ -580,62 +1320,114 @@ public class EasyCloudDiskClient {
      * @param filePaths 远程文件路径和本地文件路径的映射
      */
     public void batchDownload(List<String[]> filePaths) {
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             DataInputStream dis = new DataInputStream(socket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+        batchDownload(filePaths, 1);
+    }
 
-            socket.setSoTimeout(READ_TIMEOUT * 2); // 批量操作需要更长的超时时间
+    /**
+     * 流水线批量下载文件：每个连接上一次发出所有路径，服务端先回清单再连续发送文件内容，
+     * 不再每个文件等待一次往返
+     *
+     * @param filePaths   远程文件路径和本地文件路径的映射
+     * @param connections 并行使用的连接数，文件轮流分配到各连接
+     */
+    public void batchDownload(List<String[]> filePaths, int connections) {
+        int partCount = Math.max(1, Math.min(connections, filePaths.size()));
+        List<List<String[]>> parts = new ArrayList<>();
+        for (int i = 0; i < partCount; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (int i = 0; i < filePaths.size(); i++) {
+            parts.get(i % partCount).add(filePaths.get(i));
+        }
 
-            // 发送批量下载命令
-            dos.writeUTF("BATCH_DOWNLOAD");
-            dos.writeInt(filePaths.size());
+        if (partCount == 1) {
+            downloadBatchPart(parts.get(0));
+            return;
+        }
 
-            for (String[] pathPair : filePaths) {
-                String remotePath = pathPair[0];
-                String localPath = pathPair[1];
+        ExecutorService executor = Executors.newFixedThreadPool(partCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<String[]> part : parts) {
+                futures.add(executor.submit(() -> downloadBatchPart(part)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("等待批量下载完成时被中断");
+        } catch (ExecutionException e) {
+            System.err.println("批量下载文件错误: " + e.getCause().getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
 
-                // 发送文件路径
-                dos.writeUTF(remotePath);
+    // 在一个连接上通过 BATCH_GET 下载一组文件
+    private void downloadBatchPart(List<String[]> filePaths) {
+        try (ClientConnectionPool.Connection connection = connectionPool.acquire();
+             BufferPool.Lease lease = buffers.acquire(tuning.chunkSizeFor(Long.MAX_VALUE))) {
+            // 一次发送所有路径
+            DataOutputStream dos = request(connection, "BATCH_GET");
+            dos.writeInt(filePaths.size());
+            for (String[] pathPair : filePaths) {
+                dos.writeUTF(pathPair[0]);
+            }
+            DataInputStream dis = connection.response();
+            CompressionCodec codec = acceptCompression(dis);
+
+            // 读取清单
+            int fileCount = dis.readInt();
+            long[] sizes = new long[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                sizes[i] = dis.readBoolean() ? dis.readLong() : -1;
+                if (sizes[i] < 0) {
+                    System.err.println("云盘文件不存在: " + filePaths.get(i)[0]);
+                }
+            }
 
-                // 检查文件是否存在
-                boolean fileExists = dis.readBoolean();
-                if (!fileExists) {
-                    System.err.println("云盘文件不存在: " + remotePath);
+            byte[] buffer = lease.array();
+            for (int i = 0; i < fileCount; i++) {
+                if (sizes[i] < 0) {
                     continue;
                 }
-
-                // 获取文件大小和MD5
-                long fileSize = dis.readLong();
-                String serverMD5 = dis.readUTF();
+                String remotePath = filePaths.get(i)[0];
+                String localPath = filePaths.get(i)[1];
 
                 // 创建目录（如果需要）
                 File localFile = new File(localPath);
                 localFile.getParentFile().mkdirs();
 
-                // 接收文件内容
-                try (FileOutputStream fos = new FileOutputStream(localFile)) {
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int bytesRead;
-                    long totalBytesRead = 0;
-
-                    while (totalBytesRead < fileSize) {
-                        bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead));
-                        if (bytesRead == -1) break;
-
+                // 接收文件内容，边写边计算MD5，内容之后是服务端的MD5
+                MessageDigest md = MD5Util.newMD5();
+                DataInputStream content = contentInput(dis, codec);
+                try (DigestOutputStream fos = new DigestOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(localFile)), md)) {
+                    long remaining = sizes[i];
+                    while (remaining > 0) {
+                        int bytesRead = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new EOFException("服务端提前关闭连接: " + remotePath);
+                        }
                         fos.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
+                        remaining -= bytesRead;
                     }
                 }
+                String serverMD5 = dis.readUTF();
 
                 // 验证MD5
-                String clientMD5 = MD5Util.calculateMD5(localPath);
+                String clientMD5 = MD5Util.toHex(md.digest());
                 if (serverMD5.equals(clientMD5)) {
                     System.out.println("文件下载成功: " + remotePath + " -> " + localPath);
                 } else {
                     System.err.println("文件下载失败，MD5校验不匹配: " + remotePath);
                 }
             }
-
+            if (codec != null) {
+                codec.close();
+            }
+            connection.recycle();
         } catch (IOException e) {
             System.err.println("批量下载文件错误: " + e.getMessage());
             e.printStackTrace();
@@ -658,6 +1450,67 @@ public class EasyCloudDiskClient {
         return SERVER_PORT;
     }
 
+    /**
+     * 文件元数据，由 STAT 命令返回
+     */
+    public static class FileStat {
+        private final String filePath;
+        private final long fileSize;
+        private final long lastModified;
+        private final String md5;
+
+        public FileStat(String filePath, long fileSize, long lastModified, String md5) {
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getMd5() {
+            return md5;
+        }
+    }
+
+    /**
+     * 文件列表的一页，由 LIST_PAGE 命令返回
+     */
+    public static class FileListPage {
+        private final List<FileInfo> files;
+        private final String nextCursor;
+
+        public FileListPage(List<FileInfo> files, String nextCursor) {
+            this.files = files;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<FileInfo> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return 下一页的游标；没有更多文件时为空字符串
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean hasMore() {
+            return !nextCursor.isEmpty();
+        }
+    }
+
     /**
      * 文件信息类
      */
@@ -1,170 +1,1088 @@
+import util.AsyncLog;
+import util.BufferPool;
+import util.ChunkIndex;
+import util.CompressedInputStream;
+import util.CompressedOutputStream;
+import util.CompressionCodec;
+import util.ContentCache;
+import util.DeltaSync;
+import util.DigestCache;
+import util.DirectoryIndex;
+import util.MD5Util;
+import util.MappedRegionCache;
+import util.TransferTuning;
+
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class EasyCloudDiskServer {
-    private static final int PORT = 8888;
     private static final String CLOUD_DIR = "src/main/java/cloud/";
-    private static final int BUFFER_SIZE = 4096;
-    private ExecutorService executorService;
+    private static final String UPLOAD_JOURNAL_DIR = "src/main/java/.upload-journal/";
+    private static final long JOURNAL_CHECKPOINT = 4L * 1024 * 1024; // 每写入这么多字节记录一次上传进度
+    private static final long JOURNAL_MAX_AGE = 7L * 24 * 60 * 60 * 1000; // 超过这么久（毫秒）没有更新的上传日志在启动时删除
+    private static final long MULTI_UPLOAD_IDLE_TIMEOUT = 10 * 60 * 1000; // 多线程上传会话空闲超过这么久（毫秒）后丢弃
+    private static final String KEEP_ALIVE_COMMAND = "REQ"; // 长连接请求的前缀命令
+    private static final int MAX_FRAMES_IN_FLIGHT = 16; // 每个分帧连接同时处理的请求数上限
+    private static final int LIST_PAGE_MAX = 1000; // LIST_PAGE 每页最多返回的文件数
+    private static final int LIST_FLUSH_BYTES = 64 * 1024; // 文件列表攒够这么多字节才发送一次
+    private static final int BATCH_MAX_FILES = 100_000; // BATCH_GET 单次请求的文件数上限
+    private static final int BATCH_PREFETCH = 8; // BATCH_GET 发送当前文件时提前计算MD5的文件数
+    private static final int BATCH_SMALL_FILE = 64 * 1024; // 不超过这个大小的文件经缓冲区合并发送
+    private static final int CHUNK_UPLOAD_MAX_CHUNKS = 1 << 20; // CHUNK_UPLOAD 单个文件的分块数上限
+    private static final long BUFFER_POOL_BYTES_PER_CLASS = 16L * 1024 * 1024; // 缓冲区池每个大小级别最多保留的空闲字节数
+    private static final long MAPPED_MIN_FILE = 1024 * 1024; // 不小于这个大小的文件的范围请求从映射区域发送
+    private static final int CONTENT_CACHE_MAX_FILE = 4 * 1024 * 1024; // 内容缓存只保存不超过这个大小的文件
+    private final ServerConfig config;
+    private final TransferTuning tuning; // 读写分块大小、套接字缓冲区和刷新策略
+    private final ExecutorService executorService;
+    // 分帧连接上的请求和批量下载的MD5预取在虚拟线程中执行，提交任务的工作线程不会因为等待同一个线程池而死锁
+    private final ExecutorService taskExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore transferPermits; // 限制同时进行的文件操作数，为 null 时不限制
+    private final ConcurrentHashMap<String, MultiUploadSession> multiUploads = new ConcurrentHashMap<>();
+    private final UploadJournal uploadJournal = new UploadJournal(UPLOAD_JOURNAL_DIR);
+    private final DigestCache digestCache;
+    private final DirectoryIndex directoryIndex = new DirectoryIndex(Paths.get(CLOUD_DIR));
+    private final ChunkIndex chunkIndex;
+    // 传输路径共用的缓冲区：经流读写时用堆缓冲区，经通道读写时用直接缓冲区
+    private final BufferPool heapBuffers = new BufferPool("堆缓冲区", false, BUFFER_POOL_BYTES_PER_CLASS);
+    private final BufferPool directBuffers = new BufferPool("直接缓冲区", true, BUFFER_POOL_BYTES_PER_CLASS);
+    private final MappedRegionCache mappedRegions; // 范围请求共用的文件映射，为 null 时不使用
+    private final ContentCache contentCache; // 热点小文件的内容，为 null 时不使用
+    private final ServerMetrics metrics;
+    private volatile NioServerReactor reactor; // NIO 模式下用于回收长连接，阻塞模式下为 null
 
     public EasyCloudDiskServer() {
-        this.executorService = Executors.newFixedThreadPool(10);
+        this(ServerConfig.fromSystemProperties());
+    }
+
+    public EasyCloudDiskServer(ServerConfig config) {
+        this.config = config;
+        this.tuning = config.createTransferTuning();
+        this.executorService = createExecutor(config);
+        this.transferPermits = config.getMaxConcurrentTransfers() > 0
+                ? new Semaphore(config.getMaxConcurrentTransfers(), true)
+                : null;
+        this.digestCache = new DigestCache(config.getDigestCacheEntries(),
+                config.getDigestIndexFile().isEmpty() ? null : Paths.get(config.getDigestIndexFile()));
+        this.chunkIndex = new ChunkIndex(config.getChunkIndexFile().isEmpty() ? null : Paths.get(config.getChunkIndexFile()));
+        this.mappedRegions = config.getMappedCacheBytes() > 0
+                ? new MappedRegionCache(config.getMappedCacheBytes(), MappedRegionCache.DEFAULT_REGION_SIZE)
+                : null;
+        this.contentCache = config.getContentCacheBytes() > 0
+                ? new ContentCache(config.getContentCacheBytes(), CONTENT_CACHE_MAX_FILE)
+                : null;
+        this.metrics = new ServerMetrics(executorService, transferPermits, digestCache, mappedRegions,
+                contentCache, heapBuffers, directBuffers);
+        // 清理放弃的上传留下的日志和临时文件
+        uploadJournal.prune(JOURNAL_MAX_AGE);
+        // 退出时保存MD5索引和分块索引，重启后热点文件不需要重新计算，已上传的文件仍可用于去重
+        Runtime.getRuntime().addShutdownHook(new Thread(digestCache::save));
+        Runtime.getRuntime().addShutdownHook(new Thread(chunkIndex::save));
+        try {
+            directoryIndex.start();
+        } catch (IOException e) {
+            AsyncLog.warn("建立目录索引失败: " + e.getMessage());
+        }
+    }
+
+    // 根据配置创建工作线程池
+    private static ExecutorService createExecutor(ServerConfig config) {
+        switch (config.getExecutorMode()) {
+            case VIRTUAL:
+                // 虚拟线程阻塞在套接字或文件 I/O 上时会让出载体线程，连接数不再受线程池大小限制
+                return Executors.newVirtualThreadPerTaskExecutor();
+            case FIXED:
+            default:
+                return Executors.newFixedThreadPool(config.getFixedPoolSize());
+        }
     }
 
     /**
      * 服务端启动
      */
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("服务器已启动，监听端口: " + PORT);
+        if (config.isNioMode()) {
+            startNio();
+            return;
+        }
+        startMetrics();
+
+        // 通过 ServerSocketChannel 接入，使每个连接都带有 SocketChannel，下载时可以走 transferTo 零拷贝
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            // 服务端没有往返时延的样本，只在配置了固定大小时设置缓冲区；接收缓冲区在监听套接字上设置，由接入的连接继承
+            int socketBuffer = tuning.socketBufferSize();
+            if (socketBuffer > 0) {
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+            }
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            AsyncLog.info("服务器已启动，监听端口: " + config.getPort() + "，执行模式: " + config.getExecutorMode());
 
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("客户端已连接: " + clientSocket.getInetAddress());
+                Socket clientSocket = serverChannel.accept().socket();
+                tuning.apply(clientSocket);
+                AsyncLog.debug(() -> "客户端已连接: " + clientSocket.getInetAddress());
 
                 // 处理客户端请求
                 executorService.execute(() -> handleClient(clientSocket));
             }
         } catch (IOException e) {
-            System.err.println("服务器错误: " + e.getMessage());
-            e.printStackTrace();
+            AsyncLog.error("服务器错误: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * 以 NIO 模式启动服务端：Selector 负责接入和读取命令头部，线程池只处理头部已完整的请求
+     */
+    public void startNio() {
+        startMetrics();
+        reactor = new NioServerReactor(config.getPort(), config.getNioReactorCount(), (channel, prefetched) -> {
+            try {
+                // 头部已读完，切回阻塞模式后交给工作线程沿用原有的流式处理逻辑
+                channel.configureBlocking(true);
+                Socket clientSocket = channel.socket();
+                executorService.execute(() -> handleClient(clientSocket, prefetched));
+            } catch (IOException e) {
+                AsyncLog.warn("分发连接失败: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // 忽略关闭异常
+                }
+            }
+        });
+
+        reactor.setSocketBufferSize(tuning.socketBufferSize());
+
+        try {
+            reactor.run();
+        } catch (IOException e) {
+            AsyncLog.error("服务器错误: " + e.getMessage(), e);
+        }
+    }
+
+    // 注册 JMX 指标，配置了端口时开启文本端点
+    private void startMetrics() {
+        metrics.registerMBean(config.getPort());
+        if (config.getMetricsPort() > 0) {
+            try {
+                metrics.startEndpoint(config.getMetricsPort());
+            } catch (IOException e) {
+                AsyncLog.warn("指标端点启动失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 运行指标，同时注册为 JMX MBean
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     private void handleClient(Socket clientSocket) {
-        try (
-                DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())
-        ) {
+        handleClient(clientSocket, null);
+    }
+
+    /**
+     * @param prefetched NIO 模式下 Reactor 已经读取的字节，需要在套接字输入流之前重放；阻塞模式下为 null
+     */
+    private void handleClient(Socket clientSocket, byte[] prefetched) {
+        ByteArrayInputStream replay = prefetched == null ? null : new ByteArrayInputStream(prefetched);
+        boolean handedOff = false;
+        metrics.connectionOpened();
+        try {
+            // 流不放在 try-with-resources 中：关闭流会关闭套接字，而长连接可能要交还给 Reactor
+            DataInputStream dis = new DataInputStream(metrics.countIn(replay == null
+                    ? clientSocket.getInputStream()
+                    : new SequenceInputStream(replay, clientSocket.getInputStream())));
+            DataOutputStream dos = new DataOutputStream(metrics.countOut(clientSocket.getOutputStream()));
+
             // 读取命令
             String command = dis.readUTF();
-            System.out.println("接收到命令: " + command + " 来自: " + clientSocket.getInetAddress());
+            if (KEEP_ALIVE_COMMAND.equals(command)) {
+                handedOff = serveSession(clientSocket, dis, dos, replay);
+            } else if (FrameCodec.PREAMBLE.equals(command)) {
+                // 分帧连接可能长时间空闲，读取循环放到虚拟线程中，不占用固定线程池的工作线程
+                taskExecutor.execute(() -> serveFramedConnection(clientSocket, dis));
+                handedOff = true;
+            } else {
+                // 原有协议：一个连接只处理一个命令
+                AsyncLog.debug(() -> "接收到命令: " + command + " 来自: " + clientSocket.getInetAddress());
+                dispatchCommand(command, dis, dos, clientSocket.getChannel());
+            }
+        } catch (EOFException e) {
+            AsyncLog.debug(() -> "客户端断开连接: " + clientSocket.getInetAddress());
+        } catch (IOException e) {
+            AsyncLog.error("处理客户端请求错误: " + e.getMessage() + " 客户端: " + clientSocket.getInetAddress(), e);
+        } finally {
+            metrics.connectionClosed();
+            try {
+                if (!handedOff && !clientSocket.isClosed()) {
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                AsyncLog.error("关闭连接失败: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 处理长连接上的一个请求，调用前已经读取了它的 REQ 前缀
+     * <p>
+     * 每个请求为 REQ + int 请求ID + 原有命令及其参数，服务端先回写请求ID，再按原有格式响应，之后连接保持打开。
+     * 客户端可以不等响应连续发送多个请求，响应按请求顺序返回。请求处理完后工作线程不等待下一个请求：
+     * 阻塞模式下由 taskExecutor 的虚拟线程等待，空闲超过 keepAliveTimeout 后关闭；NIO 模式下连接交还给 Reactor。
+     * 空闲的长连接因此不占用固定线程池的工作线程。
+     *
+     * @param replay NIO 模式下 Reactor 预读的字节，其中可能已经包含后续请求
+     * @return 连接已交给 Reactor 或虚拟线程时返回 true，调用方不能再关闭它
+     */
+    private boolean serveSession(Socket clientSocket, DataInputStream dis, DataOutputStream dos,
+                                 ByteArrayInputStream replay) throws IOException {
+        int requestId = dis.readInt();
+        String command = dis.readUTF();
+        AsyncLog.debug(() -> "接收到命令: " + command + " (请求 " + requestId + ") 来自: " + clientSocket.getInetAddress());
+
+        dos.writeInt(requestId);
+        if (!dispatchCommand(command, dis, dos, clientSocket.getChannel())) {
+            // 无法解析未知命令的参数，连接上后续的数据都不可信
+            return false;
+        }
+        dos.flush();
+
+        if (reactor != null) {
+            byte[] leftover = replay == null ? new byte[0] : replay.readAllBytes();
+            reactor.resume(clientSocket.getChannel(), leftover);
+            return true;
+        }
+        taskExecutor.execute(() -> awaitNextRequest(clientSocket, dis, dos));
+        return true;
+    }
+
+    // 在虚拟线程中等待长连接上的下一个请求，读到 REQ 前缀后交回工作线程处理；空闲超时或出错时关闭连接
+    private void awaitNextRequest(Socket clientSocket, DataInputStream dis, DataOutputStream dos) {
+        boolean handedOff = false;
+        try {
+            clientSocket.setSoTimeout(config.getKeepAliveTimeout());
+            String next = dis.readUTF();
+            clientSocket.setSoTimeout(0);
+            if (KEEP_ALIVE_COMMAND.equals(next)) {
+                executorService.execute(() -> resumeSession(clientSocket, dis, dos));
+                handedOff = true;
+            } else {
+                AsyncLog.warn("长连接上收到非法请求: " + next + " 客户端: " + clientSocket.getInetAddress());
+            }
+        } catch (SocketTimeoutException e) {
+            AsyncLog.debug(() -> "长连接空闲超时，关闭连接: " + clientSocket.getInetAddress());
+        } catch (EOFException e) {
+            AsyncLog.debug(() -> "客户端关闭长连接: " + clientSocket.getInetAddress());
+        } catch (IOException e) {
+            AsyncLog.warn("等待长连接请求失败: " + e.getMessage() + " 客户端: " + clientSocket.getInetAddress());
+        } finally {
+            if (!handedOff) {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    AsyncLog.error("关闭连接失败: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    // 在工作线程中处理长连接上已经读到 REQ 前缀的请求
+    private void resumeSession(Socket clientSocket, DataInputStream dis, DataOutputStream dos) {
+        boolean handedOff = false;
+        metrics.connectionOpened();
+        try {
+            handedOff = serveSession(clientSocket, dis, dos, null);
+        } catch (EOFException e) {
+            AsyncLog.debug(() -> "客户端断开连接: " + clientSocket.getInetAddress());
+        } catch (IOException e) {
+            AsyncLog.error("处理客户端请求错误: " + e.getMessage() + " 客户端: " + clientSocket.getInetAddress(), e);
+        } finally {
+            metrics.connectionClosed();
+            try {
+                if (!handedOff && !clientSocket.isClosed()) {
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                AsyncLog.error("关闭连接失败: " + e.getMessage(), e);
+            }
+        }
+    }
 
+    /**
+     * 按命令分发到对应的处理方法，配置了并发上限时先获取许可
+     *
+     * @param channel 连接对应的 SocketChannel，用于零拷贝发送；没有时为 null
+     * @return 命令未知时返回 false
+     */
+    private boolean dispatchCommand(String command, DataInputStream dis, DataOutputStream dos, SocketChannel channel) throws IOException {
+        long start = System.nanoTime();
+        boolean known = true;
+        boolean failed = true;
+        acquireTransferPermit();
+        try {
             switch (command) {
                 case "UPLOAD":
-                    handleUpload(dis, dos);
+                    handleUpload(dis, dos, null, false);
+                    break;
+                case "UPLOAD_STREAM":
+                    handleUpload(dis, dos, null, true);
                     break;
                 case "DOWNLOAD":
-                    handleDownload(dis, dos);
+                    handleDownload(dis, dos, channel, null);
+                    break;
+                case "COMPRESS":
+                    handleCompressed(dis, dos, channel);
                     break;
                 case "LIST":
                     handleList(dos);
                     break;
+                case "LIST_PAGE":
+                    handleListPage(dis, dos);
+                    break;
                 case "UPLOAD_MULTI":
                     handleMultiUpload(dis, dos);
                     break;
                 case "BATCH_UPLOAD":
-                    handleBatchUpload(dis, dos);
+                    handleBatchUpload(dis, dos, false);
+                    break;
+                case "BATCH_UPLOAD_STREAM":
+                    handleBatchUpload(dis, dos, true);
+                    break;
+                case "BATCH_PACK":
+                    handleBatchPack(dis, dos, null);
+                    break;
+                case "CHUNK_UPLOAD":
+                    handleChunkUpload(dis, dos);
+                    break;
+                case "DELTA_UPLOAD":
+                    handleDeltaUpload(dis, dos);
                     break;
                 case "BATCH_DOWNLOAD":
-                    handleBatchDownload(dis, dos);
+                    handleBatchDownload(dis, dos, channel);
+                    break;
+                case "BATCH_GET":
+                    handleBatchGet(dis, dos, channel, null);
                     break;
                 case "RANGE_DOWNLOAD":
-                    handleRangeDownload(dis, dos);
+                    handleRangeDownload(dis, dos, channel);
+                    break;
+                case "RANGE_UPLOAD_INIT":
+                    handleRangeUploadInit(dis, dos);
+                    break;
+                case "RANGE_UPLOAD":
+                    handleRangeUpload(dis, dos);
+                    break;
+                case "RANGE_UPLOAD_FINISH":
+                    handleRangeUploadFinish(dis, dos);
+                    break;
+                case "UPLOAD_QUERY":
+                    handleUploadQuery(dis, dos);
+                    break;
+                case "UPLOAD_RESUME":
+                    handleUploadResume(dis, dos);
+                    break;
+                case "UPLOAD_RESUME_FINISH":
+                    handleUploadResumeFinish(dis, dos);
+                    break;
+                case "STAT":
+                    handleStat(dis, dos);
                     break;
                 default:
-                    System.out.println("未知命令: " + command);
+                    AsyncLog.warn("未知命令: " + command);
+                    known = false;
+                    return false;
+            }
+            failed = false;
+            return true;
+        } finally {
+            releaseTransferPermit();
+            // 未知命令不计入，避免任意字符串撑大统计表
+            if (known) {
+                metrics.recordCommand(command, System.nanoTime() - start, failed);
+            }
+        }
+    }
+
+    // 配置了并发上限时获取一个传输许可
+    private void acquireTransferPermit() throws InterruptedIOException {
+        if (transferPermits != null) {
+            try {
+                // Semaphore 基于 AQS 实现，虚拟线程在这里等待不会占住载体线程
+                transferPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待传输许可时被中断");
             }
+        }
+    }
+
+    private void releaseTransferPermit() {
+        if (transferPermits != null) {
+            transferPermits.release();
+        }
+    }
+
+    // 在虚拟线程中处理分帧连接，连接结束后负责关闭
+    private void serveFramedConnection(Socket clientSocket, DataInputStream dis) {
+        metrics.connectionOpened();
+        try {
+            serveFramed(clientSocket, dis);
         } catch (EOFException e) {
-            System.err.println("客户端断开连接: " + clientSocket.getInetAddress());
+            AsyncLog.debug(() -> "客户端断开分帧连接: " + clientSocket.getInetAddress());
         } catch (IOException e) {
-            System.err.println("处理客户端请求错误: " + e.getMessage() + " 客户端: " + clientSocket.getInetAddress());
-            e.printStackTrace();
+            AsyncLog.error("处理分帧连接错误: " + e.getMessage() + " 客户端: " + clientSocket.getInetAddress(), e);
         } finally {
+            metrics.connectionClosed();
             try {
-                if (!clientSocket.isClosed()) {
-                    clientSocket.close();
-                }
+                clientSocket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                AsyncLog.error("关闭连接失败: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 处理分帧连接，调用前已经读取了 FRAMED 前缀，帧格式见 {@link FrameCodec}
+     * <p>
+     * 在 taskExecutor 的虚拟线程中运行，空闲的分帧连接不占用工作线程。当前线程只负责读取请求帧，
+     * 每个请求交给 taskExecutor 并行处理，响应帧通过共享的 Writer 交错写回。
+     * 每个连接同时处理的请求数超过 MAX_FRAMES_IN_FLIGHT 时暂停读取，形成背压。请求处理中的文件错误
+     * 以错误帧返回，连接继续可用。
+     */
+    private void serveFramed(Socket clientSocket, DataInputStream dis) throws IOException {
+        AsyncLog.debug(() -> "分帧连接已建立: " + clientSocket.getInetAddress());
+        FrameCodec.Writer writer = new FrameCodec.Writer(clientSocket.getChannel());
+        Semaphore inFlight = new Semaphore(MAX_FRAMES_IN_FLIGHT);
+        byte[] headerBytes = new byte[FrameCodec.HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes);
+        FrameCodec.Header header = new FrameCodec.Header();
+
+        try {
+            while (true) {
+                // 只在帧边界等待空闲超时，读到帧的第一个字节之前超时不会丢失数据
+                clientSocket.setSoTimeout(config.getKeepAliveTimeout());
+                int first;
+                try {
+                    first = dis.read();
+                } catch (SocketTimeoutException e) {
+                    if (inFlight.availablePermits() < MAX_FRAMES_IN_FLIGHT) {
+                        continue;
+                    }
+                    AsyncLog.debug(() -> "分帧连接空闲超时，关闭连接: " + clientSocket.getInetAddress());
+                    return;
+                }
+                if (first == -1) {
+                    AsyncLog.debug(() -> "客户端关闭分帧连接: " + clientSocket.getInetAddress());
+                    return;
+                }
+                clientSocket.setSoTimeout(0);
+
+                headerBytes[0] = (byte) first;
+                dis.readFully(headerBytes, 1, FrameCodec.HEADER_SIZE - 1);
+                headerBuffer.clear();
+                FrameCodec.decodeHeader(headerBuffer, header);
+                BufferPool.Lease payload = heapBuffers.acquire(header.length);
+                try {
+                    dis.readFully(payload.array(), 0, header.length);
+                    inFlight.acquire();
+                } catch (IOException e) {
+                    payload.close();
+                    throw e;
+                } catch (InterruptedException e) {
+                    payload.close();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待分帧请求处理时被中断");
+                }
+                byte opcode = header.opcode;
+                int requestId = header.requestId;
+                taskExecutor.execute(() -> {
+                    try {
+                        handleFrame(opcode, requestId, payload.buffer(), writer, clientSocket);
+                    } finally {
+                        payload.close();
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            // 等待已经接收的请求处理完再由 serveFramedConnection 关闭连接
+            inFlight.acquireUninterruptibly(MAX_FRAMES_IN_FLIGHT);
+        }
+    }
+
+    // 处理一个请求帧；写出响应失败说明连接已不可用，关闭连接让读取线程退出
+    private void handleFrame(byte opcode, int requestId, ByteBuffer request, FrameCodec.Writer writer, Socket clientSocket) {
+        long start = System.nanoTime();
+        String command = null;
+        boolean failed = true;
+        try {
+            acquireTransferPermit();
+            try {
+                switch (opcode) {
+                    case FrameCodec.OP_STAT:
+                        command = "FRAMED_STAT";
+                        handleFramedStat(requestId, request, writer);
+                        break;
+                    case FrameCodec.OP_RANGE_DOWNLOAD:
+                        command = "FRAMED_RANGE_DOWNLOAD";
+                        handleFramedRangeDownload(requestId, request, writer);
+                        break;
+                    default:
+                        writeFrameError(writer, opcode, requestId, "未知操作码: " + opcode);
+                }
+                failed = false;
+            } catch (BufferUnderflowException e) {
+                writeFrameError(writer, opcode, requestId, "请求格式错误");
+            } catch (RuntimeException e) {
+                // 负载中的非法参数等：仍然回复错误帧，否则客户端会一直等待这个请求的响应
+                AsyncLog.warn("分帧请求处理失败: " + e + " 客户端: " + clientSocket.getInetAddress());
+                writeFrameError(writer, opcode, requestId, "请求处理失败: " + e.getClass().getSimpleName());
+            } finally {
+                releaseTransferPermit();
+                if (command != null) {
+                    metrics.recordCommand(command, System.nanoTime() - start, failed);
+                }
+            }
+        } catch (IOException e) {
+            AsyncLog.warn("分帧请求处理错误: " + e.getMessage() + " 客户端: " + clientSocket.getInetAddress());
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+                // 忽略关闭异常
+            }
+        }
+    }
+
+    // 分帧的 STAT：负载为路径，响应为 boolean 是否存在，存在时接着是大小、修改时间和MD5
+    private void handleFramedStat(int requestId, ByteBuffer request, FrameCodec.Writer writer) throws IOException {
+        String filePath = FrameCodec.getString(request);
+        File file = new File(CLOUD_DIR + filePath);
+
+        ByteBuffer response = ByteBuffer.allocate(64);
+        if (file.isFile()) {
+            String md5 = cachedMD5(file);
+            response.put((byte) 1).putLong(file.length()).putLong(file.lastModified());
+            FrameCodec.putString(response, md5);
+        } else {
+            response.put((byte) 0);
+        }
+        response.flip();
+        metrics.addBytesOut(FrameCodec.HEADER_SIZE + response.remaining());
+        writer.write(FrameCodec.OP_STAT, FrameCodec.FLAG_RESPONSE, requestId, response);
+    }
+
+    // 分帧的范围下载：负载为路径、起始位置和长度，文件内容按 DATA_FRAME_SIZE 切成多帧发送
+    private void handleFramedRangeDownload(int requestId, ByteBuffer request, FrameCodec.Writer writer) throws IOException {
+        String filePath = FrameCodec.getString(request);
+        long startPos = request.getLong();
+        long length = request.getLong();
+        File file = new File(CLOUD_DIR + filePath);
+
+        if (!file.isFile()) {
+            writeFrameError(writer, FrameCodec.OP_RANGE_DOWNLOAD, requestId, "文件不存在: " + filePath);
+            return;
+        }
+        long fileSize = file.length();
+        if (startPos < 0 || length < 0 || startPos + length > fileSize) {
+            writeFrameError(writer, FrameCodec.OP_RANGE_DOWNLOAD, requestId,
+                    "范围无效: " + startPos + "+" + length + "，文件大小 " + fileSize);
+            return;
+        }
+
+        // 帧头已经声明了长度，发送途中文件被截断只能关闭连接，由 writeFileRegion 或映射区域抛出异常
+        // 帧直接写入 SocketChannel，不经过计数的输出流，发送的字节和耗时在这里记入
+        long start = System.nanoTime();
+        try {
+            if (useMappedRegions(fileSize, length)) {
+                sendFramedMapped(file, startPos, length, requestId, writer);
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                     BufferPool.Lease lease = directBuffers.acquire(tuning.chunkSizeFor(length))) {
+                    ByteBuffer buffer = lease.buffer();
+                    long sent = 0;
+                    do {
+                        int frameLength = (int) Math.min(FrameCodec.DATA_FRAME_SIZE, length - sent);
+                        short flags = sent + frameLength < length
+                                ? FrameCodec.FLAG_RESPONSE | FrameCodec.FLAG_MORE
+                                : FrameCodec.FLAG_RESPONSE;
+                        writer.writeFileRegion(FrameCodec.OP_RANGE_DOWNLOAD, flags, requestId, fileChannel,
+                                startPos + sent, frameLength, config.isZeroCopy(), buffer);
+                        sent += frameLength;
+                        metrics.addBytesOut(FrameCodec.HEADER_SIZE + frameLength);
+                    } while (sent < length);
+                }
+            }
+        } finally {
+            metrics.addTime(ServerMetrics.Phase.NETWORK, System.nanoTime() - start);
+        }
+        AsyncLog.debug(() -> "分帧范围下载完成: " + filePath + ", 位置: " + startPos + ", 长度: " + length);
+    }
+
+    // 从共用的映射区域切出各帧的内容，跨区域的帧在区域边界处截短
+    private void sendFramedMapped(File file, long startPos, long length, int requestId, FrameCodec.Writer writer) throws IOException {
+        long sent = 0;
+        while (sent < length) {
+            try (MappedRegionCache.Region region = mappedRegions.acquire(file, startPos + sent)) {
+                while (sent < length && startPos + sent < region.end()) {
+                    ByteBuffer frame = region.slice(startPos + sent, Math.min(FrameCodec.DATA_FRAME_SIZE, length - sent));
+                    int frameLength = frame.remaining();
+                    short flags = sent + frameLength < length
+                            ? FrameCodec.FLAG_RESPONSE | FrameCodec.FLAG_MORE
+                            : FrameCodec.FLAG_RESPONSE;
+                    writer.write(FrameCodec.OP_RANGE_DOWNLOAD, flags, requestId, frame);
+                    sent += frameLength;
+                    metrics.addBytesOut(FrameCodec.HEADER_SIZE + frameLength);
+                }
             }
         }
     }
 
-    // 处理单线程文件上传
-    private void handleUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+    private void writeFrameError(FrameCodec.Writer writer, byte opcode, int requestId, String message) throws IOException {
+        ByteBuffer response = ByteBuffer.allocate(2 + message.length() * 3);
+        FrameCodec.putString(response, message);
+        response.flip();
+        metrics.addBytesOut(FrameCodec.HEADER_SIZE + response.remaining());
+        writer.write(opcode, (short) (FrameCodec.FLAG_RESPONSE | FrameCodec.FLAG_ERROR), requestId, response);
+    }
+
+    /**
+     * 处理带传输压缩的命令：COMPRESS + 客户端支持的算法列表 + 原有的命令
+     * <p>
+     * 服务端先回复选定的算法（没有共同支持的算法时为空字符串），之后按原命令的格式收发，
+     * 只是文件内容换成 {@link CompressedOutputStream} 的分块格式，MD5 等其他字段不变。
+     */
+    private void handleCompressed(DataInputStream dis, DataOutputStream dos, SocketChannel channel) throws IOException {
+        String offered = dis.readUTF();
+        String command = dis.readUTF();
+        CompressionCodec codec = CompressionCodec.negotiate(offered);
+        try {
+            dos.writeUTF(codec != null ? codec.name() : "");
+            dos.flush();
+            switch (command) {
+                case "UPLOAD":
+                    handleUpload(dis, dos, codec, false);
+                    break;
+                case "UPLOAD_STREAM":
+                    handleUpload(dis, dos, codec, true);
+                    break;
+                case "DOWNLOAD":
+                    handleDownload(dis, dos, channel, codec);
+                    break;
+                case "BATCH_PACK":
+                    handleBatchPack(dis, dos, codec);
+                    break;
+                case "BATCH_GET":
+                    handleBatchGet(dis, dos, channel, codec);
+                    break;
+                default:
+                    throw new IOException("命令不支持传输压缩: " + command);
+            }
+        } finally {
+            if (codec != null) {
+                codec.close();
+            }
+        }
+    }
+
+    // 文件内容的输入流，协商了压缩算法时按块解压
+    private static DataInputStream contentInput(DataInputStream dis, CompressionCodec codec) {
+        return codec != null ? new DataInputStream(new CompressedInputStream(dis, codec)) : dis;
+    }
+
+    /**
+     * 处理单线程文件上传
+     * <p>
+     * UPLOAD 的MD5在头部，跟在路径和大小之后；UPLOAD_STREAM 的MD5在文件内容之后发送，客户端可以边读边算，
+     * 不需要预先读一遍文件。两种格式的服务端都在接收时计算MD5。
+     *
+     * @param codec      协商的压缩算法，不压缩时为 null
+     * @param md5Trailer MD5是否在文件内容之后
+     */
+    private void handleUpload(DataInputStream dis, DataOutputStream dos, CompressionCodec codec,
+                              boolean md5Trailer) throws IOException {
         // 读取文件路径和大小
         String filePath = dis.readUTF();
         String remotePath = CLOUD_DIR + filePath;
         long fileSize = dis.readLong();
-        String clientMD5 = dis.readUTF();
+        String headerMD5 = md5Trailer ? "" : dis.readUTF();
 
-        System.out.println("正在接收文件: " + filePath + ", 大小: " + fileSize + " 字节");
+        AsyncLog.debug(() -> "正在接收文件: " + filePath + ", 大小: " + fileSize + " 字节");
 
         // 创建目录（如果需要）
         File file = new File(remotePath);
         file.getParentFile().mkdirs();
 
-        // 接收文件内容
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long totalBytesRead = 0;
-
-            while (totalBytesRead < fileSize) {
-                bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead));
-                if (bytesRead == -1) break;
+        // 接收文件内容，同时记录上传日志（MD5在内容之后时还不知道MD5），连接中断后可以续传
+        UploadJournal.Entry journal = openJournal(filePath, fileSize, headerMD5);
+        MessageDigest md = MD5Util.newMD5();
+        ChunkIndex.Splitter splitter = newSplitter();
+        long totalBytesRead;
+        // 预分配到最终大小，续传查询据此判断文件没有被其他上传覆盖
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(fileSize);
+            totalBytesRead = receiveToFile(contentInput(dis, codec), raf.getChannel(), 0, fileSize, journal, md, splitter);
+        }
 
-                fos.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
-            }
+        if (totalBytesRead < fileSize) {
+            AsyncLog.warn("文件接收中断: " + filePath + ", 已接收 " + totalBytesRead + "/" + fileSize + " 字节，等待续传");
+            return;
         }
 
-        // 计算接收到的文件的MD5
-        String serverMD5 = calculateMD5(remotePath);
+        // 接收时已经计算了MD5，不需要再读一遍文件
+        String serverMD5 = MD5Util.toHex(md.digest());
+        String clientMD5 = md5Trailer ? dis.readUTF() : headerMD5;
 
-        // 发送MD5校验结果
+        // 发送MD5校验结果；校验失败时数据不可信，也删除日志让下一次从头上传
         boolean md5Match = serverMD5.equals(clientMD5);
+        removeJournal(journal);
+        onFileWritten(file, md5Match ? serverMD5 : null, splitter);
         dos.writeBoolean(md5Match);
 
-        System.out.println("文件接收完成: " + filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
+        AsyncLog.info("文件接收完成: " + filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
     }
 
-    // 处理多线程文件上传
+    /**
+     * 处理多线程文件上传的一个分块
+     * <p>
+     * 每个分块使用独立的连接，携带文件总大小、分块序号/数量、偏移和长度。第一个到达的分块预分配目标文件，
+     * 各分块以固定大小的缓冲区边收边按偏移写入；最后一个完成的分块负责整文件 MD5 校验。
+     */
     private void handleMultiUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
         String filePath = dis.readUTF();
         String remotePath = CLOUD_DIR + filePath;
-        int chunkCount = dis.readInt();
+        long fileSize = dis.readLong();
+        int partIndex = dis.readInt();
+        int partCount = dis.readInt();
+        long offset = dis.readLong();
+        long length = dis.readLong();
         String clientMD5 = dis.readUTF();
 
-        System.out.println("正在接收多线程上传文件: " + filePath + ", 分块数: " + chunkCount);
+        AsyncLog.debug(() -> "正在接收多线程上传分块: " + filePath + " [" + (partIndex + 1) + "/" + partCount + "], 位置: " + offset + ", 长度: " + length);
+
+        if (partIndex < 0 || partIndex >= partCount || offset < 0 || length < 0 || offset + length > fileSize) {
+            AsyncLog.warn("多线程上传分块参数无效: " + filePath);
+            dos.writeBoolean(false);
+            return;
+        }
+
+        // 同一文件的所有分块共享一个会话，文件大小或 MD5 变化说明是新的一次上传
+        expireMultiUploads();
+        MultiUploadSession session = multiUploads.compute(remotePath, (key, existing) -> {
+            MultiUploadSession current = existing != null && existing.matches(fileSize, partCount, clientMD5)
+                    ? existing
+                    : new MultiUploadSession(fileSize, partCount, clientMD5);
+            current.partStarted();
+            return current;
+        });
+        UploadJournal.Entry journal;
+        boolean partReceived = false;
+        try {
+            session.preallocate(new File(remotePath));
+            journal = openJournal(filePath, fileSize, clientMD5);
+            try (FileChannel fileChannel = FileChannel.open(Paths.get(remotePath), StandardOpenOption.WRITE)) {
+                long received = receiveToFile(dis, fileChannel, offset, length, journal, null);
+                if (received < length) {
+                    AsyncLog.warn("多线程上传分块不完整: " + filePath + " [" + (partIndex + 1) + "/" + partCount + "], 已接收 " + received + "/" + length + " 字节");
+                    dos.writeBoolean(false);
+                    return;
+                }
+            }
+            partReceived = true;
+        } finally {
+            session.partFinished();
+            if (!partReceived) {
+                // 分块失败后客户端改为续传，这个会话不会再完成；已写入的范围留在上传日志中由续传接着使用
+                multiUploads.remove(remotePath, session);
+            }
+        }
+        dos.writeBoolean(true);
+
+        // 只有完成最后一个分块的连接负责校验，其余分块直接返回
+        if (!session.completePart(partIndex)) {
+            dos.writeBoolean(false);
+            return;
+        }
+        multiUploads.remove(remotePath, session);
+
+        // 分块是乱序到达的，校验时读一遍文件，同时切分出去重用的分块清单
+        ChunkIndex.Splitter splitter = newSplitter();
+        String serverMD5 = calculateMD5(remotePath, splitter);
+        boolean md5Match = serverMD5.equals(clientMD5);
+        removeJournal(journal);
+        onFileWritten(new File(remotePath), md5Match ? serverMD5 : null, splitter);
+        dos.writeBoolean(true);
+        dos.writeBoolean(md5Match);
+
+        AsyncLog.info("多线程文件接收完成: " + filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
+    }
+
+    // 去掉长时间没有分块到达的会话，例如客户端在发出所有分块之前退出
+    private void expireMultiUploads() {
+        long now = System.currentTimeMillis();
+        for (String key : multiUploads.keySet()) {
+            multiUploads.computeIfPresent(key, (k, session) -> session.isAbandoned(now) ? null : session);
+        }
+    }
+
+    // 处理范围上传的初始化：创建目标文件并预分配到最终大小
+    private void handleRangeUploadInit(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filePath = dis.readUTF();
+        String remotePath = CLOUD_DIR + filePath;
+        long fileSize = dis.readLong();
 
-        // 创建目录（如果需要）
         File file = new File(remotePath);
         file.getParentFile().mkdirs();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(fileSize);
+        }
+        onFileWritten(file, null);
+        dos.writeBoolean(true);
 
-        // 接收文件分块并合并
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            for (int i = 0; i < chunkCount; i++) {
-                int chunkSize = dis.readInt();
-                byte[] buffer = new byte[chunkSize];
-                dis.readFully(buffer, 0, chunkSize);
-                fos.write(buffer);
+        AsyncLog.debug(() -> "范围上传初始化: " + filePath + ", 大小: " + fileSize + " 字节");
+    }
+
+    // 处理范围上传 (用于多连接并行上传)：把收到的数据直接写入预分配文件的指定偏移
+    private void handleRangeUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filePath = dis.readUTF();
+        String remotePath = CLOUD_DIR + filePath;
+        long startPos = dis.readLong();
+        long length = dis.readLong();
+
+        File file = new File(remotePath);
+        if (!file.isFile() || startPos < 0 || length < 0 || startPos + length > file.length()) {
+            AsyncLog.warn("范围上传错误: 文件未初始化或范围无效: " + filePath + ", 位置: " + startPos + ", 长度: " + length);
+            dos.writeBoolean(false);
+            return;
+        }
+
+        long received;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            received = receiveToFile(dis, fileChannel, startPos, length, null, null);
+        }
+        dos.writeBoolean(received == length);
+
+        AsyncLog.debug(() -> "范围上传完成: " + filePath + ", 位置: " + startPos + ", 长度: " + length + (received == length ? "" : " (不完整: " + received + " 字节)"));
+    }
+
+    // 处理范围上传的收尾：校验文件大小和整文件MD5
+    private void handleRangeUploadFinish(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filePath = dis.readUTF();
+        String remotePath = CLOUD_DIR + filePath;
+        long fileSize = dis.readLong();
+        String clientMD5 = dis.readUTF();
+
+        File file = new File(remotePath);
+        ChunkIndex.Splitter splitter = newSplitter();
+        boolean md5Match = file.isFile() && file.length() == fileSize
+                && calculateMD5(remotePath, splitter).equals(clientMD5);
+        onFileWritten(file, md5Match ? clientMD5 : null, splitter);
+        dos.writeBoolean(md5Match);
+
+        AsyncLog.info("范围上传文件接收完成: " + filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
+    }
+
+    /**
+     * 查询可续传上传的状态
+     * <p>
+     * 返回上传ID以及尚未接收的范围；没有日志时新建一个并预分配文件，此时整个文件都是缺失范围。
+     */
+    private void handleUploadQuery(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filePath = dis.readUTF();
+        long fileSize = dis.readLong();
+        String clientMD5 = dis.readUTF();
+
+        UploadJournal.Entry journal = uploadJournal.open(filePath, fileSize, clientMD5);
+        File file = new File(CLOUD_DIR + filePath);
+        if (!journal.created && (!file.isFile() || file.length() != fileSize)) {
+            // 目标文件已被删除或覆盖，旧日志记录的范围不再可信
+            uploadJournal.remove(journal);
+            journal = uploadJournal.open(filePath, fileSize, clientMD5);
+        }
+        if (journal.created) {
+            file.getParentFile().mkdirs();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(fileSize);
             }
+            onFileWritten(file, null);
         }
 
-        // 计算接收到的文件的MD5
-        String serverMD5 = calculateMD5(remotePath);
+        List<long[]> missing = journal.missingRanges();
+        dos.writeUTF(journal.id);
+        dos.writeInt(missing.size());
+        long missingBytes = 0;
+        for (long[] range : missing) {
+            dos.writeLong(range[0]);
+            dos.writeLong(range[1]);
+            missingBytes += range[1];
+        }
+        dos.flush();
 
-        // 发送MD5校验结果
-        boolean md5Match = serverMD5.equals(clientMD5);
+        long totalMissing = missingBytes;
+        AsyncLog.debug(() -> "续传查询: " + filePath + ", 缺失 " + missing.size() + " 段共 " + totalMissing + "/" + fileSize + " 字节");
+    }
+
+    // 处理续传数据：按上传ID写入指定范围并记录日志
+    private void handleUploadResume(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String uploadId = dis.readUTF();
+        long startPos = dis.readLong();
+        long length = dis.readLong();
+
+        UploadJournal.Entry journal = uploadJournal.get(uploadId);
+        if (journal == null || startPos < 0 || length < 0 || startPos + length > journal.fileSize) {
+            AsyncLog.warn("续传错误: 上传不存在或范围无效: " + uploadId + ", 位置: " + startPos + ", 长度: " + length);
+            dos.writeBoolean(false);
+            return;
+        }
+
+        long received;
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(CLOUD_DIR + journal.filePath), StandardOpenOption.WRITE)) {
+            received = receiveToFile(dis, fileChannel, startPos, length, journal, null);
+        }
+        dos.writeBoolean(received == length);
+
+        AsyncLog.debug(() -> "续传范围完成: " + journal.filePath + ", 位置: " + startPos + ", 长度: " + length + (received == length ? "" : " (不完整: " + received + " 字节)"));
+    }
+
+    // 处理续传收尾：确认所有范围都已收到并校验整文件MD5
+    private void handleUploadResumeFinish(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String uploadId = dis.readUTF();
+
+        UploadJournal.Entry journal = uploadJournal.get(uploadId);
+        if (journal == null || !journal.missingRanges().isEmpty()) {
+            AsyncLog.warn("续传收尾错误: 上传不存在或仍有缺失范围: " + uploadId);
+            dos.writeBoolean(false);
+            return;
+        }
+
+        ChunkIndex.Splitter splitter = newSplitter();
+        String serverMD5 = calculateMD5(CLOUD_DIR + journal.filePath, splitter);
+        boolean md5Match = serverMD5.equals(journal.md5);
+        uploadJournal.remove(journal);
+        onFileWritten(new File(CLOUD_DIR + journal.filePath), md5Match ? serverMD5 : null, splitter);
         dos.writeBoolean(md5Match);
 
-        System.out.println("多线程文件接收完成: " + filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
+        AsyncLog.info("续传文件接收完成: " + journal.filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
+    }
+
+    // 普通上传的日志：不超过一个记录间隔的文件中断后直接从头重传，不创建日志
+    private UploadJournal.Entry openJournal(String filePath, long fileSize, String md5) throws IOException {
+        return fileSize > JOURNAL_CHECKPOINT ? uploadJournal.open(filePath, fileSize, md5) : null;
+    }
+
+    private void removeJournal(UploadJournal.Entry journal) {
+        if (journal != null) {
+            uploadJournal.remove(journal);
+        }
+    }
+
+    /**
+     * 从输入流读取 length 字节，并从 position 开始按偏移写入文件
+     * <p>
+     * 只使用一个分块大小的缓冲区，内存占用与文件大小无关。传入上传日志时，每写入 JOURNAL_CHECKPOINT
+     * 字节以及结束（包括连接中断）时，把已写入的范围记入日志。
+     * <p>
+     * 数据和日志都只写入页缓存，不强制落盘：进程退出时两者都已经交给内核，只有机器掉电时日志可能记下了
+     * 没有落盘的数据。这种情况由收尾的整文件MD5校验发现，校验失败后日志被删除，下一次从头上传。
+     *
+     * @param journal 上传日志，不需要续传时为 null
+     * @param md      按接收顺序更新的摘要，只有整个文件按顺序到达时才有意义；不需要时为 null
+     * @return 实际接收的字节数，连接提前关闭时小于 length
+     */
+    private long receiveToFile(DataInputStream dis, FileChannel fileChannel, long position, long length,
+                               UploadJournal.Entry journal, MessageDigest md) throws IOException {
+        return receiveToFile(dis, fileChannel, position, length, journal, md, null);
+    }
+
+    /**
+     * 同上，并把接收的数据交给分块器切分
+     *
+     * @param splitter 与 md 一样按接收顺序更新；不需要时为 null
+     */
+    private long receiveToFile(DataInputStream dis, FileChannel fileChannel, long position, long length,
+                               UploadJournal.Entry journal, MessageDigest md,
+                               ChunkIndex.Splitter splitter) throws IOException {
+        int chunkSize = tuning.chunkSizeFor(length);
+        BufferPool.Lease lease = heapBuffers.acquire(chunkSize);
+        byte[] buffer = lease.array();
+        ByteBuffer byteBuffer = lease.buffer();
+        long received = 0;
+        long journaled = 0;
+        // 各阶段耗时先在本地累计，结束时一次记入指标
+        long networkNanos = 0;
+        long md5Nanos = 0;
+        long diskNanos = 0;
+
+        try {
+            while (received < length) {
+                long t0 = System.nanoTime();
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(chunkSize, length - received));
+                long t1 = System.nanoTime();
+                networkNanos += t1 - t0;
+                if (bytesRead == -1) break;
+                if (md != null) {
+                    md.update(buffer, 0, bytesRead);
+                }
+                if (splitter != null) {
+                    splitter.update(buffer, 0, bytesRead);
+                }
+                long t2 = System.nanoTime();
+                md5Nanos += t2 - t1;
+
+                byteBuffer.clear().limit(bytesRead);
+                while (byteBuffer.hasRemaining()) {
+                    received += fileChannel.write(byteBuffer, position + received);
+                }
+
+                if (journal != null && received - journaled >= JOURNAL_CHECKPOINT) {
+                    journal.record(position + journaled, received - journaled);
+                    journaled = received;
+                }
+                diskNanos += System.nanoTime() - t2;
+            }
+        } finally {
+            lease.close();
+            long t0 = System.nanoTime();
+            if (journal != null && received > journaled) {
+                journal.record(position + journaled, received - journaled);
+            }
+            metrics.addTime(ServerMetrics.Phase.NETWORK, networkNanos);
+            metrics.addTime(ServerMetrics.Phase.MD5, md5Nanos);
+            metrics.addTime(ServerMetrics.Phase.DISK, diskNanos + System.nanoTime() - t0);
+        }
+        return received;
     }
 
     // 处理文件下载
-    private void handleDownload(DataInputStream dis, DataOutputStream dos) throws IOException {
+    private void handleDownload(DataInputStream dis, DataOutputStream dos, SocketChannel channel,
+                                CompressionCodec codec) throws IOException {
         String filePath = dis.readUTF();
         String remotePath = CLOUD_DIR + filePath;
 
@@ -181,209 +1099,576 @@ public class EasyCloudDiskServer {
         long fileSize = file.length();
         dos.writeLong(fileSize);
 
-        // 计算并发送MD5
-        String md5 = calculateMD5(remotePath);
+        // 发送MD5（文件未变化时直接使用缓存）
+        String md5 = cachedMD5(file);
         dos.writeUTF(md5);
 
         // 发送文件内容
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long totalSent = 0;
-
-            try {
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
-                    totalSent += bytesRead;
-
-                    // 每发送一定量的数据就刷新缓冲区，避免缓冲区溢出
-                    if (totalSent % (BUFFER_SIZE * 10) == 0) {
-                        dos.flush();
-                    }
-                }
-                dos.flush();
-                System.out.println("文件发送完成: " + filePath);
-            } catch (IOException e) {
-                // 检查是否是客户端主动断开连接（这在多线程下载中是正常的）
-                if (e.getMessage().contains("你的主机中的软件中止了一个已建立的连接") ||
-                        e.getMessage().contains("Connection reset") ||
-                        e.getMessage().contains("Broken pipe")) {
-                    System.out.println("客户端提前断开连接 : " + filePath );
-                } else {
-                    System.err.println("文件发送过程中发生错误: " + e.getMessage() +
-                            " (已发送 " + totalSent + "/" + fileSize + " 字节)");
-                }
-                // 不再向上层抛出异常，这样可以避免整个handleClient方法失败
+        long totalSent;
+        try {
+            if (codec != null) {
+                CompressedOutputStream out = new CompressedOutputStream(dos, codec);
+                totalSent = copyFile(file, fileSize, out);
+                out.flush();
+                AsyncLog.info("文件压缩发送完成: " + filePath + " (" + totalSent + " 字节，实际发送 " + out.getSentBytes() + " 字节)");
+            } else {
+                ByteBuffer content = cachedContent(file, fileSize, channel);
+                totalSent = content != null
+                        ? sendBuffer(content, dos, channel)
+                        : sendFileRange(file, 0, fileSize, dos, channel);
+                AsyncLog.info("文件发送完成: " + filePath + " (" + totalSent + " 字节" + (content != null ? "，来自内容缓存" : "") + ")");
+            }
+        } catch (IOException e) {
+            // 检查是否是客户端主动断开连接（这在多线程下载中是正常的）
+            String message = String.valueOf(e.getMessage());
+            if (message.contains("你的主机中的软件中止了一个已建立的连接") ||
+                    message.contains("Connection reset") ||
+                    message.contains("Broken pipe")) {
+                AsyncLog.debug(() -> "客户端提前断开连接 : " + filePath );
+                // 连接已经断开，不再向上层抛出异常，这样可以避免整个handleClient方法失败
                 return;
             }
+            // 其他错误时连接仍然可用但内容没有发完，交给 handleClient 关闭连接，避免长连接上的下一个请求错位
+            throw new IOException("文件发送过程中发生错误: " + e.getMessage() + " (文件大小 " + fileSize + " 字节)", e);
+        }
+        if (totalSent < fileSize) {
+            throw new IOException("文件在发送过程中被截断: " + filePath + " (" + totalSent + "/" + fileSize + " 字节)");
         }
     }
 
-    // 处理文件列表请求
-    private void handleList(DataOutputStream dos) throws IOException {
-        try {
-            File cloudDir = new File(CLOUD_DIR);
-            List<String> fileList = new ArrayList<>();
-            List<Long> fileSizes = new ArrayList<>();
-
-            listFilesRecursively(cloudDir, fileList, fileSizes, CLOUD_DIR);
-
-            // 发送文件数量
-            dos.writeInt(fileList.size());
+    // 处理文件元数据查询：一次往返返回是否存在、大小、修改时间和（缓存的）MD5，不发送文件内容
+    private void handleStat(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filePath = dis.readUTF();
+        File file = new File(CLOUD_DIR + filePath);
 
-            // 发送文件路径和大小
-            for (int i = 0; i < fileList.size(); i++) {
-                dos.writeUTF(fileList.get(i));
-                dos.writeLong(fileSizes.get(i));
-                dos.flush(); // 每发送一个文件信息就刷新缓冲区
-            }
+        if (!file.isFile()) {
+            dos.writeBoolean(false);
+            dos.flush();
+            return;
+        }
 
-            System.out.println("发送文件列表完成，共 " + fileList.size() + " 个文件");
+        // 先取MD5再读大小和修改时间，保证三者对应同一版本的文件（缓存按大小和修改时间校验）
+        String md5 = cachedMD5(file);
+        dos.writeBoolean(true);
+        dos.writeLong(file.length());
+        dos.writeLong(file.lastModified());
+        dos.writeUTF(md5);
+        dos.flush();
+    }
 
-            // 我们不需要等待客户端的确认
-            // 客户端可以选择关闭连接，服务器会在handleClient方法中捕获这个异常
-        } catch (IOException e) {
-            System.err.println("处理文件列表请求错误: " + e.getMessage());
-            e.printStackTrace();
-            throw e;
+    // 处理文件列表请求：数量在前，需要先取一份索引的快照，之后攒批发送
+    private void handleList(DataOutputStream dos) throws IOException {
+        List<Map.Entry<String, Long>> snapshot = new ArrayList<>(directoryIndex.view("", "").entrySet());
+
+        // 不关闭这个流，关闭会连带关闭套接字
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, LIST_FLUSH_BYTES));
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Long> entry : snapshot) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
         }
+        out.flush();
+
+        AsyncLog.debug(() -> "发送文件列表完成，共 " + snapshot.size() + " 个文件");
     }
 
-    // 递归列出目录中的所有文件
-    private void listFilesRecursively(File dir, List<String> fileList, List<Long> fileSizes, String basePath) {
-        File[] files = dir.listFiles();
-        if (files == null) return;
+    /**
+     * 分页的文件列表：请求为前缀、游标（上一页最后一个路径，首页为空字符串）和每页数量；
+     * 响应为若干个 (true, 路径, 大小)，以 false 结束，最后是下一页的游标（没有更多时为空字符串）。
+     * 直接遍历索引的有序视图边读边发，不构造完整的列表。
+     */
+    private void handleListPage(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String prefix = dis.readUTF();
+        String cursor = dis.readUTF();
+        int limit = dis.readInt();
+        if (limit <= 0 || limit > LIST_PAGE_MAX) {
+            limit = LIST_PAGE_MAX;
+        }
 
-        for (File file : files) {
-            if (file.isFile()) {
-                String relativePath = file.getAbsolutePath().substring(basePath.length());
-                fileList.add(relativePath);
-                fileSizes.add(file.length());
-            } else if (file.isDirectory()) {
-                listFilesRecursively(file, fileList, fileSizes, basePath);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, LIST_FLUSH_BYTES));
+        int count = 0;
+        String last = "";
+        boolean more = false;
+        for (Map.Entry<String, Long> entry : directoryIndex.view(prefix, cursor).entrySet()) {
+            if (count == limit) {
+                more = true;
+                break;
             }
+            out.writeBoolean(true);
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+            last = entry.getKey();
+            count++;
         }
+        out.writeBoolean(false);
+        out.writeUTF(more ? last : "");
+        out.flush();
+
+        int sentCount = count;
+        String remaining = more ? "，还有更多" : "";
+        AsyncLog.debug(() -> "发送文件列表分页完成，前缀: \"" + prefix + "\"，共 " + sentCount + " 个文件" + remaining);
     }
 
-    // 处理批量上传
-    private void handleBatchUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+    /**
+     * 处理批量上传，每个文件等待校验结果后再发送下一个
+     *
+     * @param md5Trailer 每个文件的MD5是否在内容之后（BATCH_UPLOAD_STREAM），否则在大小之后（BATCH_UPLOAD）
+     */
+    private void handleBatchUpload(DataInputStream dis, DataOutputStream dos, boolean md5Trailer) throws IOException {
         int fileCount = dis.readInt();
-        System.out.println("接收批量上传请求，文件数量: " + fileCount);
+        AsyncLog.debug(() -> "接收批量上传请求，文件数量: " + fileCount);
 
         try {
             for (int i = 0; i < fileCount; i++) {
+                int index = i + 1;
                 // 读取文件路径和大小
                 String filePath = dis.readUTF();
                 String remotePath = CLOUD_DIR + filePath;
                 long fileSize = dis.readLong();
-                String clientMD5 = dis.readUTF();
+                String headerMD5 = md5Trailer ? null : dis.readUTF();
 
-                System.out.println("正在接收批量文件[" + (i + 1) + "/" + fileCount + "]: " + filePath + ", 大小: " + fileSize + " 字节");
+                AsyncLog.debug(() -> "正在接收批量文件[" + index + "/" + fileCount + "]: " + filePath + ", 大小: " + fileSize + " 字节");
 
                 // 创建目录（如果需要）
                 File file = new File(remotePath);
                 file.getParentFile().mkdirs();
 
-                // 接收文件内容
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int bytesRead;
-                    long totalBytesRead = 0;
-
-                    while (totalBytesRead < fileSize) {
-                        bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead));
-                        if (bytesRead == -1) break;
-
-                        fos.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
+                // 接收文件内容，同时计算MD5和分块清单
+                MessageDigest md = MD5Util.newMD5();
+                ChunkIndex.Splitter splitter = newSplitter();
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    if (receiveToFile(dis, fileChannel, 0, fileSize, null, md, splitter) < fileSize) {
+                        throw new EOFException("批量文件[" + (i + 1) + "/" + fileCount + "]接收不完整: " + filePath);
                     }
                 }
-
-                // 计算接收到的文件的MD5
-                String serverMD5 = calculateMD5(remotePath);
+                String serverMD5 = MD5Util.toHex(md.digest());
+                String clientMD5 = md5Trailer ? dis.readUTF() : headerMD5;
 
                 // 发送MD5校验结果
                 boolean md5Match = serverMD5.equals(clientMD5);
+                onFileWritten(file, md5Match ? serverMD5 : null, splitter);
                 dos.writeBoolean(md5Match);
 
-                System.out.println("批量文件[" + (i + 1) + "/" + fileCount + "]接收完成: " + filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
+                AsyncLog.debug(() -> "批量文件[" + index + "/" + fileCount + "]接收完成: " + filePath + ", MD5校验: " + (md5Match ? "成功" : "失败"));
             }
 
-            System.out.println("批量上传完成，共 " + fileCount + " 个文件");
+            AsyncLog.info("批量上传完成，共 " + fileCount + " 个文件");
         } catch (IOException e) {
-            System.err.println("批量上传处理错误: " + e.getMessage());
-            e.printStackTrace();
+            AsyncLog.error("批量上传处理错误: " + e.getMessage(), e);
             throw e;  // 重新抛出异常，让上层处理
         }
     }
 
-    // 处理批量下载
-    private void handleBatchDownload(DataInputStream dis, DataOutputStream dos) throws IOException {
+    /**
+     * 处理打包批量上传
+     * <p>
+     * 客户端不等待确认，把所有文件连续发送：每项为路径、大小、内容和MD5。服务端逐项写入并校验，
+     * 全部接收后一次性回复文件数和每个文件的校验结果，整批只需要一次往返。
+     * 单项校验失败不影响后面的文件；数据流中断时已接收的文件保留，连接直接关闭。
+     */
+    private void handleBatchPack(DataInputStream dis, DataOutputStream dos, CompressionCodec codec) throws IOException {
         int fileCount = dis.readInt();
-        System.out.println("接收批量下载请求，文件数量: " + fileCount);
+        if (fileCount < 0 || fileCount > BATCH_MAX_FILES) {
+            throw new IOException("打包上传的文件数无效: " + fileCount);
+        }
+        AsyncLog.debug(() -> "接收打包批量上传请求，文件数量: " + fileCount);
+
+        boolean[] results = new boolean[fileCount];
+        int succeeded = 0;
+        for (int i = 0; i < fileCount; i++) {
+            String filePath = dis.readUTF();
+            long fileSize = dis.readLong();
+            if (fileSize < 0) {
+                throw new IOException("打包文件[" + (i + 1) + "/" + fileCount + "]大小无效: " + fileSize);
+            }
+            File file = new File(CLOUD_DIR + filePath);
+            file.getParentFile().mkdirs();
+
+            MessageDigest md = MD5Util.newMD5();
+            ChunkIndex.Splitter splitter = newSplitter();
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (receiveToFile(contentInput(dis, codec), fileChannel, 0, fileSize, null, md, splitter) < fileSize) {
+                    throw new EOFException("打包文件[" + (i + 1) + "/" + fileCount + "]接收不完整: " + filePath);
+                }
+            }
+            String serverMD5 = MD5Util.toHex(md.digest());
+            results[i] = serverMD5.equals(dis.readUTF());
+            onFileWritten(file, results[i] ? serverMD5 : null, splitter);
+            if (results[i]) {
+                succeeded++;
+            } else {
+                AsyncLog.warn("打包文件[" + (i + 1) + "/" + fileCount + "]MD5校验失败: " + filePath);
+            }
+        }
 
-        try {
-            for (int i = 0; i < fileCount; i++) {
-                // 读取文件路径
-                String filePath = dis.readUTF();
-                String remotePath = CLOUD_DIR + filePath;
-                File file = new File(remotePath);
+        // 汇总确认，一次写出
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, LIST_FLUSH_BYTES));
+        out.writeInt(fileCount);
+        for (boolean result : results) {
+            out.writeBoolean(result);
+        }
+        out.flush();
 
-                System.out.println("处理批量下载文件[" + (i + 1) + "/" + fileCount + "]: " + filePath);
+        AsyncLog.info("打包批量上传完成，共 " + fileCount + " 个文件，校验成功 " + succeeded + " 个");
+    }
 
-                // 检查文件是否存在
-                if (!file.exists() || !file.isFile()) {
-                    dos.writeBoolean(false);
-                    System.out.println("文件不存在: " + remotePath);
-                    continue;
-                }
+    /**
+     * 处理去重上传
+     * <p>
+     * 客户端先发送文件的分块清单（哈希和长度）。服务端在临时文件中拼装：分块索引中已有的分块从本地文件复制，
+     * 然后回复每个分块是否已有，客户端只发送缺少的分块，最后发送整文件MD5。
+     * 每个分块都按哈希校验，全部通过后临时文件原子替换目标文件，下载时读取的始终是完整的文件。
+     * <p>
+     * 各种方式上传并校验通过的文件都在接收或校验时顺带切分并登记（见 {@link #onFileWritten(File, String, ChunkIndex.Splitter)}），
+     * 这里上传成功的文件直接登记客户端的分块清单；目标路径上更早写入、还没有清单的旧文件在第一次去重上传时切分。
+     * 去重只减少传输量，云盘目录中的文件仍然各自完整保存。
+     */
+    private void handleChunkUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filePath = dis.readUTF();
+        long fileSize = dis.readLong();
+        int chunkCount = dis.readInt();
+        if (fileSize < 0 || chunkCount < 0 || chunkCount > CHUNK_UPLOAD_MAX_CHUNKS) {
+            throw new IOException("去重上传参数无效: " + filePath + ", 大小 " + fileSize + ", 分块数 " + chunkCount);
+        }
+        List<ChunkIndex.Chunk> chunks = new ArrayList<>(chunkCount);
+        long offset = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            String hash = dis.readUTF();
+            int length = dis.readInt();
+            if (length <= 0 || length > ChunkIndex.MAX_CHUNK) {
+                throw new IOException("去重上传的分块长度无效: " + length);
+            }
+            chunks.add(new ChunkIndex.Chunk(offset, length, hash));
+            offset += length;
+        }
+        if (offset != fileSize) {
+            throw new IOException("去重上传的分块总长度 " + offset + " 与文件大小 " + fileSize + " 不一致");
+        }
 
-                dos.writeBoolean(true);
+        File file = new File(CLOUD_DIR + filePath);
+        file.getParentFile().mkdirs();
+        // 同一路径的旧版本最可能与新内容重复；已经索引过且没有变化时不会重新读取
+        if (file.isFile()) {
+            chunkIndex.index(file);
+        }
+        Path temp = Files.createTempFile(Files.createDirectories(Paths.get(UPLOAD_JOURNAL_DIR)), "chunks-", ".tmp");
+        try {
+            boolean valid = true;
+            long reusedBytes = 0;
+            try (FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // 先复制已有的分块，回复“已有”的分块此时已经写入，之后索引变化也不受影响
+                BitSet present = new BitSet(chunkCount);
+                for (int i = 0; i < chunkCount; i++) {
+                    ChunkIndex.Chunk chunk = chunks.get(i);
+                    if (chunkIndex.copyChunk(chunk.hash, chunk.length, target, chunk.offset)) {
+                        present.set(i);
+                        reusedBytes += chunk.length;
+                    }
+                }
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, LIST_FLUSH_BYTES));
+                for (int i = 0; i < chunkCount; i++) {
+                    out.writeBoolean(present.get(i));
+                }
+                out.flush();
 
-                // 发送文件大小
-                long fileSize = file.length();
-                dos.writeLong(fileSize);
+                for (int i = present.nextClearBit(0); i < chunkCount; i = present.nextClearBit(i + 1)) {
+                    ChunkIndex.Chunk chunk = chunks.get(i);
+                    MessageDigest sha = ChunkIndex.newSHA256();
+                    if (receiveToFile(dis, target, chunk.offset, chunk.length, null, sha) < chunk.length) {
+                        throw new EOFException("去重上传的分块接收不完整: " + filePath);
+                    }
+                    if (!MD5Util.toHex(sha.digest()).equals(chunk.hash)) {
+                        // 继续接收剩余的分块，保持数据流同步，最后回复失败
+                        valid = false;
+                    }
+                }
+            }
 
-                // 计算并发送MD5
-                String md5 = calculateMD5(remotePath);
-                dos.writeUTF(md5);
+            String clientMD5 = dis.readUTF();
+            String serverMD5 = valid ? MD5Util.calculateMD5(temp.toString()) : null;
+            boolean md5Match = clientMD5.equals(serverMD5);
+            if (md5Match) {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                onFileWritten(file, serverMD5);
+                chunkIndex.register(file, chunks);
+            }
+            dos.writeBoolean(md5Match);
 
-                // 发送文件内容
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int bytesRead;
-                    long totalSent = 0;
+            AsyncLog.info("去重上传完成: " + filePath + ", 复用 " + reusedBytes + "/" + fileSize + " 字节, "
+                    + (md5Match ? "校验成功" : "校验失败"));
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
 
-                    try {
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            dos.write(buffer, 0, bytesRead);
-                            totalSent += bytesRead;
+    /**
+     * 处理差量上传
+     * <p>
+     * 服务端先发送现有文件的块签名（块大小、块数，每块的弱校验和与MD5），文件不存在时块数为 0。
+     * 客户端回复由 OP_COPY（引用旧块）和 OP_LITERAL（新数据）组成的差量，以 OP_END 结束，最后是新文件的MD5。
+     * 新文件在临时文件中重建，校验通过后原子替换；重建期间旧文件一直保持打开，被其他上传替换也不影响引用的内容。
+     */
+    private void handleDeltaUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String filePath = dis.readUTF();
+        File file = new File(CLOUD_DIR + filePath);
+        file.getParentFile().mkdirs();
 
-                            // 每发送一定量的数据就刷新缓冲区，避免缓冲区溢出
-                            if (totalSent % (BUFFER_SIZE * 10) == 0) {
-                                dos.flush();
+        FileChannel base = file.isFile() ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+        Path temp = Files.createTempFile(Files.createDirectories(Paths.get(UPLOAD_JOURNAL_DIR)), "delta-", ".tmp");
+        try {
+            long baseSize = base != null ? base.size() : 0;
+            int blockSize = DeltaSync.blockSizeFor(baseSize);
+            int blockCount = (int) (baseSize / blockSize); // 末尾不足一块的数据不参与匹配
+            sendSignature(base, blockSize, blockCount, dos);
+
+            long literalBytes = 0;
+            long position = 0;
+            try (FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                byte op;
+                while ((op = dis.readByte()) != DeltaSync.OP_END) {
+                    if (op == DeltaSync.OP_LITERAL) {
+                        int length = dis.readInt();
+                        if (length <= 0 || length > DeltaSync.LITERAL_MAX) {
+                            throw new IOException("差量数据长度无效: " + length);
+                        }
+                        if (receiveToFile(dis, target, position, length, null, null) < length) {
+                            throw new EOFException("差量上传的数据接收不完整: " + filePath);
+                        }
+                        position += length;
+                        literalBytes += length;
+                    } else if (op == DeltaSync.OP_COPY) {
+                        int firstBlock = dis.readInt();
+                        int count = dis.readInt();
+                        if (firstBlock < 0 || count <= 0 || (long) firstBlock + count > blockCount) {
+                            throw new IOException("差量引用的块无效: " + firstBlock + "+" + count);
+                        }
+                        long length = (long) count * blockSize;
+                        long copied = 0;
+                        target.position(position);
+                        while (copied < length) {
+                            long transferred = base.transferTo((long) firstBlock * blockSize + copied, length - copied, target);
+                            if (transferred <= 0) {
+                                throw new EOFException("文件在差量重建过程中被截断: " + filePath);
                             }
+                            copied += transferred;
                         }
-                        dos.flush();
-                        System.out.println("批量文件[" + (i + 1) + "/" + fileCount + "]发送完成: " + filePath);
-                    } catch (IOException e) {
-                        System.err.println("批量文件[" + (i + 1) + "/" + fileCount + "]发送过程中发生错误: " + e.getMessage() + " (已发送 " + totalSent + "/" + fileSize + " 字节)");
-                        // 如果一个文件发送失败，尝试继续发送下一个文件
-                        continue;
+                        position += length;
+                    } else {
+                        throw new IOException("未知的差量操作: " + op);
                     }
                 }
             }
 
-            System.out.println("批量下载完成，共 " + fileCount + " 个文件");
-        } catch (IOException e) {
-            System.err.println("批量下载处理错误: " + e.getMessage());
-            e.printStackTrace();
-            // 不再向上抛出异常
+            String clientMD5 = dis.readUTF();
+            ChunkIndex.Splitter splitter = newSplitter();
+            String serverMD5 = calculateMD5(temp.toString(), splitter);
+            boolean md5Match = clientMD5.equals(serverMD5);
+            if (md5Match) {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                onFileWritten(file, serverMD5, splitter);
+            }
+            dos.writeBoolean(md5Match);
+
+            AsyncLog.info("差量上传完成: " + filePath + ", 新数据 " + literalBytes + "/" + position + " 字节, "
+                    + (md5Match ? "校验成功" : "校验失败"));
+        } finally {
+            if (base != null) {
+                base.close();
+            }
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // 发送旧文件的块签名
+    private void sendSignature(FileChannel base, int blockSize, int blockCount, DataOutputStream dos) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, LIST_FLUSH_BYTES));
+        out.writeInt(blockSize);
+        out.writeInt(blockCount);
+        MessageDigest md = MD5Util.newMD5();
+        try (BufferPool.Lease lease = heapBuffers.acquire(blockSize)) {
+            byte[] block = lease.array();
+            ByteBuffer buffer = lease.buffer();
+            for (int i = 0; i < blockCount; i++) {
+                buffer.clear().limit(blockSize);
+                while (buffer.hasRemaining()) {
+                    if (base.read(buffer, (long) i * blockSize + buffer.position()) == -1) {
+                        throw new EOFException("文件在计算签名时被截断");
+                    }
+                }
+                out.writeInt(DeltaSync.weakChecksum(block, 0, blockSize));
+                md.update(block, 0, blockSize);
+                out.write(md.digest());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 处理批量下载
+     * <p>
+     * 每个文件的大小在内容之前发出，内容没有发完时客户端仍在等待剩余的字节，之后的数据都无法解析。
+     * 因此发送失败或文件被截断时中止整个批次，由 handleClient 关闭连接，不能接着发送下一个文件。
+     */
+    private void handleBatchDownload(DataInputStream dis, DataOutputStream dos, SocketChannel channel) throws IOException {
+        int fileCount = dis.readInt();
+        AsyncLog.debug(() -> "接收批量下载请求，文件数量: " + fileCount);
+
+        for (int i = 0; i < fileCount; i++) {
+            int index = i + 1;
+            // 读取文件路径
+            String filePath = dis.readUTF();
+            String remotePath = CLOUD_DIR + filePath;
+            File file = new File(remotePath);
+
+            AsyncLog.debug(() -> "处理批量下载文件[" + index + "/" + fileCount + "]: " + filePath);
+
+            // 检查文件是否存在
+            if (!file.exists() || !file.isFile()) {
+                dos.writeBoolean(false);
+                AsyncLog.debug(() -> "文件不存在: " + remotePath);
+                continue;
+            }
+
+            dos.writeBoolean(true);
+
+            // 发送文件大小
+            long fileSize = file.length();
+            dos.writeLong(fileSize);
+
+            // 发送MD5（文件未变化时直接使用缓存）
+            String md5 = cachedMD5(file);
+            dos.writeUTF(md5);
+
+            // 发送文件内容
+            long sent;
+            try {
+                sent = sendFileRange(file, 0, fileSize, dos, channel);
+            } catch (IOException e) {
+                throw new IOException("批量文件[" + index + "/" + fileCount + "]发送过程中发生错误，中止批量下载: "
+                        + e.getMessage() + " (文件大小 " + fileSize + " 字节)", e);
+            }
+            if (sent < fileSize) {
+                throw new IOException("批量文件[" + index + "/" + fileCount + "]在发送过程中被截断，中止批量下载: "
+                        + filePath + " (" + sent + "/" + fileSize + " 字节)");
+            }
+            AsyncLog.debug(() -> "批量文件[" + index + "/" + fileCount + "]发送完成: " + filePath);
+        }
+
+        AsyncLog.info("批量下载完成，共 " + fileCount + " 个文件");
+    }
+
+    /**
+     * 流水线批量下载：请求一次给出所有路径，响应先发清单（每个文件是否存在及大小），再依次发送各文件的内容，
+     * 每个文件的内容之后是它的MD5
+     * <p>
+     * 发送当前文件时，后面 BATCH_PREFETCH 个文件的MD5已经在后台计算；小文件经缓冲区合并成大块写出。
+     * 批量下载的耗时因此取决于带宽，而不是每个文件的往返、哈希和系统调用。
+     */
+    private void handleBatchGet(DataInputStream dis, DataOutputStream dos, SocketChannel channel,
+                                CompressionCodec codec) throws IOException {
+        int fileCount = dis.readInt();
+        if (fileCount < 0 || fileCount > BATCH_MAX_FILES) {
+            throw new IOException("批量下载的文件数无效: " + fileCount);
+        }
+        String[] paths = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            paths[i] = dis.readUTF();
+        }
+        AsyncLog.debug(() -> "接收流水线批量下载请求，文件数量: " + fileCount);
+
+        // 发送清单，客户端据此提前知道哪些文件会到达以及各自的大小
+        File[] files = new File[fileCount];
+        long[] sizes = new long[fileCount];
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, LIST_FLUSH_BYTES));
+        out.writeInt(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(CLOUD_DIR + paths[i]);
+            if (file.isFile()) {
+                files[i] = file;
+                sizes[i] = file.length();
+                out.writeBoolean(true);
+                out.writeLong(sizes[i]);
+            } else {
+                out.writeBoolean(false);
+            }
+        }
+        out.flush();
+
+        List<CompletableFuture<String>> digests = new ArrayList<>(Collections.nCopies(fileCount, null));
+        int prefetched = 0;
+        try {
+            for (int i = 0; i < fileCount; i++) {
+                // 保持后面 BATCH_PREFETCH 个文件的MD5在后台计算
+                for (; prefetched < fileCount && prefetched <= i + BATCH_PREFETCH; prefetched++) {
+                    File file = files[prefetched];
+                    if (file != null) {
+                        digests.set(prefetched, CompletableFuture.supplyAsync(() -> cachedMD5(file), taskExecutor));
+                    }
+                }
+                if (files[i] == null) {
+                    continue;
+                }
+
+                long sent;
+                if (codec != null) {
+                    // 每个文件单独结束压缩块，之后的MD5仍然原样发送
+                    CompressedOutputStream compressed = new CompressedOutputStream(out, codec);
+                    sent = copyFile(files[i], sizes[i], compressed);
+                    compressed.finish();
+                } else {
+                    sent = sizes[i] <= BATCH_SMALL_FILE
+                            ? copyFile(files[i], sizes[i], out)
+                            : sendFileRange(files[i], 0, sizes[i], out, channel);
+                }
+                // 清单中已经声明了大小，文件被截断后客户端无法继续解析，只能关闭连接
+                if (sent < sizes[i]) {
+                    throw new IOException("文件在发送过程中被截断: " + paths[i] + " (" + sent + "/" + sizes[i] + " 字节)");
+                }
+                out.writeUTF(digests.set(i, null).join());
+            }
+            out.flush();
+        } finally {
+            for (CompletableFuture<String> digest : digests) {
+                if (digest != null) {
+                    digest.cancel(false);
+                }
+            }
+        }
+        AsyncLog.info("流水线批量下载完成，共 " + fileCount + " 个文件");
+    }
+
+    // 把整个小文件经 out 的缓冲区写出，不单独刷新
+    private long copyFile(File file, long length, OutputStream out) throws IOException {
+        long sent = 0;
+        int chunkSize = tuning.chunkSizeFor(length);
+        long diskNanos = 0;
+        long networkNanos = 0;
+        try (FileInputStream fis = new FileInputStream(file);
+             BufferPool.Lease lease = heapBuffers.acquire(chunkSize)) {
+            byte[] buffer = lease.array();
+            while (sent < length) {
+                long t0 = System.nanoTime();
+                int bytesRead = fis.read(buffer, 0, (int) Math.min(chunkSize, length - sent));
+                long t1 = System.nanoTime();
+                diskNanos += t1 - t0;
+                if (bytesRead == -1) {
+                    break;
+                }
+                out.write(buffer, 0, bytesRead);
+                networkNanos += System.nanoTime() - t1;
+                sent += bytesRead;
+            }
+        } finally {
+            metrics.addTime(ServerMetrics.Phase.DISK, diskNanos);
+            metrics.addTime(ServerMetrics.Phase.NETWORK, networkNanos);
         }
+        return sent;
     }
 
     // 处理范围下载 (用于多线程下载)
-    private void handleRangeDownload(DataInputStream dis, DataOutputStream dos) throws IOException {
+    private void handleRangeDownload(DataInputStream dis, DataOutputStream dos, SocketChannel channel) throws IOException {
         String filePath = dis.readUTF();
         String remotePath = CLOUD_DIR + filePath;
         long startPos = dis.readLong();
@@ -391,69 +1676,365 @@ public class EasyCloudDiskServer {
 
         File file = new File(remotePath);
 
+        // 协议中没有错误响应，只能关闭连接让客户端察觉（长连接上客户端还在等待数据）
         if (!file.exists() || startPos >= file.length()) {
-            System.err.println("范围下载错误: 文件不存在或起始位置无效");
-            return;
+            throw new IOException("范围下载错误: 文件不存在或起始位置无效");
+        }
+
+        // 读取指定范围的文件内容并发送；没有发完时同样关闭连接
+        long sent = channel != null && channel.isBlocking() && useMappedRegions(file.length(), length)
+                ? sendMappedRange(file, startPos, length, dos, channel)
+                : sendFileRange(file, startPos, length, dos, channel);
+        if (sent < length) {
+            throw new IOException("范围下载错误: 文件在发送过程中被截断 (" + sent + "/" + length + " 字节, 位置: " + startPos + ")");
+        }
+        AsyncLog.debug(() -> "范围下载完成: " + filePath + ", 位置: " + startPos + ", 长度: " + length);
+    }
+
+    /**
+     * 从内容缓存取整个文件，未命中时读入缓存
+     * <p>
+     * 只替代经用户态缓冲区的流式拷贝：开启零拷贝时 transferTo 已经直接从页缓存发送热点文件，
+     * 回环上重复下载 1 MB 文件时比从缓存的直接缓冲区写出还少一次拷贝，不再经过内容缓存。
+     * 4 KB 到 256 KB 的小文件上两者也没有稳定的差别，打开文件的开销被请求往返掩盖。
+     *
+     * @return 不使用缓存、文件太大、没有可以直接写入的 SocketChannel，或者内容与已发送的大小不一致时返回 null
+     */
+    private ByteBuffer cachedContent(File file, long fileSize, SocketChannel channel) {
+        if (contentCache == null || config.isZeroCopy() || !contentCache.accepts(fileSize)
+                || channel == null || !channel.isBlocking()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            ByteBuffer content = contentCache.get(file);
+            return content != null && content.remaining() == fileSize ? content : null;
+        } catch (IOException e) {
+            AsyncLog.warn("读取文件到内容缓存失败: " + e.getMessage());
+            return null;
+        } finally {
+            metrics.addTime(ServerMetrics.Phase.DISK, System.nanoTime() - start);
         }
+    }
 
-        // 读取指定范围的文件内容并发送
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            raf.seek(startPos);
+    // 把缓存的内容直接写入 SocketChannel
+    private long sendBuffer(ByteBuffer content, DataOutputStream dos, SocketChannel channel) throws IOException {
+        // 先把已经写入 dos 的头部字段发出去，保证它们在文件内容之前到达
+        dos.flush();
+
+        long sent = 0;
+        long start = System.nanoTime();
+        try {
+            while (content.hasRemaining()) {
+                sent += channel.write(content);
+            }
+        } finally {
+            metrics.addBytesOut(sent);
+            metrics.addTime(ServerMetrics.Phase.NETWORK, System.nanoTime() - start);
+        }
+        return sent;
+    }
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long remaining = length;
-            long totalSent = 0;
+    // 较大文件的非空范围才使用映射，小文件映射和缺页的开销超过直接读取
+    private boolean useMappedRegions(long fileSize, long length) {
+        return mappedRegions != null && fileSize >= MAPPED_MIN_FILE && length > 0;
+    }
 
-            try {
-                while (remaining > 0) {
-                    bytesRead = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+    /**
+     * 从共用的映射区域发送文件的指定范围，映射缓冲区直接写入 SocketChannel，不经过堆内存
+     *
+     * @return 实际发送的字节数，文件在发送过程中被截断时可能小于 length
+     */
+    private long sendMappedRange(File file, long position, long length, DataOutputStream dos, SocketChannel channel) throws IOException {
+        // 先把已经写入 dos 的头部字段发出去，保证它们在文件内容之前到达
+        dos.flush();
+
+        long end = Math.min(position + length, file.length());
+        long sent = 0;
+        long start = System.nanoTime();
+        try {
+            while (position + sent < end) {
+                try (MappedRegionCache.Region region = mappedRegions.acquire(file, position + sent)) {
+                    ByteBuffer slice = region.slice(position + sent, end - position - sent);
+                    while (slice.hasRemaining()) {
+                        sent += channel.write(slice);
+                    }
+                }
+            }
+        } finally {
+            metrics.addBytesOut(sent);
+            metrics.addTime(ServerMetrics.Phase.NETWORK, System.nanoTime() - start);
+        }
+        return sent;
+    }
+
+    /**
+     * 发送文件的指定范围
+     * <p>
+     * 有 SocketChannel 且开启了零拷贝时使用 FileChannel.transferTo，数据在内核中直接从页缓存写入套接字；
+     * 否则回退到经过用户态缓冲区的流式拷贝。
+     *
+     * @return 实际发送的字节数，文件在发送过程中被截断时可能小于 length
+     */
+    private long sendFileRange(File file, long position, long length, DataOutputStream dos, SocketChannel channel) throws IOException {
+        // 先把已经写入 dos 的头部字段发出去，保证它们在文件内容之前到达
+        dos.flush();
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = Math.min(position + length, fileChannel.size());
+            long sent = 0;
+            int chunkSize = tuning.chunkSizeFor(end - position);
+
+            if (config.isZeroCopy() && channel != null && channel.isBlocking()) {
+                // 绕过了计数的输出流，发送的字节在这里记入；transferTo 的读盘和发送无法区分，整段计入网络
+                long start = System.nanoTime();
+                BufferPool.Lease lease = null;
+                try {
+                    while (position + sent < end) {
+                        long transferred = fileChannel.transferTo(position + sent, end - position - sent, channel);
+                        if (transferred > 0) {
+                            sent += transferred;
+                            continue;
+                        }
+                        // 套接字设置过读取超时后底层描述符是非阻塞的，发送缓冲区满时 transferTo 返回 0；
+                        // 这时经缓冲区写出一段，阻塞模式的 write 会等到套接字可写
+                        if (lease == null) {
+                            lease = directBuffers.acquire(chunkSize);
+                        }
+                        ByteBuffer buffer = lease.buffer();
+                        buffer.clear().limit((int) Math.min(chunkSize, end - position - sent));
+                        int bytesRead = fileChannel.read(buffer, position + sent);
+                        if (bytesRead <= 0) {
+                            break;
+                        }
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        sent += bytesRead;
+                    }
+                } finally {
+                    if (lease != null) {
+                        lease.close();
+                    }
+                    metrics.addBytesOut(sent);
+                    metrics.addTime(ServerMetrics.Phase.NETWORK, System.nanoTime() - start);
+                }
+                return sent;
+            }
+
+            long flushThreshold = tuning.flushThreshold();
+            long unflushed = 0;
+            long diskNanos = 0;
+            long networkNanos = 0;
+            try (BufferPool.Lease lease = heapBuffers.acquire(chunkSize)) {
+                ByteBuffer buffer = lease.buffer();
+                while (position + sent < end) {
+                    long t0 = System.nanoTime();
+                    buffer.clear().limit((int) Math.min(chunkSize, end - position - sent));
+                    int bytesRead = fileChannel.read(buffer, position + sent);
+                    long t1 = System.nanoTime();
+                    diskNanos += t1 - t0;
                     if (bytesRead == -1) break;
 
-                    dos.write(buffer, 0, bytesRead);
-                    remaining -= bytesRead;
-                    totalSent += bytesRead;
+                    dos.write(buffer.array(), 0, bytesRead);
+                    sent += bytesRead;
 
-                    // 每发送一定量的数据就刷新缓冲区，避免缓冲区溢出
-                    if (totalSent % (BUFFER_SIZE * 10) == 0) {
+                    // dos 有缓冲时按配置的间隔刷新，让接收方尽早拿到数据；默认只在结束时刷新
+                    unflushed += bytesRead;
+                    if (unflushed >= flushThreshold) {
                         dos.flush();
+                        unflushed = 0;
                     }
+                    networkNanos += System.nanoTime() - t1;
                 }
                 dos.flush();
-                System.out.println("范围下载完成: " + filePath + ", 位置: " + startPos + ", 长度: " + length);
-            } catch (IOException e) {
-                System.err.println("范围下载过程中发生错误: " + e.getMessage() +
-                                 " (已发送 " + totalSent + "/" + length + " 字节, 位置: " + startPos + ")");
-                // 不再向上层抛出异常，这样可以避免整个handleClient方法失败
-                return;
+            } finally {
+                metrics.addTime(ServerMetrics.Phase.DISK, diskNanos);
+                metrics.addTime(ServerMetrics.Phase.NETWORK, networkNanos);
             }
+            return sent;
+        }
+    }
+
+    // 获取文件的MD5值，文件大小和修改时间未变化时直接使用缓存
+    private String cachedMD5(File file) {
+        long start = System.nanoTime();
+        try {
+            return digestCache.getMD5(file);
+        } catch (IOException e) {
+            AsyncLog.warn("计算MD5失败: " + e.getMessage());
+            return "";
+        } finally {
+            // 未命中时包括读取文件的时间
+            metrics.addTime(ServerMetrics.Phase.MD5, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 服务端写入文件后调用，更新目录索引和与文件内容相关的缓存
+     *
+     * @param md5 已经校验过的文件MD5；内容未知（如写入未完成或校验失败）时为 null，只做失效处理
+     */
+    private void onFileWritten(File file, String md5) {
+        directoryIndex.update(file);
+        chunkIndex.remove(file);
+        if (mappedRegions != null) {
+            mappedRegions.invalidate(file);
+        }
+        if (contentCache != null) {
+            contentCache.invalidate(file);
+        }
+        if (md5 == null) {
+            digestCache.invalidate(file);
+            return;
+        }
+        try {
+            digestCache.put(file, md5);
+        } catch (IOException e) {
+            digestCache.invalidate(file);
         }
     }
 
-    // 计算文件的MD5值
-    private String calculateMD5(String filePath) {
+    /**
+     * 同上；校验通过时把接收或校验过程中切分出的分块清单登记到分块索引，之后的去重上传可以复用这些分块
+     *
+     * @param splitter 按顺序看过整个文件内容的分块器，没有开启上传时切分时为 null
+     */
+    private void onFileWritten(File file, String md5, ChunkIndex.Splitter splitter) {
+        onFileWritten(file, md5);
+        if (md5 != null && splitter != null) {
+            chunkIndex.register(file, splitter.finish());
+        }
+    }
+
+    // 上传时切分分块的分块器，关闭上传时切分时返回 null
+    private ChunkIndex.Splitter newSplitter() {
+        return config.isChunkIndexing() ? new ChunkIndex.Splitter() : null;
+    }
+
+    // 计算文件的MD5值，splitter 不为 null 时同时切分分块
+    private String calculateMD5(String filePath, ChunkIndex.Splitter splitter) {
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            try (FileInputStream fis = new FileInputStream(filePath)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
+            MessageDigest md = MD5Util.newMD5();
+            int chunkSize = tuning.chunkSizeFor(new File(filePath).length());
+            try (FileInputStream fis = new FileInputStream(filePath);
+                 BufferPool.Lease lease = heapBuffers.acquire(chunkSize)) {
+                byte[] buffer = lease.array();
                 int bytesRead;
+                long diskNanos = 0;
+                long md5Nanos = 0;
 
-                while ((bytesRead = fis.read(buffer)) != -1) {
+                long t0 = System.nanoTime();
+                while ((bytesRead = fis.read(buffer, 0, chunkSize)) != -1) {
+                    long t1 = System.nanoTime();
+                    diskNanos += t1 - t0;
                     md.update(buffer, 0, bytesRead);
+                    if (splitter != null) {
+                        splitter.update(buffer, 0, bytesRead);
+                    }
+                    t0 = System.nanoTime();
+                    md5Nanos += t0 - t1;
                 }
+                metrics.addTime(ServerMetrics.Phase.DISK, diskNanos);
+                metrics.addTime(ServerMetrics.Phase.MD5, md5Nanos);
             }
 
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b & 0xFF));
+            return MD5Util.toHex(md.digest());
+        } catch (IOException e) {
+            AsyncLog.error("计算MD5失败: " + e.getMessage(), e);
+            return "";
+        }
+    }
+
+    /**
+     * 多线程上传会话，记录同一文件已完成的分块
+     */
+    private static class MultiUploadSession {
+        private final long fileSize;
+        private final int partCount;
+        private final String md5;
+        private final BitSet completedParts;
+        // 使用 ReentrantLock 而不是 synchronized，虚拟线程在持锁做文件 I/O 时不会固定载体线程
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean preallocated = false;
+        private int activeParts = 0; // 正在接收的分块数
+        private long lastActive = System.currentTimeMillis();
+
+        MultiUploadSession(long fileSize, int partCount, String md5) {
+            this.fileSize = fileSize;
+            this.partCount = partCount;
+            this.md5 = md5;
+            this.completedParts = new BitSet(partCount);
+        }
+
+        boolean matches(long fileSize, int partCount, String md5) {
+            return this.fileSize == fileSize && this.partCount == partCount && this.md5.equals(md5);
+        }
+
+        void partStarted() {
+            lock.lock();
+            try {
+                activeParts++;
+                lastActive = System.currentTimeMillis();
+            } finally {
+                lock.unlock();
             }
+        }
 
-            return sb.toString();
-        } catch (IOException | NoSuchAlgorithmException e) {
-            System.err.println("计算MD5失败: " + e.getMessage());
-            e.printStackTrace();
-            return "";
+        void partFinished() {
+            lock.lock();
+            try {
+                activeParts--;
+                lastActive = System.currentTimeMillis();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 没有正在接收的分块，且空闲超过 MULTI_UPLOAD_IDLE_TIMEOUT
+        boolean isAbandoned(long now) {
+            lock.lock();
+            try {
+                return activeParts == 0 && now - lastActive > MULTI_UPLOAD_IDLE_TIMEOUT;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 第一次调用时创建并预分配目标文件，覆盖同名旧文件
+        void preallocate(File file) throws IOException {
+            lock.lock();
+            try {
+                if (preallocated) {
+                    return;
+                }
+                file.getParentFile().mkdirs();
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(fileSize);
+                }
+                preallocated = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 标记分块完成
+         *
+         * @return 所有分块都已完成时返回 true（只会返回一次）
+         */
+        boolean completePart(int partIndex) {
+            lock.lock();
+            try {
+                if (completedParts.cardinality() == partCount) {
+                    return false;
+                }
+                completedParts.set(partIndex);
+                return completedParts.cardinality() == partCount;
+            } finally {
+                lock.unlock();
+            }
         }
     }
 }
@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分帧协议的编解码
+ * <p>
+ * 连接以 writeUTF("FRAMED") 开始，之后双方只收发帧。每帧为 12 字节的帧头加负载（大端序）：
+ * <pre>
+ * byte 版本 | byte 操作码 | short 标志 | int 请求ID | int 负载长度 | 负载
+ * </pre>
+ * 响应帧带 FLAG_RESPONSE 并回写请求ID；一个响应可以由多帧组成，除最后一帧外都带 FLAG_MORE；
+ * 出错时回一个带 FLAG_ERROR 的帧，负载为错误信息，连接仍然可以继续使用。由于每帧都有长度，
+ * 不同请求的响应帧可以在同一连接上交错发送，接收方也可以跳过已经不关心的请求的帧。
+ */
+final class FrameCodec {
+    static final String PREAMBLE = "FRAMED";
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int MAX_PAYLOAD = 256 * 1024; // 单帧负载上限，接收方据此拒绝损坏或恶意的帧
+    static final int DATA_FRAME_SIZE = 64 * 1024; // 文件内容按这个大小切成多帧，便于多个响应交错
+    private static final int MAX_STRING_BYTES = 0xFFFF; // short 长度前缀能表示的最大长度
+
+    // 操作码
+    static final byte OP_STAT = 1;
+    static final byte OP_RANGE_DOWNLOAD = 2;
+
+    // 标志位
+    static final short FLAG_RESPONSE = 0x1;
+    static final short FLAG_MORE = 0x2;
+    static final short FLAG_ERROR = 0x4;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 帧头，解码时复用同一个实例，不为每帧分配对象
+     */
+    static final class Header {
+        byte opcode;
+        short flags;
+        int requestId;
+        int length;
+
+        boolean has(short flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    /**
+     * 把帧头写入 dst 的当前位置
+     */
+    static void encodeHeader(ByteBuffer dst, byte opcode, short flags, int requestId, int length) {
+        dst.put(VERSION).put(opcode).putShort(flags).putInt(requestId).putInt(length);
+    }
+
+    /**
+     * 从 src 的当前位置解码帧头；数据不足 HEADER_SIZE 时不移动 position 并返回 false
+     *
+     * @throws ProtocolException 版本不支持或负载长度非法
+     */
+    static boolean decodeHeader(ByteBuffer src, Header into) throws ProtocolException {
+        if (src.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        byte version = src.get();
+        if (version != VERSION) {
+            throw new ProtocolException("不支持的帧版本: " + version);
+        }
+        into.opcode = src.get();
+        into.flags = src.getShort();
+        into.requestId = src.getInt();
+        into.length = src.getInt();
+        if (into.length < 0 || into.length > MAX_PAYLOAD) {
+            throw new ProtocolException("帧负载长度非法: " + into.length);
+        }
+        return true;
+    }
+
+    /**
+     * 写入 short 长度前缀的 UTF-8 字符串
+     *
+     * @throws UTFDataFormatException 编码后超过 65535 字节，与 writeUTF 的限制相同
+     */
+    static void putString(ByteBuffer dst, String value) throws UTFDataFormatException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new UTFDataFormatException("字符串过长: " + bytes.length + " 字节");
+        }
+        dst.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * 读取 short 长度前缀的 UTF-8 字符串
+     *
+     * @throws BufferUnderflowException 长度前缀超出负载的剩余部分
+     */
+    static String getString(ByteBuffer src) {
+        int length = src.getShort() & 0xFFFF;
+        if (length > src.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+        src.position(src.position() + length);
+        return value;
+    }
+
+    /**
+     * 按帧写出数据，多个线程共用同一个连接时每帧的帧头和负载不会被其他帧打断
+     */
+    static final class Writer {
+        private final WritableByteChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final ReentrantLock lock = new ReentrantLock();
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * 写出一帧，负载为 payload 中 position 到 limit 的部分
+         */
+        void write(byte opcode, short flags, int requestId, ByteBuffer payload) throws IOException {
+            lock.lock();
+            try {
+                header.clear();
+                encodeHeader(header, opcode, flags, requestId, payload.remaining());
+                header.flip();
+                writeFully(header);
+                writeFully(payload);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 写出一帧，负载直接取自文件的指定范围；zeroCopy 时用 transferTo 发送
+         *
+         * @param buffer 经用户态拷贝时使用的中转缓冲区
+         */
+        void writeFileRegion(byte opcode, short flags, int requestId, FileChannel file, long position, int length,
+                             boolean zeroCopy, ByteBuffer buffer) throws IOException {
+            lock.lock();
+            try {
+                header.clear();
+                encodeHeader(header, opcode, flags, requestId, length);
+                header.flip();
+                writeFully(header);
+
+                long sent = 0;
+                while (sent < length) {
+                    long transferred = zeroCopy ? file.transferTo(position + sent, length - sent, channel) : 0;
+                    if (transferred > 0) {
+                        sent += transferred;
+                        continue;
+                    }
+                    // 不使用零拷贝，或者套接字的底层描述符是非阻塞的（设置过读取超时）、发送缓冲区满时
+                    // transferTo 返回 0：经缓冲区写出一段，阻塞模式的 write 会等到套接字可写
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), length - sent));
+                    if (file.read(buffer, position + sent) <= 0) {
+                        throw new IOException("文件在发送过程中被截断");
+                    }
+                    buffer.flip();
+                    sent += buffer.remaining();
+                    writeFully(buffer);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
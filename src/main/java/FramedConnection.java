@@ -0,0 +1,169 @@
+import util.TransferTuning;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 客户端的分帧连接，帧格式见 {@link FrameCodec}
+ * <p>
+ * 多个线程可以同时在一个连接上发出请求，后台读取线程按请求ID把响应帧交给各自的处理器。
+ * 处理器在读取线程中同步执行，负载缓冲区在返回后会被下一帧复用，需要保留的数据必须在返回前拷贝。
+ */
+class FramedConnection implements Closeable {
+    private final Socket socket;
+    private final DataInputStream dis;
+    private final FrameCodec.Writer writer;
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean open = true;
+
+    /**
+     * 响应帧处理器
+     */
+    interface ResponseHandler {
+        /**
+         * @param header  帧头，FLAG_MORE 表示还有后续帧
+         * @param payload 帧负载，只在本次调用期间有效
+         */
+        void onFrame(FrameCodec.Header header, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * @param readTimeout 有请求等待响应时的读取超时（毫秒），没有请求时连接可以一直空闲
+     * @param tuning      建立连接时使用的套接字参数
+     */
+    FramedConnection(String host, int port, int readTimeout, TransferTuning tuning) throws IOException {
+        this.socket = tuning.connect(host, port, readTimeout);
+        socket.setSoTimeout(readTimeout);
+        socket.setTcpNoDelay(true);
+        this.dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+        dos.writeUTF(FrameCodec.PREAMBLE);
+        dos.flush();
+        this.writer = new FrameCodec.Writer(Channels.newChannel(socket.getOutputStream()));
+
+        Thread reader = new Thread(this::readLoop, "frame-reader-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * 发出一个请求，响应帧依次交给 handler，最后一帧处理完后返回的 Future 完成
+     * <p>
+     * 收到错误帧、handler 抛出异常或连接断开时 Future 以 IOException 失败；之后这个请求剩余的帧会被跳过。
+     */
+    CompletableFuture<Void> request(byte opcode, ByteBuffer payload, ResponseHandler handler) {
+        int requestId = nextRequestId.incrementAndGet();
+        Pending request = new Pending(handler);
+        pending.put(requestId, request);
+        try {
+            if (!open) {
+                throw new EOFException("分帧连接已关闭");
+            }
+            writer.write(opcode, (short) 0, requestId, payload);
+        } catch (IOException e) {
+            pending.remove(requestId);
+            request.future.completeExceptionally(e);
+            close();
+        }
+        return request.future;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略关闭异常
+        }
+    }
+
+    private void readLoop() {
+        byte[] headerBytes = new byte[FrameCodec.HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes);
+        byte[] payloadBytes = new byte[FrameCodec.MAX_PAYLOAD];
+        FrameCodec.Header header = new FrameCodec.Header();
+        IOException failure = null;
+
+        try {
+            while (true) {
+                // 只在帧边界处理超时：没有等待中的请求时空闲是正常的
+                int first;
+                try {
+                    first = dis.read();
+                } catch (SocketTimeoutException e) {
+                    if (pending.isEmpty()) {
+                        continue;
+                    }
+                    throw e;
+                }
+                if (first == -1) {
+                    throw new EOFException("服务端关闭了分帧连接");
+                }
+                headerBytes[0] = (byte) first;
+                dis.readFully(headerBytes, 1, FrameCodec.HEADER_SIZE - 1);
+                headerBuffer.clear();
+                FrameCodec.decodeHeader(headerBuffer, header);
+                dis.readFully(payloadBytes, 0, header.length);
+                dispatch(header, ByteBuffer.wrap(payloadBytes, 0, header.length));
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            close();
+            IOException cause = failure != null ? failure : new EOFException("分帧连接已关闭");
+            for (Integer requestId : pending.keySet()) {
+                Pending request = pending.remove(requestId);
+                if (request != null) {
+                    request.future.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    private void dispatch(FrameCodec.Header header, ByteBuffer payload) {
+        Pending request = pending.get(header.requestId);
+        if (request == null) {
+            // 已经失败或放弃的请求，丢弃剩余的帧
+            return;
+        }
+        if (header.has(FrameCodec.FLAG_ERROR)) {
+            pending.remove(header.requestId);
+            request.future.completeExceptionally(new IOException(FrameCodec.getString(payload)));
+            return;
+        }
+        try {
+            request.handler.onFrame(header, payload);
+        } catch (IOException | RuntimeException e) {
+            pending.remove(header.requestId);
+            request.future.completeExceptionally(e);
+            return;
+        }
+        if (!header.has(FrameCodec.FLAG_MORE)) {
+            pending.remove(header.requestId);
+            request.future.complete(null);
+        }
+    }
+
+    private static class Pending {
+        private final ResponseHandler handler;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(ResponseHandler handler) {
+            this.handler = handler;
+        }
+    }
+}
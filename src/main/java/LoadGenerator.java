@@ -0,0 +1,311 @@
+import util.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * 并发压力测试
+ * <p>
+ * 以开环方式发出请求：到达时间服从给定速率的泊松过程，与请求是否完成无关，每个请求在自己的虚拟线程中执行。
+ * 延迟从计划的到达时间算起，服务端排队造成的等待也计入延迟，不会因为客户端等待而少发请求（避免协同遗漏）。
+ * 请求轮流使用若干个 EasyCloudDiskClient 会话，每个会话有自己的连接池。
+ * <p>
+ * 配置通过 -D 系统属性指定，速率可以是逗号分隔的多个值，依次运行并各输出一份报告，用于寻找饱和点，例如:
+ * <pre>
+ * java -Dload.rate=50,100,200,400 -Dload.mix=DOWNLOAD=60,LIST=20,UPLOAD=10,RANGE_DOWNLOAD=10 \
+ *      -Dcloud.server.poolSize=10 LoadGenerator
+ * </pre>
+ * 服务端默认在进程内启动，配置同样来自 cloud.server.* 属性；设置 -Dload.server=false 时连接已经运行的服务端。
+ */
+public class LoadGenerator {
+    private static final String REMOTE_DIR = "load/";
+    private static final int UPLOAD_SLOTS = 256; // 上传轮流写入的云盘文件数，限制压测占用的磁盘空间
+    private static final long START_TIMEOUT = 30_000;
+
+    /**
+     * 压测的请求类型
+     */
+    enum Command {
+        UPLOAD,
+        DOWNLOAD,
+        RANGE_DOWNLOAD,
+        LIST
+    }
+
+    private final int sessionCount;
+    private final long fileSize;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int maxInFlight;
+    private final Command[] mix; // 按比例展开的请求类型，随机取一项即得到一个请求
+    private final Path localDir;
+    private final List<EasyCloudDiskClient> sessions = new ArrayList<>();
+    private String sourceFile;
+
+    /**
+     * 一次压测的统计
+     */
+    private static final class Stats {
+        final Map<Command, LatencyHistogram> latencies = new EnumMap<>(Command.class);
+        final Map<Command, AtomicLong> errors = new EnumMap<>(Command.class);
+        final AtomicLong dropped = new AtomicLong();
+
+        Stats() {
+            for (Command command : Command.values()) {
+                latencies.put(command, new LatencyHistogram());
+                errors.put(command, new AtomicLong());
+            }
+        }
+    }
+
+    LoadGenerator(int sessionCount, long fileSize, long warmupNanos, long durationNanos, int maxInFlight,
+                  Command[] mix) throws IOException {
+        this.sessionCount = sessionCount;
+        this.fileSize = fileSize;
+        this.warmupNanos = warmupNanos;
+        this.durationNanos = durationNanos;
+        this.maxInFlight = maxInFlight;
+        this.mix = mix;
+        this.localDir = Files.createTempDirectory("cloud-load");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessionCount = Integer.getInteger("load.sessions", 200);
+        String[] rates = System.getProperty("load.rate", "100").split(",");
+        long duration = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 30L));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.getLong("load.warmup", 5L));
+        long fileSize = Long.getLong("load.fileSize", 256 * 1024L);
+        int maxInFlight = Integer.getInteger("load.maxInFlight", 10_000);
+        Command[] mix = parseMix(System.getProperty("load.mix", "DOWNLOAD=50,LIST=20,UPLOAD=20,RANGE_DOWNLOAD=10"));
+        boolean embeddedServer = Boolean.parseBoolean(System.getProperty("load.server", "true"));
+
+        // 服务端和客户端每个请求都会打印日志，压测期间只保留报告
+        PrintStream report = System.out;
+        if (!Boolean.getBoolean("load.verbose")) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        if (embeddedServer) {
+            ServerConfig config = ServerConfig.fromSystemProperties();
+            report.println("启动服务端: 执行模式 " + config.getExecutorMode() + ", 线程池 " + config.getFixedPoolSize()
+                    + ", NIO " + config.isNioMode());
+            Thread server = new Thread(() -> new EasyCloudDiskServer(config).start(), "load-server");
+            server.setDaemon(true);
+            server.start();
+        }
+        awaitServer();
+
+        LoadGenerator generator = new LoadGenerator(sessionCount, fileSize, warmup, duration, maxInFlight, mix);
+        try {
+            generator.prepare();
+            for (String rate : rates) {
+                double requestsPerSecond = Double.parseDouble(rate.trim());
+                report.printf("%n===== 到达速率 %.0f 次/秒, %d 个会话, 文件 %d KB, 预热 %d 秒, 测量 %d 秒 =====%n",
+                        requestsPerSecond, sessionCount, fileSize / 1024,
+                        TimeUnit.NANOSECONDS.toSeconds(warmup), TimeUnit.NANOSECONDS.toSeconds(duration));
+                generator.report(generator.run(requestsPerSecond), report);
+            }
+        } finally {
+            generator.close();
+        }
+        System.exit(0);
+    }
+
+    // 解析 UPLOAD=20,DOWNLOAD=50 形式的比例，展开成按比例重复的数组
+    private static Command[] parseMix(String spec) {
+        List<Command> expanded = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split("=");
+            Command command = Command.valueOf(pair[0].trim().toUpperCase());
+            int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                expanded.add(command);
+            }
+        }
+        if (expanded.isEmpty()) {
+            throw new IllegalArgumentException("load.mix 没有任何请求类型: " + spec);
+        }
+        return expanded.toArray(new Command[0]);
+    }
+
+    private static void awaitServer() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(EasyCloudDiskClient.getServerAddress(),
+                        EasyCloudDiskClient.getServerPort()), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("服务端未在 " + START_TIMEOUT + " 毫秒内启动", e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // 创建会话，生成本地文件并上传一份供下载请求使用
+    private void prepare() throws IOException {
+        for (int i = 0; i < sessionCount; i++) {
+            sessions.add(new EasyCloudDiskClient());
+        }
+        Path source = localDir.resolve("source");
+        byte[] buffer = new byte[64 * 1024];
+        Random random = new Random(1);
+        try (OutputStream out = Files.newOutputStream(source)) {
+            for (long written = 0; written < fileSize; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+            }
+        }
+        sourceFile = source.toString();
+        sessions.get(0).uploadFileSingleThread(sourceFile, REMOTE_DIR + "source");
+    }
+
+    /**
+     * 以给定速率运行一轮压测，预热期间的请求照常发出但不计入统计
+     */
+    private Stats run(double requestsPerSecond) throws InterruptedException {
+        Stats stats = new Stats();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicLong sequence = new AtomicLong();
+        SplittableRandom random = new SplittableRandom(42);
+        long meanInterval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long intended = start;
+            while (true) {
+                // 指数分布的到达间隔
+                intended += (long) (-Math.log(1 - random.nextDouble()) * meanInterval);
+                if (intended >= end) {
+                    break;
+                }
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                Command command = mix[random.nextInt(mix.length)];
+                boolean measured = intended >= measureFrom;
+                if (inFlight.get() >= maxInFlight) {
+                    // 开环压测不能阻塞等待，超过上限的请求直接计为丢弃
+                    if (measured) {
+                        stats.dropped.incrementAndGet();
+                    }
+                    continue;
+                }
+                inFlight.incrementAndGet();
+                long scheduled = intended;
+                long id = sequence.getAndIncrement();
+                executor.execute(() -> {
+                    try {
+                        boolean ok = execute(command, id);
+                        if (measured) {
+                            stats.latencies.get(command).record(
+                                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+                            if (!ok) {
+                                stats.errors.get(command).incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            }
+            // 关闭执行器时等待已发出的请求完成
+        }
+        return stats;
+    }
+
+    // 执行一个请求，返回是否成功；客户端出错时只打印日志，这里通过结果文件判断
+    private boolean execute(Command command, long id) {
+        EasyCloudDiskClient session = sessions.get((int) (id % sessions.size()));
+        try {
+            switch (command) {
+                case UPLOAD: {
+                    String remotePath = REMOTE_DIR + "upload-" + (id % UPLOAD_SLOTS);
+                    session.uploadFileSingleThread(sourceFile, remotePath);
+                    return new File("src/main/java/cloud/" + remotePath).length() == fileSize;
+                }
+                case DOWNLOAD: {
+                    File target = localDir.resolve("download-" + id).toFile();
+                    session.downloadFile(REMOTE_DIR + "source", target.getPath());
+                    return target.length() == fileSize && target.delete();
+                }
+                case RANGE_DOWNLOAD: {
+                    File target = localDir.resolve("range-" + id).toFile();
+                    session.downloadFileMultiThread(REMOTE_DIR + "source", target.getPath());
+                    return target.length() == fileSize && target.delete();
+                }
+                case LIST:
+                default:
+                    return session.listFiles(REMOTE_DIR, "", 100) != null;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("压测请求异常: " + command + " " + e);
+            return false;
+        }
+    }
+
+    private void report(Stats stats, PrintStream out) {
+        double seconds = durationNanos / 1e9;
+        out.printf("%-15s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                "命令", "完成", "失败", "吞吐/秒", "p50 ms", "p90 ms", "p99 ms", "p999 ms", "max ms");
+        long total = 0;
+        for (Command command : Command.values()) {
+            LatencyHistogram histogram = stats.latencies.get(command);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            total += histogram.getCount();
+            out.printf("%-15s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", command, histogram.getCount(),
+                    stats.errors.get(command).get(), histogram.getCount() / seconds,
+                    millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+                    millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMax()));
+        }
+        out.printf("合计 %d 次，吞吐 %.1f 次/秒，因并发上限丢弃 %d 次%n", total, total / seconds, stats.dropped.get());
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private void close() {
+        for (EasyCloudDiskClient session : sessions) {
+            session.close();
+        }
+        try (Stream<Path> paths = Files.walk(localDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("清理本地文件失败: " + e.getMessage());
+        }
+        try (Stream<Path> paths = Files.walk(Paths.get("src/main/java/cloud/" + REMOTE_DIR))) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("清理云盘文件失败: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,340 @@
+import util.AsyncLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * 基于 Selector 的非阻塞接入/分发循环
+ * <p>
+ * 主 Reactor 负责 accept，并把新连接轮询分配给若干子 Reactor；子 Reactor 以非阻塞方式
+ * 读取 readUTF 格式的命令及其固定头部字段，头部完整后才把连接交给工作线程执行磁盘相关的处理。
+ * 空闲或发送缓慢的连接只占用 Selector 中的一个注册项，不会占用工作线程。长连接上的请求处理完后，
+ * 工作线程通过 {@link #resume} 把连接交还给子 Reactor 等待下一个请求。
+ */
+class NioServerReactor {
+    // 命令头部字段布局: U = writeUTF 字符串, L = long, I = int, B = boolean, C = 嵌套的命令及其头部
+    // 这里只描述处理器在开始阻塞 I/O 之前需要读取的部分，文件内容等由工作线程继续读取
+    private static final Map<String, String> COMMAND_HEADERS = Map.ofEntries(
+            Map.entry("UPLOAD", "ULU"),
+            Map.entry("UPLOAD_STREAM", "UL"),
+            Map.entry("DOWNLOAD", "U"),
+            Map.entry("LIST", ""),
+            Map.entry("LIST_PAGE", "UUI"),
+            Map.entry("UPLOAD_MULTI", "ULIILLU"),
+            Map.entry("BATCH_UPLOAD", "I"),
+            Map.entry("BATCH_UPLOAD_STREAM", "I"),
+            Map.entry("BATCH_PACK", "I"),
+            Map.entry("CHUNK_UPLOAD", "ULI"),
+            Map.entry("DELTA_UPLOAD", "U"),
+            Map.entry("COMPRESS", "UC"),
+            Map.entry("BATCH_DOWNLOAD", "I"),
+            Map.entry("BATCH_GET", "I"),
+            Map.entry("RANGE_DOWNLOAD", "ULL"),
+            Map.entry("RANGE_UPLOAD_INIT", "UL"),
+            Map.entry("RANGE_UPLOAD", "ULL"),
+            Map.entry("RANGE_UPLOAD_FINISH", "ULU"),
+            Map.entry("UPLOAD_QUERY", "ULU"),
+            Map.entry("UPLOAD_RESUME", "ULL"),
+            Map.entry("UPLOAD_RESUME_FINISH", "U"),
+            Map.entry("STAT", "U"),
+            Map.entry("REQ", "IC"),
+            Map.entry("FRAMED", "")
+    );
+    private static final int INITIAL_HEADER_BUFFER = 512;
+    private static final int MAX_HEADER_SIZE = 256 * 1024;
+
+    private final int port;
+    private final SubReactor[] subReactors;
+    private final BiConsumer<SocketChannel, byte[]> dispatcher;
+    private final AtomicInteger nextSubReactor = new AtomicInteger();
+    private int socketBufferSize = 0; // 接入连接的收发缓冲区大小，0 表示保持系统默认
+
+    /**
+     * @param port         监听端口
+     * @param reactorCount 子 Reactor 线程数
+     * @param dispatcher   头部读取完成后的回调，参数为（已切回阻塞模式前的）连接和已预读的字节
+     */
+    NioServerReactor(int port, int reactorCount, BiConsumer<SocketChannel, byte[]> dispatcher) {
+        this.port = port;
+        this.dispatcher = dispatcher;
+        this.subReactors = new SubReactor[Math.max(1, reactorCount)];
+    }
+
+    /**
+     * 设置接入连接的收发缓冲区大小，需要在 {@link #run()} 之前调用；接收缓冲区设置在监听套接字上，由接入的连接继承
+     */
+    void setSocketBufferSize(int socketBufferSize) {
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    /**
+     * 启动 Reactor，当前线程作为 accept 循环运行，直到发生不可恢复的错误
+     */
+    void run() throws IOException {
+        for (int i = 0; i < subReactors.length; i++) {
+            subReactors[i] = new SubReactor();
+            Thread thread = new Thread(subReactors[i], "nio-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (Selector acceptSelector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            if (socketBufferSize > 0) {
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+            }
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            AsyncLog.info("服务器已启动（NIO 模式，" + subReactors.length + " 个 Reactor），监听端口: " + port);
+
+            while (true) {
+                acceptSelector.select();
+                Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid() || !key.isAcceptable()) {
+                        continue;
+                    }
+                    SocketChannel channel;
+                    while ((channel = serverChannel.accept()) != null) {
+                        Socket socket = channel.socket();
+                        AsyncLog.debug(() -> "客户端已连接: " + socket.getInetAddress());
+                        channel.configureBlocking(false);
+                        socket.setTcpNoDelay(true);
+                        if (socketBufferSize > 0) {
+                            socket.setSendBufferSize(socketBufferSize);
+                        }
+                        nextSubReactor().register(channel, new byte[0]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 把处理完一个请求的长连接交还给 Reactor，等待下一个请求的头部
+     *
+     * @param leftover 工作线程已经预读但尚未处理的字节（客户端流水线发送的后续请求）
+     */
+    void resume(SocketChannel channel, byte[] leftover) throws IOException {
+        channel.configureBlocking(false);
+        nextSubReactor().register(channel, leftover);
+    }
+
+    private SubReactor nextSubReactor() {
+        return subReactors[Math.floorMod(nextSubReactor.getAndIncrement(), subReactors.length)];
+    }
+
+    /**
+     * 检查缓冲区中是否已包含完整的命令头部
+     *
+     * @return 头部完整返回 true；数据不足返回 false
+     */
+    static boolean isHeaderComplete(ByteBuffer buffer) {
+        return headerEnd(buffer, 0, buffer.position()) >= 0;
+    }
+
+    // 从 pos 开始解析一个命令及其头部，返回头部结束的位置，数据不足时返回 -1
+    private static int headerEnd(ByteBuffer buffer, int pos, int limit) {
+        if (limit < pos + 2) {
+            return -1;
+        }
+        int commandLength = buffer.getShort(pos) & 0xFFFF;
+        pos += 2;
+        if (limit < pos + commandLength) {
+            return -1;
+        }
+        String command = new String(buffer.array(), pos, commandLength, StandardCharsets.UTF_8);
+        pos += commandLength;
+
+        // 未知命令没有头部，交给工作线程按原有逻辑处理
+        String layout = COMMAND_HEADERS.getOrDefault(command, "");
+        for (int i = 0; i < layout.length(); i++) {
+            switch (layout.charAt(i)) {
+                case 'U':
+                    if (limit < pos + 2) {
+                        return -1;
+                    }
+                    pos += 2 + (buffer.getShort(pos) & 0xFFFF);
+                    break;
+                case 'L':
+                    pos += 8;
+                    break;
+                case 'I':
+                    pos += 4;
+                    break;
+                case 'B':
+                    pos += 1;
+                    break;
+                case 'C':
+                    pos = headerEnd(buffer, pos, limit);
+                    if (pos < 0) {
+                        return -1;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("未知的头部字段类型: " + layout.charAt(i));
+            }
+            if (limit < pos) {
+                return -1;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * 子 Reactor：只负责非阻塞地读取命令头部
+     */
+    private class SubReactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+
+        SubReactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel, byte[] prefetched) {
+            pending.add(new Registration(channel, prefetched));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            List<SelectionKey> ready = new ArrayList<>();
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending(ready);
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isReadable() && readHeader(key)) {
+                            key.cancel();
+                            ready.add(key);
+                        }
+                    }
+
+                    if (!ready.isEmpty()) {
+                        // 取消的注册要在下一次 select 后才真正生效，之后连接才能切回阻塞模式
+                        selector.selectNow();
+                        for (SelectionKey key : ready) {
+                            ByteBuffer buffer = (ByteBuffer) key.attachment();
+                            byte[] prefetched = new byte[buffer.position()];
+                            buffer.flip();
+                            buffer.get(prefetched);
+                            dispatcher.accept((SocketChannel) key.channel(), prefetched);
+                        }
+                        ready.clear();
+                    }
+                } catch (IOException e) {
+                    AsyncLog.error("Reactor 错误: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        // 注册新连接；交还的长连接如果预读的字节中已经有完整的请求头部，不会再有可读事件，直接放入 ready
+        private void registerPending(List<SelectionKey> ready) {
+            Registration registration;
+            while ((registration = pending.poll()) != null) {
+                byte[] prefetched = registration.prefetched;
+                ByteBuffer buffer = ByteBuffer.allocate(
+                        Math.min(MAX_HEADER_SIZE, Math.max(INITIAL_HEADER_BUFFER, prefetched.length * 2)));
+                buffer.put(prefetched);
+                try {
+                    SelectionKey key = registration.channel.register(selector, SelectionKey.OP_READ, buffer);
+                    if (prefetched.length > 0 && isHeaderComplete(buffer)) {
+                        key.cancel();
+                        ready.add(key);
+                    }
+                } catch (IOException e) {
+                    AsyncLog.warn("注册连接失败: " + e.getMessage());
+                    closeQuietly(registration.channel);
+                }
+            }
+        }
+
+        /**
+         * 读取可用数据并检查头部是否完整
+         *
+         * @return 头部完整时返回 true
+         */
+        private boolean readHeader(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            try {
+                while (true) {
+                    if (!buffer.hasRemaining()) {
+                        if (buffer.capacity() >= MAX_HEADER_SIZE) {
+                            AsyncLog.warn("命令头部过大，关闭连接: " + channel.socket().getInetAddress());
+                            key.cancel();
+                            closeQuietly(channel);
+                            return false;
+                        }
+                        ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_HEADER_SIZE));
+                        buffer.flip();
+                        larger.put(buffer);
+                        buffer = larger;
+                        key.attach(buffer);
+                    }
+
+                    int read = channel.read(buffer);
+                    if (read == -1) {
+                        AsyncLog.debug(() -> "客户端断开连接: " + channel.socket().getInetAddress());
+                        key.cancel();
+                        closeQuietly(channel);
+                        return false;
+                    }
+                    if (isHeaderComplete(buffer)) {
+                        return true;
+                    }
+                    if (read == 0) {
+                        return false;
+                    }
+                }
+            } catch (IOException e) {
+                AsyncLog.warn("读取命令头部错误: " + e.getMessage());
+                key.cancel();
+                closeQuietly(channel);
+                return false;
+            }
+        }
+    }
+
+    private static class Registration {
+        private final SocketChannel channel;
+        private final byte[] prefetched;
+
+        Registration(SocketChannel channel, byte[] prefetched) {
+            this.channel = channel;
+            this.prefetched = prefetched;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略关闭异常
+        }
+    }
+}
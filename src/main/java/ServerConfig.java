@@ -0,0 +1,249 @@
+import util.TransferTuning;
+
+/**
+ * 服务端配置
+ * <p>
+ * 默认值与原先硬编码的常量一致，也可以通过 -D 系统属性覆盖，例如:
+ * <pre>
+ * -Dcloud.server.executor=VIRTUAL -Dcloud.server.maxTransfers=64 -Dcloud.server.nio=true
+ * -Dcloud.server.maxChunkSize=65536 -Dcloud.server.socketBuffer=4194304 -Dcloud.server.metricsPort=9090
+ * -Dcloud.server.zeroCopy=false -Dcloud.server.contentCacheBytes=67108864
+ * </pre>
+ */
+public class ServerConfig {
+    /**
+     * 工作线程的执行策略
+     */
+    public enum ExecutorMode {
+        // 固定大小的平台线程池
+        FIXED,
+        // 每个连接一个虚拟线程
+        VIRTUAL
+    }
+
+    private int port = 8888;
+    private ExecutorMode executorMode = ExecutorMode.FIXED;
+    private int fixedPoolSize = 10;
+    private int maxConcurrentTransfers = 0; // 同时进行的文件操作数上限，0 表示不限制
+    private boolean nioMode = false;
+    private int nioReactorCount = 2;
+    private boolean zeroCopy = true; // 下载时是否使用 transferTo 零拷贝
+    private int digestCacheEntries = 4096; // MD5 缓存最多保存的文件数
+    private String digestIndexFile = "src/main/java/.digest-index"; // MD5 缓存的旁路索引文件，为空时不持久化
+    private boolean chunkIndexing = true; // 上传时是否顺带切分并登记去重分块，关闭后只有去重上传的文件进入分块索引
+    private String chunkIndexFile = "src/main/java/.chunk-index"; // 去重分块索引的旁路索引文件，为空时不持久化
+    private int keepAliveTimeout = 60000; // 阻塞模式下长连接的空闲超时（毫秒），NIO 模式下空闲连接由 Reactor 持有
+    private int chunkSize = 0; // 文件读写的分块大小，0 表示按文件大小选取
+    private int maxChunkSize = TransferTuning.DEFAULT_MAX_CHUNK; // 按文件大小选取时分块大小的上限
+    private int socketBuffer = 0; // 套接字收发缓冲区大小，0 表示保持系统的自动调整
+    private int flushBytes = 0; // 经流发送文件时每写出这么多字节刷新一次，0 表示只在结束时刷新
+    private int metricsPort = 0; // 指标文本端点的端口，0 表示不开启
+    private long mappedCacheBytes = 256L * 1024 * 1024; // 范围下载共用的文件映射总大小上限，0 表示不使用映射
+    private long contentCacheBytes = 0; // 热点小文件内容缓存的总大小上限，0 表示不缓存；只在关闭零拷贝时起作用
+
+    /**
+     * 从系统属性读取配置，未设置的项使用默认值
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.port = Integer.getInteger("cloud.server.port", config.port);
+        config.executorMode = ExecutorMode.valueOf(
+                System.getProperty("cloud.server.executor", config.executorMode.name()).toUpperCase());
+        config.fixedPoolSize = Integer.getInteger("cloud.server.poolSize", config.fixedPoolSize);
+        config.maxConcurrentTransfers = Integer.getInteger("cloud.server.maxTransfers", config.maxConcurrentTransfers);
+        config.nioMode = Boolean.parseBoolean(System.getProperty("cloud.server.nio", String.valueOf(config.nioMode)));
+        config.nioReactorCount = Integer.getInteger("cloud.server.reactors", config.nioReactorCount);
+        config.zeroCopy = Boolean.parseBoolean(System.getProperty("cloud.server.zeroCopy", String.valueOf(config.zeroCopy)));
+        config.digestCacheEntries = Integer.getInteger("cloud.server.digestCacheEntries", config.digestCacheEntries);
+        config.digestIndexFile = System.getProperty("cloud.server.digestIndex", config.digestIndexFile);
+        config.chunkIndexing = Boolean.parseBoolean(System.getProperty("cloud.server.chunkIndexing", String.valueOf(config.chunkIndexing)));
+        config.chunkIndexFile = System.getProperty("cloud.server.chunkIndex", config.chunkIndexFile);
+        config.keepAliveTimeout = Integer.getInteger("cloud.server.keepAliveTimeout", config.keepAliveTimeout);
+        config.chunkSize = Integer.getInteger("cloud.server.chunkSize", config.chunkSize);
+        config.maxChunkSize = Integer.getInteger("cloud.server.maxChunkSize", config.maxChunkSize);
+        config.socketBuffer = Integer.getInteger("cloud.server.socketBuffer", config.socketBuffer);
+        config.flushBytes = Integer.getInteger("cloud.server.flushBytes", config.flushBytes);
+        config.metricsPort = Integer.getInteger("cloud.server.metricsPort", config.metricsPort);
+        config.mappedCacheBytes = Long.getLong("cloud.server.mappedCacheBytes", config.mappedCacheBytes);
+        config.contentCacheBytes = Long.getLong("cloud.server.contentCacheBytes", config.contentCacheBytes);
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public ServerConfig setExecutorMode(ExecutorMode executorMode) {
+        this.executorMode = executorMode;
+        return this;
+    }
+
+    public int getFixedPoolSize() {
+        return fixedPoolSize;
+    }
+
+    public ServerConfig setFixedPoolSize(int fixedPoolSize) {
+        this.fixedPoolSize = fixedPoolSize;
+        return this;
+    }
+
+    public int getMaxConcurrentTransfers() {
+        return maxConcurrentTransfers;
+    }
+
+    public ServerConfig setMaxConcurrentTransfers(int maxConcurrentTransfers) {
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+        return this;
+    }
+
+    public boolean isNioMode() {
+        return nioMode;
+    }
+
+    public ServerConfig setNioMode(boolean nioMode) {
+        this.nioMode = nioMode;
+        return this;
+    }
+
+    public int getNioReactorCount() {
+        return nioReactorCount;
+    }
+
+    public ServerConfig setNioReactorCount(int nioReactorCount) {
+        this.nioReactorCount = nioReactorCount;
+        return this;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    public ServerConfig setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+        return this;
+    }
+
+    public int getDigestCacheEntries() {
+        return digestCacheEntries;
+    }
+
+    public ServerConfig setDigestCacheEntries(int digestCacheEntries) {
+        this.digestCacheEntries = digestCacheEntries;
+        return this;
+    }
+
+    public String getDigestIndexFile() {
+        return digestIndexFile;
+    }
+
+    public ServerConfig setDigestIndexFile(String digestIndexFile) {
+        this.digestIndexFile = digestIndexFile;
+        return this;
+    }
+
+    public boolean isChunkIndexing() {
+        return chunkIndexing;
+    }
+
+    public ServerConfig setChunkIndexing(boolean chunkIndexing) {
+        this.chunkIndexing = chunkIndexing;
+        return this;
+    }
+
+    public String getChunkIndexFile() {
+        return chunkIndexFile;
+    }
+
+    public ServerConfig setChunkIndexFile(String chunkIndexFile) {
+        this.chunkIndexFile = chunkIndexFile;
+        return this;
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public ServerConfig setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public ServerConfig setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public ServerConfig setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+        return this;
+    }
+
+    public int getSocketBuffer() {
+        return socketBuffer;
+    }
+
+    public ServerConfig setSocketBuffer(int socketBuffer) {
+        this.socketBuffer = socketBuffer;
+        return this;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public ServerConfig setFlushBytes(int flushBytes) {
+        this.flushBytes = flushBytes;
+        return this;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    public long getMappedCacheBytes() {
+        return mappedCacheBytes;
+    }
+
+    public ServerConfig setMappedCacheBytes(long mappedCacheBytes) {
+        this.mappedCacheBytes = mappedCacheBytes;
+        return this;
+    }
+
+    public long getContentCacheBytes() {
+        return contentCacheBytes;
+    }
+
+    public ServerConfig setContentCacheBytes(long contentCacheBytes) {
+        this.contentCacheBytes = contentCacheBytes;
+        return this;
+    }
+
+    /**
+     * 按配置创建传输参数
+     */
+    public TransferTuning createTransferTuning() {
+        return new TransferTuning(chunkSize, maxChunkSize, socketBuffer, flushBytes);
+    }
+}
@@ -0,0 +1,431 @@
+import com.sun.net.httpserver.HttpServer;
+import util.AsyncLog;
+import util.BufferPool;
+import util.ContentCache;
+import util.DigestCache;
+import util.LatencyHistogram;
+import util.MappedRegionCache;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务端运行指标
+ * <p>
+ * 计数全部使用 LongAdder，传输线程只在各自的分段上累加，读取时才汇总；命令延迟记入 {@link LatencyHistogram}。
+ * 耗时按MD5、网络和磁盘分类，由传输路径在本地累计后每次操作提交一次。零拷贝发送时磁盘读取和网络发送在内核中
+ * 同时进行，整段计入网络。
+ * <p>
+ * 指标通过 JMX 和 HTTP 文本端点（Prometheus 文本格式，路径 /metrics）暴露，端点端口由
+ * cloud.server.metricsPort 配置，0 表示不开启。
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    /**
+     * 耗时分类
+     */
+    public enum Phase {
+        MD5, NETWORK, DISK
+    }
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final ConcurrentHashMap<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder connectionsTotal = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+    private final ExecutorService executor;
+    private final Semaphore transferPermits; // 为 null 时不限制并发，没有等待队列
+    private final DigestCache digestCache;
+    private final MappedRegionCache mappedRegions; // 为 null 时没有开启映射
+    private final ContentCache contentCache; // 为 null 时没有开启内容缓存
+    private final BufferPool[] bufferPools;
+
+    ServerMetrics(ExecutorService executor, Semaphore transferPermits, DigestCache digestCache,
+                  MappedRegionCache mappedRegions, ContentCache contentCache, BufferPool... bufferPools) {
+        this.executor = executor;
+        this.transferPermits = transferPermits;
+        this.digestCache = digestCache;
+        this.mappedRegions = mappedRegions;
+        this.contentCache = contentCache;
+        this.bufferPools = bufferPools;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 每个命令的统计
+     */
+    private static final class CommandStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LatencyHistogram latencyMicros = new LatencyHistogram();
+    }
+
+    /**
+     * 记录一次命令处理，耗时包括等待传输许可的时间
+     *
+     * @param failed 处理过程中抛出了异常
+     */
+    void recordCommand(String command, long elapsedNanos, boolean failed) {
+        CommandStats stats = commands.computeIfAbsent(command, name -> new CommandStats());
+        stats.count.increment();
+        if (failed) {
+            stats.errors.increment();
+        }
+        stats.latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    void addTime(Phase phase, long nanos) {
+        if (nanos > 0) {
+            phaseNanos[phase.ordinal()].add(nanos);
+        }
+    }
+
+    void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+        connectionsTotal.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * 包装连接的输入流，统计读到的字节数
+     */
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = in.skip(n);
+                bytesIn.add(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * 包装连接的输出流，统计写出的字节数；经 SocketChannel 直接发送的字节由调用方另行记入
+     */
+    OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // FilterOutputStream 默认逐字节写出，这里直接交给底层流
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    /**
+     * 注册到平台 MBeanServer；同一个 JVM 中同端口的旧实例会被替换
+     */
+    void registerMBean(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("EasyCloudDisk:type=ServerMetrics,port=" + port);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            AsyncLog.warn("注册 JMX 指标失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 在 port 上开启 HTTP 文本端点，GET /metrics 返回 {@link #scrape()} 的内容
+     */
+    void startEndpoint(int port) throws IOException {
+        HttpServer endpoint = HttpServer.create(new InetSocketAddress(port), 0);
+        endpoint.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        // 默认在单个后台线程中处理请求，抓取频率很低，不需要线程池
+        endpoint.start();
+        AsyncLog.info("指标端点已启动: http://localhost:" + port + "/metrics");
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getConnectionsTotal() {
+        return connectionsTotal.sum();
+    }
+
+    /**
+     * 固定线程池中排队等待工作线程的任务数；虚拟线程模式下每个任务立即有线程，总是 0
+     */
+    @Override
+    public int getExecutorQueueDepth() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    /**
+     * 等待传输许可的线程数
+     */
+    @Override
+    public int getTransferQueueDepth() {
+        return transferPermits == null ? 0 : transferPermits.getQueueLength();
+    }
+
+    @Override
+    public long getMd5Millis() {
+        return phaseMillis(Phase.MD5);
+    }
+
+    @Override
+    public long getNetworkMillis() {
+        return phaseMillis(Phase.NETWORK);
+    }
+
+    @Override
+    public long getDiskMillis() {
+        return phaseMillis(Phase.DISK);
+    }
+
+    private long phaseMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()].sum());
+    }
+
+    @Override
+    public long getCommandCount() {
+        long total = 0;
+        for (CommandStats stats : commands.values()) {
+            total += stats.count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCommandErrors() {
+        long total = 0;
+        for (CommandStats stats : commands.values()) {
+            total += stats.errors.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public String[] getCommandSummaries() {
+        Map<String, CommandStats> sorted = new TreeMap<>(commands);
+        String[] summaries = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            CommandStats stats = entry.getValue();
+            LatencyHistogram latency = stats.latencyMicros;
+            summaries[i++] = entry.getKey() + " count=" + stats.count.sum() + " errors=" + stats.errors.sum()
+                    + " p50=" + latency.getValueAtPercentile(50) + "us p99=" + latency.getValueAtPercentile(99)
+                    + "us max=" + latency.getMax() + "us";
+        }
+        return summaries;
+    }
+
+    @Override
+    public long getDroppedLogMessages() {
+        return AsyncLog.getDropped();
+    }
+
+    @Override
+    public String getLogLevel() {
+        return AsyncLog.getLevel().name();
+    }
+
+    @Override
+    public void setLogLevel(String level) {
+        AsyncLog.setLevel(AsyncLog.parseLevel(level, AsyncLog.getLevel()));
+    }
+
+    @Override
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        metric(sb, "cloud_commands_total", "counter", "已处理的命令数");
+        Map<String, CommandStats> sorted = new TreeMap<>(commands);
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            sample(sb, "cloud_commands_total", "command=\"" + entry.getKey() + "\"", entry.getValue().count.sum());
+        }
+        metric(sb, "cloud_command_errors_total", "counter", "处理时抛出异常的命令数");
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            sample(sb, "cloud_command_errors_total", "command=\"" + entry.getKey() + "\"", entry.getValue().errors.sum());
+        }
+        metric(sb, "cloud_command_latency_seconds", "summary", "命令处理耗时，包括等待传输许可");
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            String command = "command=\"" + entry.getKey() + "\"";
+            LatencyHistogram latency = entry.getValue().latencyMicros;
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sample(sb, "cloud_command_latency_seconds", command + ",quantile=\"" + QUANTILE_LABELS[i] + "\"",
+                        latency.getValueAtPercentile(PERCENTILES[i]) / 1e6);
+            }
+            sample(sb, "cloud_command_latency_seconds_sum", command, latency.getMean() * latency.getCount() / 1e6);
+            sample(sb, "cloud_command_latency_seconds_count", command, latency.getCount());
+        }
+
+        metric(sb, "cloud_bytes_in_total", "counter", "从客户端读到的字节数");
+        sample(sb, "cloud_bytes_in_total", null, getBytesIn());
+        metric(sb, "cloud_bytes_out_total", "counter", "发送给客户端的字节数");
+        sample(sb, "cloud_bytes_out_total", null, getBytesOut());
+
+        metric(sb, "cloud_connections_active", "gauge", "工作线程正在处理的连接数");
+        sample(sb, "cloud_connections_active", null, getActiveConnections());
+        metric(sb, "cloud_connections_total", "counter", "交给工作线程处理过的连接数");
+        sample(sb, "cloud_connections_total", null, getConnectionsTotal());
+        metric(sb, "cloud_executor_queue_depth", "gauge", "等待工作线程的任务数");
+        sample(sb, "cloud_executor_queue_depth", null, getExecutorQueueDepth());
+        metric(sb, "cloud_transfer_queue_depth", "gauge", "等待传输许可的线程数");
+        sample(sb, "cloud_transfer_queue_depth", null, getTransferQueueDepth());
+
+        metric(sb, "cloud_phase_seconds_total", "counter", "传输路径在MD5、网络和磁盘上花费的时间");
+        for (Phase phase : Phase.values()) {
+            sample(sb, "cloud_phase_seconds_total", "phase=\"" + phase.name().toLowerCase() + "\"",
+                    phaseNanos[phase.ordinal()].sum() / 1e9);
+        }
+
+        metric(sb, "cloud_digest_cache_requests_total", "counter", "MD5缓存的命中和未命中次数");
+        sample(sb, "cloud_digest_cache_requests_total", "result=\"hit\"", digestCache.getHits());
+        sample(sb, "cloud_digest_cache_requests_total", "result=\"miss\"", digestCache.getMisses());
+
+        if (mappedRegions != null) {
+            metric(sb, "cloud_mapped_region_bytes", "gauge", "范围下载共用的文件映射总大小");
+            sample(sb, "cloud_mapped_region_bytes", null, mappedRegions.getMappedBytes());
+            metric(sb, "cloud_mapped_region_requests_total", "counter", "映射区域的命中和未命中次数");
+            sample(sb, "cloud_mapped_region_requests_total", "result=\"hit\"", mappedRegions.getHits());
+            sample(sb, "cloud_mapped_region_requests_total", "result=\"miss\"", mappedRegions.getMisses());
+            metric(sb, "cloud_mapped_region_evictions_total", "counter", "因超过总大小上限而淘汰的映射区域数");
+            sample(sb, "cloud_mapped_region_evictions_total", null, mappedRegions.getEvictions());
+        }
+
+        if (contentCache != null) {
+            metric(sb, "cloud_content_cache_bytes", "gauge", "内容缓存中的文件总大小");
+            sample(sb, "cloud_content_cache_bytes", null, contentCache.getCachedBytes());
+            metric(sb, "cloud_content_cache_requests_total", "counter", "内容缓存的命中和未命中次数");
+            sample(sb, "cloud_content_cache_requests_total", "result=\"hit\"", contentCache.getHits());
+            sample(sb, "cloud_content_cache_requests_total", "result=\"miss\"", contentCache.getMisses());
+            metric(sb, "cloud_content_cache_evictions_total", "counter", "因超过总大小上限而淘汰的文件数");
+            sample(sb, "cloud_content_cache_evictions_total", null, contentCache.getEvictions());
+        }
+
+        metric(sb, "cloud_buffer_pool_outstanding", "gauge", "借出未归还的缓冲区数");
+        for (BufferPool pool : bufferPools) {
+            sample(sb, "cloud_buffer_pool_outstanding", poolLabel(pool), pool.getOutstanding());
+        }
+        metric(sb, "cloud_buffer_pool_retained_bytes", "gauge", "池中空闲缓冲区的字节数");
+        for (BufferPool pool : bufferPools) {
+            sample(sb, "cloud_buffer_pool_retained_bytes", poolLabel(pool), pool.getRetainedBytes());
+        }
+        metric(sb, "cloud_buffer_pool_allocated_total", "counter", "新分配的缓冲区数");
+        for (BufferPool pool : bufferPools) {
+            sample(sb, "cloud_buffer_pool_allocated_total", poolLabel(pool), pool.getAllocated());
+        }
+        metric(sb, "cloud_buffer_pool_leaked_total", "counter", "未归还就被回收的缓冲区数");
+        for (BufferPool pool : bufferPools) {
+            sample(sb, "cloud_buffer_pool_leaked_total", poolLabel(pool), pool.getLeaked());
+        }
+
+        metric(sb, "cloud_log_dropped_total", "counter", "日志队列已满而丢弃的消息数");
+        sample(sb, "cloud_log_dropped_total", null, getDroppedLogMessages());
+        return sb.toString();
+    }
+
+    private static String poolLabel(BufferPool pool) {
+        return pool.isDirect() ? "pool=\"direct\"" : "pool=\"heap\"";
+    }
+
+    private static void metric(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        appendName(sb, name, labels).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        appendName(sb, name, labels).append(value).append('\n');
+    }
+
+    private static StringBuilder appendName(StringBuilder sb, String name, String labels) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        return sb.append(' ');
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * 服务端运行指标的 JMX 接口，注册名为 EasyCloudDisk:type=ServerMetrics,port=端口
+ * <p>
+ * 耗时单位为毫秒，命令延迟单位为微秒。
+ */
+public interface ServerMetricsMBean {
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getActiveConnections();
+
+    long getConnectionsTotal();
+
+    int getExecutorQueueDepth();
+
+    int getTransferQueueDepth();
+
+    long getMd5Millis();
+
+    long getNetworkMillis();
+
+    long getDiskMillis();
+
+    long getCommandCount();
+
+    long getCommandErrors();
+
+    /**
+     * 每个命令一行：次数、错误数和延迟分位数
+     */
+    String[] getCommandSummaries();
+
+    long getDroppedLogMessages();
+
+    String getLogLevel();
+
+    void setLogLevel(String level);
+
+    /**
+     * 与抓取端点相同的文本格式
+     */
+    String scrape();
+}
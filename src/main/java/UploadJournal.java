@@ -0,0 +1,291 @@
+import util.AsyncLog;
+import util.MD5Util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * 可续传上传的服务端日志
+ * <p>
+ * 每个上传由 (云盘路径, 文件大小, MD5) 唯一确定一个上传ID，日志文件 &lt;ID&gt;.journal 的第一行记录
+ * 文件信息，之后每行追加一段已经写入磁盘的范围 "offset length"。连接中断后，客户端可以查询缺失的范围，
+ * 只重传这些部分；服务端重启后日志同样有效。
+ * <p>
+ * UPLOAD_STREAM 的MD5在数据之后才发送，中断时日志中的MD5为空字符串；之后带MD5的查询会接管这份日志，
+ * 最终的整文件校验保证接管的数据确实属于同一个文件。
+ * <p>
+ * 上传ID来自客户端，只接受 32 位小写十六进制；无法解析的日志按不存在处理。
+ */
+class UploadJournal {
+    private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f]{32}");
+
+    private final Path journalDir;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    UploadJournal(String journalDir) {
+        this.journalDir = Paths.get(journalDir);
+    }
+
+    /**
+     * 根据文件信息计算上传ID
+     */
+    static String uploadId(String filePath, long fileSize, String md5) {
+        byte[] digest = MD5Util.newMD5().digest((filePath + "\n" + fileSize + "\n" + md5).getBytes(StandardCharsets.UTF_8));
+        return MD5Util.toHex(digest);
+    }
+
+    /**
+     * 打开一个上传的日志，不存在时创建
+     *
+     * @return 日志项，created 表示是否为新建
+     */
+    Entry open(String filePath, long fileSize, String md5) throws IOException {
+        String id = uploadId(filePath, fileSize, md5);
+        Entry entry = get(id);
+        if (entry != null) {
+            return entry;
+        }
+        if (!md5.isEmpty()) {
+            Entry anonymous = get(uploadId(filePath, fileSize, ""));
+            if (anonymous != null) {
+                return adopt(anonymous, md5);
+            }
+        }
+
+        Files.createDirectories(journalDir);
+        Entry created = new Entry(id, filePath, fileSize, md5, true);
+        Entry existing = entries.putIfAbsent(id, created);
+        if (existing != null) {
+            return existing;
+        }
+        try (Writer writer = Files.newBufferedWriter(created.journalFile, StandardCharsets.UTF_8)) {
+            writer.write(fileSize + "\t" + md5 + "\t" + filePath + "\n");
+        }
+        return created;
+    }
+
+    // 把不带MD5的日志转为带MD5的日志，保留已接收的范围
+    private Entry adopt(Entry anonymous, String md5) throws IOException {
+        Entry adopted = new Entry(uploadId(anonymous.filePath, anonymous.fileSize, md5),
+                anonymous.filePath, anonymous.fileSize, md5, false);
+        try (Writer writer = Files.newBufferedWriter(adopted.journalFile, StandardCharsets.UTF_8)) {
+            writer.write(adopted.fileSize + "\t" + md5 + "\t" + adopted.filePath + "\n");
+            anonymous.lock.lock();
+            try {
+                for (Map.Entry<Long, Long> range : anonymous.received.entrySet()) {
+                    writer.write(range.getKey() + " " + (range.getValue() - range.getKey()) + "\n");
+                    adopted.received.put(range.getKey(), range.getValue());
+                }
+            } finally {
+                anonymous.lock.unlock();
+            }
+        }
+
+        Entry existing = entries.putIfAbsent(adopted.id, adopted);
+        remove(anonymous);
+        return existing != null ? existing : adopted;
+    }
+
+    /**
+     * 按上传ID查找日志，内存中没有时从磁盘加载（服务端重启后的续传）
+     *
+     * @return 日志项，ID 格式不对、日志不存在或无法解析时返回 null
+     */
+    Entry get(String uploadId) throws IOException {
+        if (uploadId == null || !UPLOAD_ID.matcher(uploadId).matches()) {
+            return null;
+        }
+        Entry entry = entries.get(uploadId);
+        if (entry != null) {
+            return entry;
+        }
+
+        Path journalFile = journalDir.resolve(uploadId + ".journal");
+        if (!Files.isRegularFile(journalFile)) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            entry = parse(uploadId, reader);
+        }
+        if (entry == null) {
+            AsyncLog.warn("上传日志无法解析，按不存在处理: " + journalFile);
+            return null;
+        }
+        Entry existing = entries.putIfAbsent(uploadId, entry);
+        return existing != null ? existing : entry;
+    }
+
+    // 解析日志内容，头部不完整或范围超出文件大小时返回 null
+    private Entry parse(String uploadId, BufferedReader reader) throws IOException {
+        String headerLine = reader.readLine();
+        String[] header = headerLine == null ? new String[0] : headerLine.split("\t", 3);
+        if (header.length != 3) {
+            return null;
+        }
+        Entry entry;
+        try {
+            long fileSize = Long.parseLong(header[0]);
+            if (fileSize < 0) {
+                return null;
+            }
+            entry = new Entry(uploadId, header[2], fileSize, header[1], false);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] range = line.split(" ");
+                // 最后一行可能因为进程退出而不完整，直接忽略；截断的数字只会比实际记录的范围短
+                if (range.length != 2 || range[1].isEmpty()) {
+                    continue;
+                }
+                long offset = Long.parseLong(range[0]);
+                long length = Long.parseLong(range[1]);
+                if (offset < 0 || length < 0 || offset + length > fileSize) {
+                    return null;
+                }
+                entry.merge(offset, length);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 删除超过 maxAgeMillis 没有更新的日志，以及同一目录中遗留的临时文件
+     * <p>
+     * 记录范围会更新日志的修改时间，仍在进行或刚中断的上传不受影响。
+     */
+    void prune(long maxAgeMillis) {
+        if (!Files.isDirectory(journalDir)) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int pruned = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDir, "*.{journal,tmp}")) {
+            for (Path path : stream) {
+                try {
+                    if (Files.getLastModifiedTime(path).toMillis() < cutoff && Files.deleteIfExists(path)) {
+                        pruned++;
+                    }
+                } catch (IOException e) {
+                    AsyncLog.warn("删除过期的上传日志失败: " + path + " " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            AsyncLog.warn("清理上传日志失败: " + e.getMessage());
+        }
+        if (pruned > 0) {
+            AsyncLog.info("已删除 " + pruned + " 个过期的上传日志和临时文件");
+        }
+    }
+
+    /**
+     * 上传完成（或校验失败需要重来）后删除日志
+     */
+    void remove(Entry entry) {
+        entries.remove(entry.id, entry);
+        try {
+            Files.deleteIfExists(entry.journalFile);
+        } catch (IOException e) {
+            AsyncLog.warn("删除上传日志失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 单个上传的日志
+     */
+    class Entry {
+        final String id;
+        final String filePath;
+        final long fileSize;
+        final String md5;
+        final boolean created;
+        private final Path journalFile;
+        // 已接收的范围，key 为起始位置，value 为结束位置（不含），相邻范围会被合并
+        private final TreeMap<Long, Long> received = new TreeMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        Entry(String id, String filePath, long fileSize, String md5, boolean created) {
+            this.id = id;
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            this.md5 = md5;
+            this.created = created;
+            this.journalFile = journalDir.resolve(id + ".journal");
+        }
+
+        /**
+         * 记录一段已经写入文件的范围
+         */
+        void record(long offset, long length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            byte[] line = (offset + " " + length + "\n").getBytes(StandardCharsets.US_ASCII);
+            lock.lock();
+            try {
+                try {
+                    Files.write(journalFile, line, StandardOpenOption.APPEND);
+                } catch (NoSuchFileException e) {
+                    // 日志已经被删除（上传已收尾或被新的查询替换），不再重新创建
+                }
+                merge(offset, length);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return 尚未接收的范围列表，每项为 {offset, length}
+         */
+        List<long[]> missingRanges() {
+            lock.lock();
+            try {
+                List<long[]> missing = new ArrayList<>();
+                long pos = 0;
+                for (Map.Entry<Long, Long> range : received.entrySet()) {
+                    if (range.getKey() > pos) {
+                        missing.add(new long[]{pos, range.getKey() - pos});
+                    }
+                    pos = Math.max(pos, range.getValue());
+                }
+                if (pos < fileSize) {
+                    missing.add(new long[]{pos, fileSize - pos});
+                }
+                return missing;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void merge(long offset, long length) {
+            long start = offset;
+            long end = offset + length;
+
+            Map.Entry<Long, Long> floor = received.floorEntry(start);
+            if (floor != null && floor.getValue() >= start) {
+                start = floor.getKey();
+                end = Math.max(end, floor.getValue());
+            }
+            Map.Entry<Long, Long> next;
+            while ((next = received.ceilingEntry(start)) != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                received.remove(next.getKey());
+            }
+            received.put(start, end);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 按级别过滤的异步日志
+ * <p>
+ * 调用线程只把消息放入有界队列，由一个后台线程写到控制台，传输线程不再在 System.out 的同步锁上互相等待。
+ * 队列满时丢弃消息并计数，不阻塞调用方。低于当前级别的消息直接返回；DEBUG 消息通过 Supplier 传入，
+ * 关闭时连字符串拼接也省掉。DEBUG/INFO 写到 System.out，WARN/ERROR 写到 System.err。
+ * <p>
+ * 级别由系统属性 cloud.log.level 指定，默认 INFO，运行中可以通过 {@link #setLevel(Level)} 调整。
+ * 进程退出时把队列中剩余的消息写完。
+ */
+public final class AsyncLog {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int DRAIN_BATCH = 256;
+
+    private static final BlockingQueue<Record> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder DROPPED = new LongAdder();
+    // 后台线程和退出时的清空都持有这把锁写出，两者的输出不会交错
+    private static final ReentrantLock WRITE_LOCK = new ReentrantLock();
+    private static volatile Level level = parseLevel(System.getProperty("cloud.log.level"), Level.INFO);
+
+    static {
+        Thread writer = new Thread(AsyncLog::drainLoop, "async-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::flush, "async-log-flush"));
+    }
+
+    private AsyncLog() {
+    }
+
+    private static final class Record {
+        final Level level;
+        final String message;
+        final Throwable error; // 可以为 null
+
+        Record(Level level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * 解析级别名称（不区分大小写），无法识别时返回 defaultLevel
+     */
+    public static Level parseLevel(String name, Level defaultLevel) {
+        if (name == null) {
+            return defaultLevel;
+        }
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultLevel;
+        }
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * 记录调试消息，用于每个分块、每个请求这类高频事件；级别关闭时不会调用 message
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(new Record(Level.DEBUG, message.get(), null));
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(new Record(Level.INFO, message, null));
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(new Record(Level.WARN, message, null));
+        }
+    }
+
+    /**
+     * 记录错误消息，error 不为 null 时同时输出调用栈
+     */
+    public static void error(String message, Throwable error) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(new Record(Level.ERROR, message, error));
+        }
+    }
+
+    /**
+     * 因队列已满而丢弃的消息数
+     */
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    /**
+     * 把队列中已有的消息写完
+     */
+    public static void flush() {
+        List<Record> batch = new ArrayList<>();
+        WRITE_LOCK.lock();
+        try {
+            while (QUEUE.drainTo(batch, DRAIN_BATCH) > 0) {
+                writeAll(batch);
+            }
+        } finally {
+            WRITE_LOCK.unlock();
+        }
+    }
+
+    private static void enqueue(Record record) {
+        if (!QUEUE.offer(record)) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void drainLoop() {
+        List<Record> batch = new ArrayList<>(DRAIN_BATCH);
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            WRITE_LOCK.lock();
+            try {
+                QUEUE.drainTo(batch, DRAIN_BATCH - 1);
+                writeAll(batch);
+            } finally {
+                WRITE_LOCK.unlock();
+            }
+        }
+    }
+
+    private static void writeAll(List<Record> batch) {
+        for (Record record : batch) {
+            // 每次取当前的 System.out/err，调用方重定向控制台后仍然生效
+            PrintStream out = record.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            out.println(record.message);
+            if (record.error != null) {
+                record.error.printStackTrace(out);
+            }
+        }
+        batch.clear();
+    }
+}
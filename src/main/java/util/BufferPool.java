@@ -0,0 +1,243 @@
+package util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按大小分级的缓冲区池
+ * <p>
+ * 申请的大小向上取到最近的级别（4 KB、64 KB、256 KB、1 MB），用完后归还复用，稳定传输时不再分配新的缓冲区。
+ * 超过最大级别的申请直接分配、不入池。每级最多保留 maxRetainedBytesPerClass 字节的空闲缓冲区，多余的归还后丢弃。
+ * <p>
+ * 直接缓冲区用于 FileChannel/SocketChannel，避免 JDK 在每次通道读写时另外拷贝到临时的直接缓冲区；
+ * 堆缓冲区用于 InputStream/OutputStream，通过 {@link Lease#array()} 使用。
+ * <p>
+ * 泄漏检测：每个租约创建时登记到 Cleaner，租约在借出状态下被回收说明调用方没有归还，记录一次泄漏。
+ * 设置系统属性 cloud.bufferPool.trackLeaks=true 时同时记录借出位置的调用栈，便于定位。
+ */
+public class BufferPool {
+    private static final int[] SIZE_CLASSES = {4 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final boolean TRACK_LEAKS = Boolean.getBoolean("cloud.bufferPool.trackLeaks");
+
+    private final String name;
+    private final boolean direct;
+    private final SizeClass[] classes = new SizeClass[SIZE_CLASSES.length];
+
+    // 统计
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+    private final LongAdder leaked = new LongAdder();
+
+    /**
+     * @param name                     用于日志的名称
+     * @param direct                   是否使用直接缓冲区
+     * @param maxRetainedBytesPerClass 每级最多保留的空闲缓冲区字节数
+     */
+    public BufferPool(String name, boolean direct, long maxRetainedBytesPerClass) {
+        this.name = name;
+        this.direct = direct;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            classes[i] = new SizeClass(SIZE_CLASSES[i], (int) Math.max(1, maxRetainedBytesPerClass / SIZE_CLASSES[i]));
+        }
+    }
+
+    /**
+     * 借出一个容量至少为 size 的缓冲区，position 为 0，limit 为 size
+     */
+    public Lease acquire(int size) {
+        acquired.increment();
+        outstanding.increment();
+        SizeClass sizeClass = classFor(size);
+        Lease lease = sizeClass != null ? sizeClass.poll() : null;
+        if (lease == null) {
+            allocated.increment();
+            if (sizeClass == null) {
+                oversized.increment();
+            }
+            lease = new Lease(this, sizeClass, sizeClass != null ? sizeClass.size : size);
+        }
+        lease.state.inUse = true;
+        if (TRACK_LEAKS) {
+            lease.state.site = new Throwable("缓冲区借出位置");
+        }
+        lease.buffer.clear().limit(size);
+        return lease;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    /**
+     * 池中没有可用缓冲区而新分配的次数
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    public long getOversized() {
+        return oversized.sum();
+    }
+
+    public long getOutstanding() {
+        return outstanding.sum();
+    }
+
+    public long getLeaked() {
+        return leaked.sum();
+    }
+
+    /**
+     * 当前保留的空闲缓冲区总字节数
+     */
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += (long) sizeClass.size * sizeClass.retained();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        long acquiredCount = getAcquired();
+        long hitRate = acquiredCount == 0 ? 100 : (acquiredCount - getAllocated()) * 100 / acquiredCount;
+        return name + "[借出 " + acquiredCount + " 次, 命中率 " + hitRate + "%, 新分配 " + getAllocated()
+                + ", 超大 " + getOversized() + ", 使用中 " + getOutstanding() + ", 空闲 " + getRetainedBytes() / 1024
+                + " KB, 泄漏 " + getLeaked() + "]";
+    }
+
+    private SizeClass classFor(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (size <= sizeClass.size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private void release(Lease lease) {
+        if (!lease.state.inUse) {
+            throw new IllegalStateException("缓冲区重复归还");
+        }
+        lease.state.inUse = false;
+        lease.state.site = null;
+        outstanding.decrement();
+        if (lease.sizeClass != null) {
+            lease.sizeClass.offer(lease);
+        }
+    }
+
+    /**
+     * 借出的缓冲区，用 try-with-resources 保证归还；归还后不能再使用其中的缓冲区
+     */
+    public static final class Lease implements AutoCloseable {
+        private final BufferPool pool;
+        private final SizeClass sizeClass;
+        private final ByteBuffer buffer;
+        private final LeakState state;
+
+        private Lease(BufferPool pool, SizeClass sizeClass, int capacity) {
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+            this.buffer = pool.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            this.state = new LeakState(pool, capacity);
+            CLEANER.register(this, state);
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * 堆缓冲区的底层数组，长度可能大于申请的大小
+         */
+        public byte[] array() {
+            return buffer.array();
+        }
+
+        @Override
+        public void close() {
+            pool.release(this);
+        }
+    }
+
+    // 泄漏检测的状态，不能引用租约本身，否则租约永远不会被回收
+    private static final class LeakState implements Runnable {
+        private final BufferPool pool;
+        private final int capacity;
+        private volatile boolean inUse;
+        private volatile Throwable site;
+
+        LeakState(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void run() {
+            if (!inUse) {
+                return;
+            }
+            pool.leaked.increment();
+            pool.outstanding.decrement();
+            System.err.println("缓冲区泄漏: " + pool.name + " " + capacity + " 字节未归还"
+                    + (site == null ? "（设置 -Dcloud.bufferPool.trackLeaks=true 记录借出位置）" : ""));
+            if (site != null) {
+                site.printStackTrace();
+            }
+        }
+    }
+
+    private static final class SizeClass {
+        private final int size;
+        private final int maxRetained;
+        private final ArrayDeque<Lease> free = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        SizeClass(int size, int maxRetained) {
+            this.size = size;
+            this.maxRetained = maxRetained;
+        }
+
+        Lease poll() {
+            lock.lock();
+            try {
+                // 后进先出，最近用过的缓冲区更可能还在 CPU 缓存中
+                return free.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void offer(Lease lease) {
+            lock.lock();
+            try {
+                if (free.size() < maxRetained) {
+                    free.addFirst(lease);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int retained() {
+            lock.lock();
+            try {
+                return free.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
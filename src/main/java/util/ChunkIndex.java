@@ -0,0 +1,417 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内容定义分块及分块索引
+ * <p>
+ * 文件按内容切分：Gear 滚动哈希的低 16 位只取决于最近的 16 个字节，命中边界条件的位置就是分块边界。
+ * 在文件中间插入或删除数据只影响附近的分块，近似重复的文件大部分分块仍然相同。每个分块以 SHA-256 标识。
+ * <p>
+ * 索引记录每个分块在哪个已有文件的哪个位置，以及每个文件的分块清单。分块不另存一份，
+ * 云盘目录中的文件仍然是唯一的存储；索引只用于上传时判断服务端已经有哪些数据，不节省磁盘空间。
+ * 索引不会自动建立，由调用方决定哪些文件值得 {@link #index(File)} 或 {@link #register(File, List)}。
+ * 文件可能在索引之后被修改，所以读取分块时会重新校验哈希，不一致的项直接丢弃。
+ * <p>
+ * 可选地把分块清单保存到一个旁路索引文件，服务端重启后继续使用。加载时不检查文件，
+ * 清单过期由 {@link #index(File)} 的大小和修改时间比较以及读取分块时的哈希校验发现。
+ */
+public class ChunkIndex {
+    public static final int MIN_CHUNK = 16 * 1024;
+    public static final int MAX_CHUNK = 256 * 1024;
+    private static final long BOUNDARY_MASK = (1 << 16) - 1; // 平均分块约 64 KB
+    private static final int WINDOW = 16; // 指纹的低 16 位只取决于最近的 16 个字节
+    private static final int MAX_LOCATIONS = 4; // 每个分块最多记录的位置数，一个文件被覆盖后还能从其他副本读取
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // 客户端和服务端必须得到相同的边界，随机表使用固定种子
+        SplittableRandom random = new SplittableRandom(0x5EED_C0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final Map<String, List<Location>> locations = new ConcurrentHashMap<>();
+    private final Map<Path, Manifest> manifests = new ConcurrentHashMap<>();
+    private final Path indexFile;
+    private volatile boolean dirty = false;
+
+    public ChunkIndex() {
+        this(null);
+    }
+
+    /**
+     * @param indexFile 旁路索引文件，为 null 时不持久化
+     */
+    public ChunkIndex(Path indexFile) {
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * 文件中的一个分块
+     */
+    public static final class Chunk {
+        public final long offset;
+        public final int length;
+        public final String hash;
+
+        public Chunk(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    // 文件的分块清单，大小和修改时间不变时认为清单仍然有效
+    private static final class Manifest {
+        final long size;
+        final long modifiedMicros;
+        final List<Chunk> chunks;
+
+        Manifest(long size, long modifiedMicros, List<Chunk> chunks) {
+            this.size = size;
+            this.modifiedMicros = modifiedMicros;
+            this.chunks = chunks;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modifiedMicros == attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private static final class Location {
+        final Path file;
+        final long offset;
+
+        Location(Path file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * 把文件切分成分块并计算各分块的哈希
+     *
+     * @param whole 不为 null 时同时计算整个文件的摘要
+     */
+    public static List<Chunk> split(File file, MessageDigest whole) throws IOException {
+        Splitter splitter = new Splitter();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                splitter.update(buffer, 0, bytesRead);
+                if (whole != null) {
+                    whole.update(buffer, 0, bytesRead);
+                }
+            }
+        }
+        return splitter.finish();
+    }
+
+    /**
+     * 按顺序接收文件内容的分块器，边接收边切分，不需要事后再读一遍文件
+     * <p>
+     * 分块的哈希随数据增量计算，不复制数据；得到的边界与 {@link #split(File, MessageDigest)} 相同。
+     */
+    public static final class Splitter {
+        private final MessageDigest sha = newSHA256();
+        private final List<Chunk> chunks = new ArrayList<>();
+        private long offset;     // 当前分块在文件中的起始位置
+        private int length;      // 当前分块已有的字节数
+        private long fingerprint;
+
+        /**
+         * 追加紧接在已有内容之后的一段数据
+         */
+        public void update(byte[] buffer, int off, int len) {
+            int start = off; // 当前分块在 buffer 中的起点，哈希在分块结束或 update 返回时更新
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (length < MIN_CHUNK - WINDOW) {
+                    // 边界只取决于最近的 WINDOW 个字节，分块开头不可能成为边界的部分不需要计算指纹
+                    int skip = Math.min(end - i, MIN_CHUNK - WINDOW - length);
+                    i += skip;
+                    length += skip;
+                    continue;
+                }
+                long fp = fingerprint;
+                if (length < MIN_CHUNK - 1) {
+                    // 最小长度之前的几个字节只计算指纹
+                    int warm = Math.min(end, i + MIN_CHUNK - 1 - length);
+                    for (int j = i; j < warm; j++) {
+                        fp = (fp << 1) + GEAR[buffer[j] & 0xFF];
+                    }
+                    fingerprint = fp;
+                    length += warm - i;
+                    i = warm;
+                    continue;
+                }
+                int limit = Math.min(end, i + MAX_CHUNK - length);
+                int j = i;
+                boolean boundary = false;
+                while (j < limit) {
+                    fp = (fp << 1) + GEAR[buffer[j++] & 0xFF];
+                    if ((fp & BOUNDARY_MASK) == 0) {
+                        boundary = true;
+                        break;
+                    }
+                }
+                fingerprint = fp;
+                length += j - i;
+                i = j;
+                if (boundary || length == MAX_CHUNK) {
+                    sha.update(buffer, start, i - start);
+                    emit();
+                    start = i;
+                }
+            }
+            sha.update(buffer, start, end - start);
+        }
+
+        /**
+         * 结束切分，返回全部分块
+         */
+        public List<Chunk> finish() {
+            if (length > 0) {
+                emit();
+            }
+            return chunks;
+        }
+
+        private void emit() {
+            chunks.add(new Chunk(offset, length, MD5Util.toHex(sha.digest())));
+            offset += length;
+            length = 0;
+            fingerprint = 0;
+        }
+    }
+
+    /**
+     * 为文件建立分块清单；文件自上次索引后没有变化时直接返回
+     */
+    public void index(File file) {
+        Path path = normalize(file);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Manifest manifest = manifests.get(path);
+            if (manifest != null && manifest.matches(attributes)) {
+                return;
+            }
+            register(file, split(file, null));
+        } catch (NoSuchFileException e) {
+            remove(file);
+        } catch (IOException e) {
+            AsyncLog.warn("建立分块索引失败: " + file + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * 登记文件已知的分块清单，不再重新读取文件；清单的总长度与文件大小不一致时只移除旧清单
+     */
+    public void register(File file, List<Chunk> chunks) {
+        Path path = normalize(file);
+        remove(file);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return;
+        }
+        long total = chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).offset + chunks.get(chunks.size() - 1).length;
+        if (total != attributes.size()) {
+            return;
+        }
+        add(path, new Manifest(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS), chunks));
+    }
+
+    private void add(Path path, Manifest manifest) {
+        manifests.put(path, manifest);
+        dirty = true;
+        for (Chunk chunk : manifest.chunks) {
+            Location location = new Location(path, chunk.offset);
+            locations.merge(chunk.hash, List.of(location), (existing, added) -> {
+                if (existing.size() >= MAX_LOCATIONS || existing.stream().anyMatch(l -> l.file.equals(path))) {
+                    return existing;
+                }
+                List<Location> merged = new ArrayList<>(existing);
+                merged.add(location);
+                return merged;
+            });
+        }
+    }
+
+    /**
+     * 文件被修改或删除后移除它的分块清单，以及分块指向这个文件的位置
+     */
+    public void remove(File file) {
+        Path path = normalize(file);
+        Manifest manifest = manifests.remove(path);
+        if (manifest == null) {
+            return;
+        }
+        dirty = true;
+        for (Chunk chunk : manifest.chunks) {
+            locations.computeIfPresent(chunk.hash, (hash, existing) -> without(existing, path));
+        }
+    }
+
+    /**
+     * 如果索引中有这个分块，把它的内容写入 target 的指定位置
+     *
+     * @return 分块存在且内容校验通过时返回 true
+     */
+    public boolean copyChunk(String hash, int length, FileChannel target, long position) throws IOException {
+        List<Location> candidates = locations.get(hash);
+        if (candidates == null) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Location location : candidates) {
+            if (readChunk(location, hash, buffer)) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer, position + buffer.position());
+                }
+                return true;
+            }
+            // 文件在索引之后被修改或删除过
+            locations.computeIfPresent(hash, (key, existing) -> without(existing, location.file));
+        }
+        return false;
+    }
+
+    // 读取分块并校验哈希
+    private static boolean readChunk(Location location, String hash, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        try (FileChannel source = FileChannel.open(location.file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, location.offset + buffer.position()) == -1) {
+                    return false;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        MessageDigest sha = newSHA256();
+        sha.update(buffer.array(), 0, buffer.position());
+        return MD5Util.toHex(sha.digest()).equals(hash);
+    }
+
+    private static List<Location> without(List<Location> existing, Path path) {
+        List<Location> remaining = new ArrayList<>(existing.size());
+        for (Location location : existing) {
+            if (!location.file.equals(path)) {
+                remaining.add(location);
+            }
+        }
+        return remaining.isEmpty() ? null : remaining;
+    }
+
+    /**
+     * 把分块清单写入旁路索引文件（先写临时文件再原子替换）
+     * <p>
+     * 每个文件一行：大小、修改时间（微秒）、分块列表和路径，分块以“哈希:长度”表示，偏移由长度累加得到。
+     */
+    public void save() {
+        if (indexFile == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            Path parent = indexFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, "chunks", ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<Path, Manifest> e : manifests.entrySet()) {
+                    Manifest manifest = e.getValue();
+                    StringBuilder line = new StringBuilder();
+                    line.append(manifest.size).append('\t').append(manifest.modifiedMicros).append('\t');
+                    for (int i = 0; i < manifest.chunks.size(); i++) {
+                        Chunk chunk = manifest.chunks.get(i);
+                        line.append(i == 0 ? "" : ",").append(chunk.hash).append(':').append(chunk.length);
+                    }
+                    writer.write(line.append('\t').append(e.getKey()).toString());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            AsyncLog.warn("保存分块索引失败: " + e.getMessage());
+        }
+    }
+
+    // 从旁路索引文件加载分块清单
+    private void load() {
+        if (indexFile == null || !Files.isRegularFile(indexFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    continue;
+                }
+                List<Chunk> chunks = new ArrayList<>();
+                long offset = 0;
+                for (String item : fields[2].isEmpty() ? new String[0] : fields[2].split(",")) {
+                    int colon = item.indexOf(':');
+                    int length = Integer.parseInt(item.substring(colon + 1));
+                    chunks.add(new Chunk(offset, length, item.substring(0, colon)));
+                    offset += length;
+                }
+                add(Paths.get(fields[3]), new Manifest(Long.parseLong(fields[0]), Long.parseLong(fields[1]), chunks));
+            }
+            dirty = false;
+        } catch (IOException | RuntimeException e) {
+            AsyncLog.warn("加载分块索引失败: " + e.getMessage());
+            manifests.clear();
+            locations.clear();
+        }
+    }
+
+    public int chunkCount() {
+        return locations.size();
+    }
+
+    public static MessageDigest newSHA256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // 每个 Java 平台实现都必须支持 SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Path normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+}
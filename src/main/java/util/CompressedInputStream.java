@@ -0,0 +1,79 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 读取 {@link CompressedOutputStream} 写出的块
+ * <p>
+ * 每块为 byte 类型（0 原样，1 压缩）、int 原始长度、int 块数据长度和块数据。每次读入完整的一块，
+ * 调用方恰好读完发送方写入的原始字节数时，底层的流也恰好停在最后一块之后，后面的数据可以继续按原格式读取。
+ */
+public class CompressedInputStream extends InputStream {
+    private final DataInputStream in;
+    private final CompressionCodec codec;
+    private final byte[] block = new byte[CompressedOutputStream.BLOCK_SIZE];
+    private final byte[] encoded = new byte[CompressedOutputStream.BLOCK_SIZE];
+    private int position;
+    private int length;
+
+    public CompressedInputStream(DataInputStream in, CompressionCodec codec) {
+        this.in = in;
+        this.codec = codec;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == length && !readBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == length && !readBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, length - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return length - position;
+    }
+
+    // 读入下一块，底层的流已经结束时返回 false
+    private boolean readBlock() throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return false;
+        }
+        int rawLength = in.readInt();
+        int dataLength = in.readInt();
+        if (rawLength <= 0 || rawLength > block.length || dataLength <= 0 || dataLength > rawLength) {
+            throw new IOException("压缩块长度无效: " + rawLength + "/" + dataLength);
+        }
+        if (type == CompressedOutputStream.BLOCK_RAW) {
+            if (dataLength != rawLength) {
+                throw new IOException("原样块长度不一致: " + rawLength + "/" + dataLength);
+            }
+            in.readFully(block, 0, rawLength);
+        } else if (type == CompressedOutputStream.BLOCK_COMPRESSED) {
+            in.readFully(encoded, 0, dataLength);
+            codec.decompress(encoded, 0, dataLength, block, rawLength);
+        } else {
+            throw new IOException("未知的压缩块类型: " + type);
+        }
+        position = 0;
+        length = rawLength;
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 按块压缩写出的数据流，格式见 {@link CompressedInputStream}
+ * <p>
+ * 第一块总是尝试压缩，压缩后没有明显变小（随机数据、已经压缩过的文件）时之后的块直接原样发送，
+ * 每隔 PROBE_INTERVAL 块再采样一次，文件中间变成可压缩的内容时仍然能恢复压缩。
+ * {@link #finish()} 写出最后一块但不关闭也不刷新底层的流，之后可以继续在同一连接上写其他数据。
+ */
+public class CompressedOutputStream extends OutputStream {
+    public static final int BLOCK_SIZE = 64 * 1024;
+    static final byte BLOCK_RAW = 0;
+    static final byte BLOCK_COMPRESSED = 1;
+    static final int HEADER_SIZE = 9; // byte 类型 | int 原始长度 | int 块数据长度
+    private static final int PROBE_INTERVAL = 16;
+    private static final double MIN_SAVING = 0.1; // 至少减少 10% 才值得压缩
+
+    private final OutputStream out;
+    private final CompressionCodec codec;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] encoded = new byte[HEADER_SIZE + BLOCK_SIZE];
+    private int length;
+    private int blocksUntilProbe;
+    private boolean compressing = true;
+    private long rawBytes;
+    private long sentBytes;
+
+    public CompressedOutputStream(OutputStream out, CompressionCodec codec) {
+        this.out = out;
+        this.codec = codec;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[length++] = (byte) b;
+        if (length == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+            if (length == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * 写出缓冲中剩余的数据
+     */
+    public void finish() throws IOException {
+        if (length > 0) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        finish();
+        out.flush();
+    }
+
+    /**
+     * 已写入的原始字节数
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * 实际发送的字节数（含块头）
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    private void writeBlock() throws IOException {
+        int encodedLength = -1;
+        if (compressing || --blocksUntilProbe <= 0) {
+            // 压缩结果超过原始长度的 (1 - MIN_SAVING) 时放弃，说明不值得压缩
+            encodedLength = codec.compress(block, 0, length, encoded, HEADER_SIZE, (int) (length * (1 - MIN_SAVING)));
+            compressing = encodedLength >= 0;
+            if (!compressing) {
+                blocksUntilProbe = PROBE_INTERVAL;
+            }
+        }
+
+        if (encodedLength >= 0) {
+            putHeader(BLOCK_COMPRESSED, length, encodedLength);
+            out.write(encoded, 0, HEADER_SIZE + encodedLength);
+            sentBytes += HEADER_SIZE + encodedLength;
+        } else {
+            putHeader(BLOCK_RAW, length, length);
+            out.write(encoded, 0, HEADER_SIZE);
+            out.write(block, 0, length);
+            sentBytes += HEADER_SIZE + length;
+        }
+        rawBytes += length;
+        length = 0;
+    }
+
+    private void putHeader(byte type, int rawLength, int dataLength) {
+        encoded[0] = type;
+        putInt(1, rawLength);
+        putInt(5, dataLength);
+    }
+
+    private void putInt(int index, int value) {
+        encoded[index] = (byte) (value >>> 24);
+        encoded[index + 1] = (byte) (value >>> 16);
+        encoded[index + 2] = (byte) (value >>> 8);
+        encoded[index + 3] = (byte) value;
+    }
+}
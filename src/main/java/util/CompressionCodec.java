@@ -0,0 +1,77 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * 传输压缩使用的块压缩算法
+ * <p>
+ * 每个实例只在一个数据流中使用，可以保存压缩器状态，不要求线程安全。
+ * 新算法（如 LZ4）实现这个接口后在 {@link #REGISTRY} 中登记即可参与协商。
+ */
+public interface CompressionCodec extends Closeable {
+    /**
+     * 可用的算法，按优先顺序排列
+     */
+    Map<String, Supplier<CompressionCodec>> REGISTRY = registry();
+
+    String name();
+
+    /**
+     * 压缩 src 中的数据，写入 dst 的 dstOffset 处
+     *
+     * @param maxLength 压缩结果的长度上限
+     * @return 压缩后的长度；超过 maxLength 时返回 -1
+     */
+    int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int maxLength);
+
+    /**
+     * 解压 src 中的数据到 dst，解压后必须恰好是 rawLength 字节
+     *
+     * @throws IOException 数据损坏或长度不符
+     */
+    void decompress(byte[] src, int offset, int length, byte[] dst, int rawLength) throws IOException;
+
+    @Override
+    void close();
+
+    /**
+     * 从对方提供的算法列表（逗号分隔）中选出本地也支持、优先级最高的算法
+     *
+     * @return 新的算法实例；没有共同支持的算法时返回 null
+     */
+    static CompressionCodec negotiate(String offered) {
+        for (Map.Entry<String, Supplier<CompressionCodec>> entry : REGISTRY.entrySet()) {
+            for (String name : offered.split(",")) {
+                if (name.trim().equals(entry.getKey())) {
+                    return entry.getValue().get();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按名称创建算法实例，名称为空或不支持时返回 null
+     */
+    static CompressionCodec create(String name) {
+        Supplier<CompressionCodec> supplier = REGISTRY.get(name);
+        return supplier != null ? supplier.get() : null;
+    }
+
+    /**
+     * 本地支持的所有算法名称，逗号分隔，用于发起协商
+     */
+    static String supported() {
+        return String.join(",", REGISTRY.keySet());
+    }
+
+    private static Map<String, Supplier<CompressionCodec>> registry() {
+        Map<String, Supplier<CompressionCodec>> registry = new LinkedHashMap<>();
+        registry.put(DeflateCodec.NAME, DeflateCodec::new);
+        return registry;
+    }
+}
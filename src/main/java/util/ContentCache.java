@@ -0,0 +1,274 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 热点小文件的内容缓存，内容保存在直接缓冲区中，总大小有上限
+ * <p>
+ * 淘汰采用分段 LRU：新读入的文件先进入试用段，再次命中才升入保护段（占总容量的 80%）；保护段满时最久未用的
+ * 降回试用段，总量超限时先淘汰试用段中最久未用的。只访问一次的文件（例如批量遍历）不会挤掉反复下载的文件。
+ * <p>
+ * 命中时返回内容的只读视图，可以直接写入 SocketChannel，不再读盘也不经过堆内存。被淘汰的缓冲区由仍在发送的
+ * 请求引用着，发送完后随垃圾回收释放。借出前检查文件的长度和修改时间；服务端写入文件后应调用
+ * {@link #invalidate(File)}，读入期间发生过失效的内容不会放入缓存。
+ * <p>
+ * 同一文件同时未命中时只有一个请求读盘，其他请求等待它的结果。正在读入的总字节数同样不超过上限，
+ * 超出时直接返回 null 由调用方按原来的方式发送，直接内存最多占用两倍的上限。
+ */
+public class ContentCache {
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final long maxProtectedBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 都按访问顺序排列，第一个是最久未使用的
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    private long generation; // 每次失效加一，用于丢弃读入期间已经过期的内容
+    private final Map<String, Load> loading = new HashMap<>(); // 正在读入的文件
+    private long loadingBytes;
+
+    // 统计
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes      缓存内容的总字节数上限
+     * @param maxEntryBytes 单个文件的大小上限，更大的文件不缓存
+     */
+    public ContentCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+        this.maxProtectedBytes = maxBytes * PROTECTED_PERCENT / 100;
+    }
+
+    private static final class Entry {
+        final ByteBuffer content;
+        final long length;
+        final long lastModified;
+
+        Entry(ByteBuffer content, long length, long lastModified) {
+            this.content = content;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // 一次正在进行的读入，读入失败或内容不可信时结果为 null
+    private static final class Load {
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        final long length;
+        final long lastModified;
+
+        Load(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * 文件大小是否在可缓存的范围内
+     */
+    public boolean accepts(long fileSize) {
+        return fileSize <= maxEntryBytes;
+    }
+
+    /**
+     * 返回文件内容的只读视图，未缓存时读入并放入缓存
+     *
+     * @return 文件太大、正在读入的内容已达上限，或者读入期间文件被改写时返回 null
+     */
+    public ByteBuffer get(File file) throws IOException {
+        String key = file.getPath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (!accepts(length)) {
+            return null;
+        }
+
+        long loadGeneration;
+        Load load;
+        boolean owner = false;
+        lock.lock();
+        try {
+            Entry entry = lookup(key);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                hits.increment();
+                return entry.content.asReadOnlyBuffer();
+            }
+            if (entry != null) {
+                removeEntry(key);
+            }
+            load = loading.get(key);
+            if (load != null) {
+                // 其他请求正在读入同一文件；版本不同时不再另读一份
+                if (load.length != length || load.lastModified != lastModified) {
+                    return null;
+                }
+                // 不再读盘，按命中统计
+                hits.increment();
+            } else {
+                misses.increment();
+                if (loadingBytes + length > maxBytes) {
+                    return null;
+                }
+                load = new Load(length, lastModified);
+                loading.put(key, load);
+                loadingBytes += length;
+                owner = true;
+            }
+            loadGeneration = generation;
+        } finally {
+            lock.unlock();
+        }
+
+        if (!owner) {
+            ByteBuffer content = load.result.join();
+            return content != null ? content.asReadOnlyBuffer() : null;
+        }
+
+        // 在锁外读盘
+        ByteBuffer content = null;
+        try {
+            content = read(file, length, lastModified);
+        } finally {
+            lock.lock();
+            try {
+                loading.remove(key, load);
+                loadingBytes -= length;
+                if (content != null && generation == loadGeneration) {
+                    removeEntry(key);
+                    probation.put(key, new Entry(content, length, lastModified));
+                    probationBytes += length;
+                    evict();
+                }
+            } finally {
+                lock.unlock();
+            }
+            load.result.complete(content);
+        }
+        return content != null ? content.asReadOnlyBuffer() : null;
+    }
+
+    // 读入整个文件，读入期间文件被改写时返回 null
+    private static ByteBuffer read(File file, long length, long lastModified) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining() && channel.read(content, content.position()) > 0) {
+                // 读满或读到文件末尾为止
+            }
+        }
+        content.flip();
+        if (content.remaining() != length || file.length() != length || file.lastModified() != lastModified) {
+            // 这次读到的内容不可信，交给调用方按原来的方式发送
+            return null;
+        }
+        return content;
+    }
+
+    /**
+     * 去掉文件的缓存内容，正在发送的请求不受影响
+     */
+    public void invalidate(File file) {
+        lock.lock();
+        try {
+            generation++;
+            removeEntry(file.getPath());
+            // 正在进行的读入不会放入缓存，之后的请求重新读入，不再等待它
+            loading.remove(file.getPath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 查找并更新位置：保护段中的移到末尾，试用段中的升入保护段
+    private Entry lookup(String key) {
+        Entry entry = protectedSegment.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        entry = probation.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        probationBytes -= entry.length;
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.length;
+        // 保护段超出自己的份额时，最久未用的降回试用段末尾
+        Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue() == entry) {
+                break;
+            }
+            it.remove();
+            protectedBytes -= eldest.getValue().length;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().length;
+        }
+        return entry;
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.length;
+        }
+        entry = protectedSegment.remove(key);
+        if (entry != null) {
+            protectedBytes -= entry.length;
+        }
+    }
+
+    // 总量超限时先淘汰试用段，试用段为空时再淘汰保护段
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            probationBytes -= it.next().getValue().length;
+            it.remove();
+            evictions.increment();
+        }
+        it = protectedSegment.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            protectedBytes -= it.next().getValue().length;
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public long getCachedBytes() {
+        lock.lock();
+        try {
+            return probationBytes + protectedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,73 @@
+package util;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * JDK 自带的 Deflate 算法，使用最快的压缩级别：传输时压缩速度比压缩率更重要
+ */
+public class DeflateCodec implements CompressionCodec {
+    public static final String NAME = "deflate";
+
+    private Deflater deflater;
+    private Inflater inflater;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int maxLength) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        deflater.reset();
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished()) {
+            if (written == maxLength) {
+                return -1;
+            }
+            written += deflater.deflate(dst, dstOffset + written, maxLength - written);
+        }
+        return written;
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dst, int rawLength) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        try {
+            int written = 0;
+            while (written < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(dst, written, rawLength - written);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                written += inflated;
+            }
+            if (written != rawLength || !inflater.finished()) {
+                throw new IOException("压缩数据长度不符: 期望 " + rawLength + " 字节");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("压缩数据损坏: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync 式的差量计算
+ * <p>
+ * 持有旧版本的一方把文件按固定大小分块，为每块计算弱校验和（可滚动）与 MD5，作为签名发给另一方。
+ * 另一方在新版本上逐字节滑动窗口，弱校验和命中后再用 MD5 确认，得到“引用旧块”和“新数据”组成的差量。
+ * 文件中间插入或删除数据后，后面的内容仍然能按旧块引用，只有改动附近的数据需要传输。
+ */
+public final class DeltaSync {
+    // 差量流中的操作
+    public static final byte OP_END = 0;
+    public static final byte OP_LITERAL = 1; // int 长度 + 数据
+    public static final byte OP_COPY = 2; // int 起始块号 + int 连续块数
+
+    public static final int LITERAL_MAX = 64 * 1024; // 单个 OP_LITERAL 的最大长度
+    public static final int STRONG_HASH_SIZE = 16;
+    private static final int MIN_BLOCK = 2 * 1024;
+    private static final int MAX_BLOCK = 64 * 1024;
+    private static final long MAX_BLOCKS = 1 << 20; // 签名的块数上限，更大的文件加大块大小
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * 按旧文件大小选择块大小：约为大小的平方根，签名大小和匹配粒度之间的折中
+     */
+    public static int blockSizeFor(long fileSize) {
+        long blockSize = Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, (long) Math.sqrt(fileSize)));
+        blockSize = Math.max(blockSize, (fileSize + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        return (int) blockSize;
+    }
+
+    /**
+     * 计算一块数据的弱校验和（Adler-32 的变体，两个 16 位的和）
+     */
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += (length - i) * (data[offset + i] & 0xFF);
+        }
+        return (b << 16) | (a & 0xFFFF);
+    }
+
+    /**
+     * 旧文件的签名
+     */
+    public static final class Signature {
+        private final int blockSize;
+        private final byte[][] strong;
+        private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+
+        public Signature(int blockSize, int blockCount) {
+            this.blockSize = blockSize;
+            this.strong = new byte[blockCount][];
+        }
+
+        public void add(int index, int weak, byte[] strongHash) {
+            strong[index] = strongHash;
+            blocksByWeak.computeIfAbsent(weak, key -> new ArrayList<>(1)).add(index);
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        // 弱校验和命中后用 MD5 确认，返回匹配的块号，没有时返回 -1
+        private int find(int weak, byte[] data, int offset, MessageDigest md) {
+            List<Integer> candidates = blocksByWeak.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            md.update(data, offset, blockSize);
+            byte[] hash = md.digest();
+            for (int index : candidates) {
+                if (Arrays.equals(strong[index], hash)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * 接收差量计算结果
+     */
+    public interface DeltaSink {
+        void literal(byte[] data, int offset, int length) throws IOException;
+
+        void copy(int firstBlock, int blockCount) throws IOException;
+    }
+
+    /**
+     * 对照签名计算新文件的差量；连续引用的块合并为一个 copy，新数据按 LITERAL_MAX 切分
+     */
+    public static void computeDelta(InputStream in, Signature signature, DeltaSink sink) throws IOException {
+        new DeltaComputer(in, signature, sink).run();
+    }
+
+    private static final class DeltaComputer {
+        private final InputStream in;
+        private final Signature signature;
+        private final DeltaSink sink;
+        private final int blockSize;
+        private final byte[] buffer;
+        private final MessageDigest md = MD5Util.newMD5();
+        private int start; // 当前窗口的起点
+        private int end; // 缓冲区中有效数据的终点
+        private int literalStart; // 尚未发送的新数据的起点
+        private boolean eof;
+        private int copyFirst = -1;
+        private int copyCount;
+
+        DeltaComputer(InputStream in, Signature signature, DeltaSink sink) {
+            this.in = in;
+            this.signature = signature;
+            this.sink = sink;
+            this.blockSize = signature.getBlockSize();
+            this.buffer = new byte[LITERAL_MAX + 2 * blockSize + READ_SIZE];
+        }
+
+        void run() throws IOException {
+            int a = 0;
+            int b = 0;
+            boolean rolling = false;
+            while (available(blockSize)) {
+                if (!rolling) {
+                    int weak = weakChecksum(buffer, start, blockSize);
+                    a = weak & 0xFFFF;
+                    b = weak >>> 16;
+                    rolling = true;
+                }
+                int block = signature.find((b << 16) | (a & 0xFFFF), buffer, start, md);
+                if (block >= 0) {
+                    flushLiteral(start);
+                    addCopy(block);
+                    start += blockSize;
+                    literalStart = start;
+                    rolling = false;
+                    continue;
+                }
+                // 窗口后移一个字节
+                if (!available(blockSize + 1)) {
+                    break;
+                }
+                int leaving = buffer[start] & 0xFF;
+                int entering = buffer[start + blockSize] & 0xFF;
+                a = (a - leaving + entering) & 0xFFFF;
+                b = (b - blockSize * leaving + a) & 0xFFFF;
+                start++;
+                if (start - literalStart >= LITERAL_MAX) {
+                    flushLiteral(start);
+                }
+            }
+            // 已到文件末尾，剩余不足一块的数据作为新数据发送
+            flushLiteral(end);
+            flushCopy();
+        }
+
+        // 保证窗口起点后至少有 length 字节，到达文件末尾时返回 false
+        private boolean available(int length) throws IOException {
+            while (end - start < length && !eof) {
+                if (end == buffer.length) {
+                    // 已发送的数据不再需要，把未发送的部分移到缓冲区开头
+                    if (start - literalStart >= LITERAL_MAX) {
+                        flushLiteral(start);
+                    }
+                    System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+                    start -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                }
+                int bytesRead = in.read(buffer, end, buffer.length - end);
+                if (bytesRead == -1) {
+                    eof = true;
+                } else {
+                    end += bytesRead;
+                }
+            }
+            return end - start >= length;
+        }
+
+        private void flushLiteral(int until) throws IOException {
+            if (literalStart < until) {
+                flushCopy();
+            }
+            while (literalStart < until) {
+                int length = Math.min(LITERAL_MAX, until - literalStart);
+                sink.literal(buffer, literalStart, length);
+                literalStart += length;
+            }
+        }
+
+        private void addCopy(int block) throws IOException {
+            if (copyFirst >= 0 && copyFirst + copyCount == block) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = block;
+            copyCount = 1;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyFirst >= 0) {
+                sink.copy(copyFirst, copyCount);
+                copyFirst = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 文件 MD5 缓存
+ * <p>
+ * 以文件绝对路径为键，按 LRU 淘汰，最多保存 maxEntries 项。每项记录计算时文件的大小和修改时间，
+ * 查询时两者任一变化即视为失效并重新计算。可选地把缓存保存到一个旁路索引文件，服务端重启后继续使用。
+ */
+public class DigestCache {
+    private final int maxEntries;
+    private final Path indexFile;
+    private final LinkedHashMap<String, Entry> entries;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private boolean dirty = false;
+
+    /**
+     * @param maxEntries 最多缓存的文件数
+     * @param indexFile  旁路索引文件，为 null 时不持久化
+     */
+    public DigestCache(int maxEntries, Path indexFile) {
+        this.maxEntries = maxEntries;
+        this.indexFile = indexFile;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > DigestCache.this.maxEntries;
+            }
+        };
+        load();
+    }
+
+    /**
+     * 获取文件的 MD5，缓存有效时直接返回，否则读取文件计算并放入缓存
+     *
+     * @return MD5 字符串（小写十六进制）
+     * @throws IOException 文件不存在或读取失败
+     */
+    public String getMD5(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        String key = path.toString();
+        BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.matches(before)) {
+                hits.increment();
+                return entry.md5;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        misses.increment();
+        String md5 = MD5Util.calculateMD5(key);
+        if (md5 == null) {
+            throw new IOException("计算MD5失败: " + key);
+        }
+
+        // 计算期间文件被修改时不缓存，避免记录与内容不符的摘要
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        if (after.size() == before.size() && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            store(key, new Entry(after, md5));
+        }
+        return md5;
+    }
+
+    /**
+     * 记录一个已知的 MD5，例如上传校验通过后，避免第一次下载时重新计算
+     */
+    public void put(File file, String md5) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        store(path.toString(), new Entry(Files.readAttributes(path, BasicFileAttributes.class), md5));
+    }
+
+    /**
+     * 文件被修改或删除时移除缓存项
+     */
+    public void invalidate(File file) {
+        String key = file.toPath().toAbsolutePath().normalize().toString();
+        lock.lock();
+        try {
+            if (entries.remove(key) != null) {
+                dirty = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把缓存写入旁路索引文件（先写临时文件再替换）；没有配置索引文件或没有变化时什么都不做
+     */
+    public void save() {
+        if (indexFile == null) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        lock.lock();
+        try {
+            if (!dirty) {
+                return;
+            }
+            // 按 LRU 顺序写出，加载时保持相同的淘汰顺序
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                lines.add(entry.size + "\t" + entry.modifiedMicros + "\t" + entry.md5 + "\t" + e.getKey());
+            }
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            Path parent = indexFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, "digest", ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            AsyncLog.warn("保存MD5索引失败: " + e.getMessage());
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        lock.lock();
+        try {
+            entries.put(key, entry);
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 从旁路索引文件加载缓存，文件不存在或损坏时从空缓存开始
+    private void load() {
+        if (indexFile == null || !Files.isRegularFile(indexFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            AsyncLog.warn("加载MD5索引失败: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modifiedMicros;
+        private final String md5;
+
+        Entry(long size, long modifiedMicros, String md5) {
+            this.size = size;
+            this.modifiedMicros = modifiedMicros;
+            this.md5 = md5;
+        }
+
+        Entry(BasicFileAttributes attributes, String md5) {
+            this(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS), md5);
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modifiedMicros == attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 目录的内存索引
+ * <p>
+ * 启动时遍历一次根目录，记录每个文件的相对路径（以 / 分隔）和大小，按路径排序保存。之后由 WatchService
+ * 跟踪外部的修改，服务端自己的写入通过 {@link #update} 立即生效，不必等待文件系统事件。
+ * 列表请求直接按前缀和游标读取有序视图，不再遍历磁盘。
+ * <p>
+ * 索引不持久化：服务端停止期间的修改 WatchService 无法得知，启动时的遍历本来就不能省略。
+ */
+public class DirectoryIndex implements Closeable {
+    private final Path root;
+    private final ConcurrentSkipListMap<String, Long> entries = new ConcurrentSkipListMap<>();
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private WatchService watchService;
+
+    public DirectoryIndex(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * 遍历根目录建立索引，并启动后台线程监听之后的变化；WatchService 不可用时索引只跟踪服务端自己的写入
+     */
+    public void start() throws IOException {
+        Files.createDirectories(root);
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            AsyncLog.warn("目录监听不可用，索引只跟踪服务端自己的写入: " + e.getMessage());
+        }
+        scan(root, null);
+
+        if (watchService != null) {
+            Thread watcher = new Thread(this::watchLoop, "directory-index-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * 文件被写入后更新索引；文件已不存在时移除
+     */
+    public void update(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                entries.put(relativize(path), attributes.size());
+            }
+        } catch (NoSuchFileException e) {
+            entries.remove(relativize(path));
+        } catch (IOException e) {
+            AsyncLog.warn("更新目录索引失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 返回按路径排序的只读视图，遍历时能看到并发的修改但不会抛出异常
+     *
+     * @param prefix 路径前缀，空字符串表示全部
+     * @param after  游标，只返回路径大于它的项；为空字符串时从头开始
+     */
+    public NavigableMap<String, Long> view(String prefix, String after) {
+        NavigableMap<String, Long> view = prefix.isEmpty()
+                ? entries
+                : entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        return after.isEmpty() ? view : view.tailMap(after, false);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = watchedDirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        // 事件丢失，只能重新遍历
+                        rescan();
+                        continue;
+                    }
+                    Path child = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        removeTree(child);
+                    } else if (Files.isDirectory(child)) {
+                        // 新目录注册监听前已经创建的文件由遍历补上
+                        scan(child, null);
+                    } else {
+                        update(child.toFile());
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirs.remove(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // 索引已关闭
+        }
+    }
+
+    /**
+     * 遍历目录，注册监听并记录其中的文件
+     *
+     * @param seen 不为 null 时同时收集遍历到的路径
+     */
+    private void scan(Path dir, Set<String> seen) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                    if (watchService != null) {
+                        WatchKey key = subDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        watchedDirs.put(key, subDir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        String relative = relativize(file);
+                        entries.put(relative, attrs.size());
+                        if (seen != null) {
+                            seen.add(relative);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // 遍历期间被删除的文件
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            AsyncLog.warn("遍历目录失败: " + dir + " " + e.getMessage());
+        }
+    }
+
+    // 重新遍历后移除已经不存在的项；不先清空索引，遍历期间的列表请求仍然能看到完整的结果
+    private void rescan() {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        scan(root, seen);
+        entries.keySet().removeIf(path -> !seen.contains(path));
+    }
+
+    // 删除的可能是文件也可能是目录，目录下的所有项一起移除
+    private void removeTree(Path path) {
+        String relative = relativize(path);
+        entries.remove(relative);
+        entries.subMap(relative + "/", true, relative + "/" + Character.MAX_VALUE, false).clear();
+    }
+
+    private String relativize(Path path) {
+        return root.relativize(path.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -6,6 +6,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class MD5Util {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * 计算指定文件的 MD5 校验和
      * @param filePath 文件路径
@@ -19,18 +21,40 @@ public class MD5Util {
             while ((bytesRead = fis.read(buffer)) != -1) {
                 md.update(buffer, 0, bytesRead);
             }
-            byte[] digest = md.digest();
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : digest) {
-                hexString.append(String.format("%02x", b & 0xFF));
-            }
-            return hexString.toString();
+            return toHex(md.digest());
         } catch (IOException | NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * 创建一个 MD5 摘要对象，用于在收发数据的循环中边传输边计算
+     * @return MessageDigest 实例
+     */
+    public static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // 每个 Java 平台实现都必须支持 MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 把摘要转换为小写十六进制字符串
+     * @param digest 摘要字节
+     * @return 十六进制字符串
+     */
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
     /**
      * 判断两个文件内容是否相同（通过 MD5 比较）
      * @param filePath1 第一个文件路径
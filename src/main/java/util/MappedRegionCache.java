@@ -0,0 +1,269 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 文件映射区域的共享缓存
+ * <p>
+ * 文件按 regionSize 对齐切成区域，每个区域只读映射一次，同一文件上的并发范围请求共用映射，不再各自打开文件、
+ * 也不经过堆内存中转：映射缓冲区是直接缓冲区，写入 SocketChannel 时由内核从页缓存拷贝到套接字。
+ * <p>
+ * 区域按最近使用的顺序淘汰，映射总大小不超过 maxMappedBytes。每个区域带引用计数，缓存本身持有一个引用，
+ * 每个借出的 {@link Region} 各持有一个；淘汰或失效只是去掉缓存的引用，正在发送的请求归还后计数归零才解除映射。
+ * JDK 没有公开的解除映射接口，这里经 sun.misc.Unsafe#invokeCleaner 立即释放，不可用时交给垃圾回收。
+ * <p>
+ * 文件被改写后映射的内容随之变化，但文件长度变化后原来的映射可能越界，因此借出前检查文件的长度和修改时间，
+ * 不一致时重新映射；服务端自己写入文件后应调用 {@link #invalidate(File)}。
+ */
+public class MappedRegionCache {
+    public static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private final long maxMappedBytes;
+    private final int regionSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 按访问顺序排列，第一个是最久未使用的区域
+    private final LinkedHashMap<RegionKey, Region> regions = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes;
+
+    // 统计
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MappedRegionCache(long maxMappedBytes, int regionSize) {
+        this.maxMappedBytes = maxMappedBytes;
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * 借出包含 position 的区域，用完后必须调用 {@link Region#close()}
+     *
+     * @throws IOException position 超出文件末尾，或者映射失败
+     */
+    public Region acquire(File file, long position) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (position < 0 || position >= length) {
+            throw new IOException("映射位置超出文件范围: " + file + " " + position + "/" + length);
+        }
+        RegionKey key = new RegionKey(file.getPath(), position / regionSize);
+
+        List<Region> released = new ArrayList<>();
+        lock.lock();
+        try {
+            Region region = regions.get(key);
+            if (region != null && region.fileLength == length && region.lastModified == lastModified) {
+                hits.increment();
+                region.refs.incrementAndGet();
+                return region;
+            }
+            misses.increment();
+            if (region != null) {
+                // 文件已经变化，旧映射不再使用
+                remove(key, released);
+            }
+
+            long offset = key.index * regionSize;
+            int size = (int) Math.min(regionSize, length - offset);
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // 映射在通道关闭后仍然有效
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            }
+            region = new Region(offset, buffer, length, lastModified);
+            region.refs.incrementAndGet(); // 借出的引用
+            regions.put(key, region);
+            mappedBytes += size;
+            evict(region, released);
+            return region;
+        } finally {
+            lock.unlock();
+            // 解除映射放到锁外面
+            for (Region region : released) {
+                region.close();
+            }
+        }
+    }
+
+    /**
+     * 去掉文件的所有映射，正在使用的映射在归还后释放
+     */
+    public void invalidate(File file) {
+        String path = file.getPath();
+        List<Region> released = new ArrayList<>();
+        lock.lock();
+        try {
+            Iterator<Map.Entry<RegionKey, Region>> it = regions.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<RegionKey, Region> entry = it.next();
+                if (entry.getKey().path.equals(path)) {
+                    it.remove();
+                    mappedBytes -= entry.getValue().length;
+                    released.add(entry.getValue());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Region region : released) {
+            region.close();
+        }
+    }
+
+    // 淘汰最久未使用的区域直到不超过上限，刚映射的 keep 即使单独超过上限也保留到归还
+    private void evict(Region keep, List<Region> released) {
+        Iterator<Map.Entry<RegionKey, Region>> it = regions.entrySet().iterator();
+        while (mappedBytes > maxMappedBytes && it.hasNext()) {
+            Map.Entry<RegionKey, Region> entry = it.next();
+            if (entry.getValue() == keep) {
+                continue;
+            }
+            it.remove();
+            mappedBytes -= entry.getValue().length;
+            released.add(entry.getValue());
+            evictions.increment();
+        }
+    }
+
+    private void remove(RegionKey key, List<Region> released) {
+        Region region = regions.remove(key);
+        mappedBytes -= region.length;
+        released.add(region);
+    }
+
+    public long getMappedBytes() {
+        lock.lock();
+        try {
+            return mappedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 一个映射区域；同一个对象可能同时借给多个调用方，每次 acquire 对应一次 close
+     */
+    public static final class Region implements AutoCloseable {
+        private final long offset;
+        private final int length;
+        private final MappedByteBuffer buffer;
+        private final long fileLength;
+        private final long lastModified;
+        private final AtomicInteger refs = new AtomicInteger(1); // 缓存持有的引用
+
+        private Region(long offset, MappedByteBuffer buffer, long fileLength, long lastModified) {
+            this.offset = offset;
+            this.length = buffer.capacity();
+            this.buffer = buffer;
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * 区域之后第一个字节在文件中的位置
+         */
+        public long end() {
+            return offset + length;
+        }
+
+        /**
+         * 文件中 position 开始、最多 maxLength 字节且不超出本区域的内容，返回的视图与其他调用方互不影响
+         */
+        public ByteBuffer slice(long position, long maxLength) {
+            int index = (int) (position - offset);
+            int size = (int) Math.min(maxLength, length - index);
+            return buffer.slice(index, size);
+        }
+
+        /**
+         * 归还一个引用，计数归零时解除映射
+         */
+        @Override
+        public void close() {
+            if (refs.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    private static final class RegionKey {
+        final String path;
+        final long index;
+
+        RegionKey(String path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RegionKey)) {
+                return false;
+            }
+            RegionKey other = (RegionKey) o;
+            return index == other.index && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, index);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable e) {
+            // 释放失败时映射仍由垃圾回收解除
+        }
+    }
+
+    // sun.misc.Unsafe 位于 jdk.unsupported 模块，类路径上的代码可以直接访问；找不到时返回 null
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameCodecTest {
+    @Test
+    void stringRoundTrip() throws UTFDataFormatException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        FrameCodec.putString(buffer, "目录/文件.txt");
+        buffer.putLong(42);
+        buffer.flip();
+        assertEquals("目录/文件.txt", FrameCodec.getString(buffer));
+        assertEquals(42, buffer.getLong());
+    }
+
+    @Test
+    void lengthBeyondPayloadIsRejected() {
+        // 长度前缀为 100，负载中只有 3 个字节；数组后面的字节不属于这一帧
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.putShort((short) 100).put(new byte[]{'a', 'b', 'c'});
+        buffer.flip();
+        assertThrows(BufferUnderflowException.class, () -> FrameCodec.getString(buffer));
+    }
+
+    @Test
+    void sliceUsesItsOwnOffset() throws UTFDataFormatException {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        buffer.put((byte) 9);
+        FrameCodec.putString(buffer, "abc");
+        buffer.flip().position(1);
+        assertEquals("abc", FrameCodec.getString(buffer.slice()));
+    }
+
+    @Test
+    void overlongStringIsRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(70000);
+        assertThrows(UTFDataFormatException.class, () -> FrameCodec.putString(buffer, "x".repeat(65536)));
+        assertEquals(0, buffer.position());
+    }
+}
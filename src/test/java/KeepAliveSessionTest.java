@@ -0,0 +1,94 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class KeepAliveSessionTest {
+    private static final int POOL_SIZE = 2;
+    private static final int IDLE_SESSIONS = 3 * POOL_SIZE;
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig()
+                .setPort(port)
+                .setExecutorMode(ServerConfig.ExecutorMode.FIXED)
+                .setFixedPoolSize(POOL_SIZE)
+                .setDigestIndexFile("")
+                .setChunkIndexFile("");
+        Thread server = new Thread(new EasyCloudDiskServer(config)::start, "keep-alive-test-server");
+        server.setDaemon(true);
+        server.start();
+        for (int i = 0; i < 50; i++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        // 工作线程被占满时请求会一直排队，超时说明被饿死
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    // 在长连接上发送一个 STAT 请求并读取响应
+    private static void sessionStat(Socket socket, int requestId) throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF("REQ");
+        out.writeInt(requestId);
+        out.writeUTF("STAT");
+        out.writeUTF("keep-alive-test/missing");
+        out.flush();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(requestId, in.readInt());
+        assertFalse(in.readBoolean());
+    }
+
+    @Test
+    void idleSessionsDoNotStarveNewConnections() throws IOException {
+        List<Socket> sessions = new ArrayList<>();
+        try {
+            // 每个长连接完成一个请求后保持空闲，数量是工作线程数的几倍
+            for (int i = 0; i < IDLE_SESSIONS; i++) {
+                Socket socket = connect();
+                sessions.add(socket);
+                sessionStat(socket, i);
+            }
+
+            // 原有的单命令连接仍然能立即得到处理
+            try (Socket socket = connect()) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeUTF("STAT");
+                out.writeUTF("keep-alive-test/missing");
+                out.flush();
+                assertFalse(new DataInputStream(socket.getInputStream()).readBoolean());
+            }
+
+            // 空闲的长连接也没有被关闭，可以继续发送请求
+            for (int i = 0; i < sessions.size(); i++) {
+                sessionStat(sessions.get(i), 100 + i);
+            }
+        } finally {
+            for (Socket socket : sessions) {
+                socket.close();
+            }
+        }
+    }
+}
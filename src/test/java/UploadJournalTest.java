@@ -0,0 +1,116 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadJournalTest {
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    @TempDir
+    Path dir;
+
+    private static void assertMissing(UploadJournal.Entry entry, long... ranges) {
+        List<long[]> missing = entry.missingRanges();
+        assertEquals(ranges.length / 2, missing.size());
+        for (int i = 0; i < missing.size(); i++) {
+            assertArrayEquals(new long[]{ranges[2 * i], ranges[2 * i + 1]}, missing.get(i));
+        }
+    }
+
+    @Test
+    void rangesAreMerged() throws IOException {
+        UploadJournal.Entry entry = new UploadJournal(dir.toString()).open("a/b.bin", 1000, MD5);
+        assertTrue(entry.created);
+        assertMissing(entry, 0, 1000);
+
+        entry.record(100, 100);
+        entry.record(400, 100);
+        assertMissing(entry, 0, 100, 200, 200, 500, 500);
+        // 相邻和重叠的范围合并成一段
+        entry.record(200, 50);
+        entry.record(150, 300);
+        assertMissing(entry, 0, 100, 500, 500);
+        entry.record(0, 100);
+        entry.record(500, 500);
+        assertMissing(entry);
+    }
+
+    @Test
+    void reloadIgnoresTruncatedLastLine() throws IOException {
+        UploadJournal journal = new UploadJournal(dir.toString());
+        UploadJournal.Entry entry = journal.open("a/b.bin", 1000, MD5);
+        entry.record(0, 100);
+        entry.record(300, 100);
+        // 进程退出时最后一行只写了一半
+        Files.write(dir.resolve(entry.id + ".journal"), "600 ".getBytes(StandardCharsets.US_ASCII),
+                StandardOpenOption.APPEND);
+
+        UploadJournal.Entry reloaded = new UploadJournal(dir.toString()).get(entry.id);
+        assertNotNull(reloaded);
+        assertFalse(reloaded.created);
+        assertEquals("a/b.bin", reloaded.filePath);
+        assertEquals(1000, reloaded.fileSize);
+        assertEquals(MD5, reloaded.md5);
+        assertMissing(reloaded, 100, 200, 400, 600);
+    }
+
+    @Test
+    void openReturnsSameEntry() throws IOException {
+        UploadJournal journal = new UploadJournal(dir.toString());
+        UploadJournal.Entry entry = journal.open("a/b.bin", 1000, MD5);
+        assertSame(entry, journal.open("a/b.bin", 1000, MD5));
+        assertFalse(new UploadJournal(dir.toString()).open("a/b.bin", 1000, MD5).created);
+    }
+
+    @Test
+    void adoptsJournalWithoutMd5() throws IOException {
+        UploadJournal journal = new UploadJournal(dir.toString());
+        UploadJournal.Entry anonymous = journal.open("a/b.bin", 1000, "");
+        anonymous.record(0, 600);
+
+        UploadJournal.Entry adopted = new UploadJournal(dir.toString()).open("a/b.bin", 1000, MD5);
+        assertEquals(MD5, adopted.md5);
+        assertMissing(adopted, 600, 400);
+        assertFalse(Files.exists(dir.resolve(anonymous.id + ".journal")));
+    }
+
+    @Test
+    void invalidJournalsAreIgnored() throws IOException {
+        UploadJournal journal = new UploadJournal(dir.toString());
+        assertNull(journal.get("../../etc/passwd"));
+        assertNull(journal.get(null));
+        assertNull(journal.get(MD5));
+
+        Files.write(dir.resolve(MD5 + ".journal"), "not a header\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(journal.get(MD5));
+        // 范围超出文件大小
+        Files.write(dir.resolve(MD5 + ".journal"), "100\t\ta\n50 60\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(journal.get(MD5));
+    }
+
+    @Test
+    void pruneRemovesStaleFiles() throws IOException {
+        UploadJournal journal = new UploadJournal(dir.toString());
+        UploadJournal.Entry fresh = journal.open("fresh", 1000, MD5);
+        Path stale = Files.createFile(dir.resolve("stale.tmp"));
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        journal.prune(30_000);
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(dir.resolve(fresh.id + ".journal")));
+    }
+}
@@ -0,0 +1,72 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTest {
+    @Test
+    void releasedBuffersAreReused() {
+        BufferPool pool = new BufferPool("test", false, 1024 * 1024);
+        BufferPool.Lease first = pool.acquire(1000);
+        assertEquals(4 * 1024, first.buffer().capacity());
+        assertEquals(1000, first.buffer().limit());
+        first.close();
+
+        try (BufferPool.Lease second = pool.acquire(4096)) {
+            assertSame(first.buffer(), second.buffer());
+            assertEquals(0, second.buffer().position());
+            assertEquals(4096, second.buffer().limit());
+        }
+        assertEquals(2, pool.getAcquired());
+        assertEquals(1, pool.getAllocated());
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(4 * 1024, pool.getRetainedBytes());
+    }
+
+    @Test
+    void oversizedBuffersAreNotRetained() {
+        BufferPool pool = new BufferPool("test", true, 8 * 1024 * 1024);
+        try (BufferPool.Lease lease = pool.acquire(2 * 1024 * 1024)) {
+            assertTrue(lease.buffer().isDirect());
+            assertEquals(2 * 1024 * 1024, lease.buffer().capacity());
+        }
+        assertEquals(1, pool.getOversized());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    void doubleReleaseIsRejected() {
+        BufferPool pool = new BufferPool("test", false, 1024 * 1024);
+        BufferPool.Lease lease = pool.acquire(100);
+        lease.close();
+        assertThrows(IllegalStateException.class, lease::close);
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    void unreleasedLeaseIsReportedAsLeak() throws InterruptedException {
+        BufferPool pool = new BufferPool("test", false, 1024 * 1024);
+        acquireAndForget(pool);
+        try (BufferPool.Lease returned = pool.acquire(100)) {
+            assertFalse(returned.buffer().isDirect());
+        }
+        assertEquals(1, pool.getOutstanding());
+
+        // Cleaner 在租约被回收后才运行，等待几轮垃圾回收
+        for (int i = 0; i < 100 && pool.getLeaked() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeaked());
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    private static void acquireAndForget(BufferPool pool) {
+        pool.acquire(100);
+    }
+}
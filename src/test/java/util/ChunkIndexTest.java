@@ -0,0 +1,182 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static util.TestData.random;
+
+class ChunkIndexTest {
+    @TempDir
+    Path dir;
+
+    private File write(String name, byte[] data) throws IOException {
+        return Files.write(dir.resolve(name), data).toFile();
+    }
+
+    private static Set<String> hashes(List<ChunkIndex.Chunk> chunks) {
+        Set<String> hashes = new HashSet<>();
+        for (ChunkIndex.Chunk chunk : chunks) {
+            hashes.add(chunk.hash);
+        }
+        return hashes;
+    }
+
+    @Test
+    void chunksCoverFileWithinSizeLimits() throws IOException {
+        byte[] data = random(4 * 1024 * 1024 + 123, 1);
+        MessageDigest whole = MD5Util.newMD5();
+        List<ChunkIndex.Chunk> chunks = ChunkIndex.split(write("a", data), whole);
+
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            ChunkIndex.Chunk chunk = chunks.get(i);
+            assertEquals(offset, chunk.offset);
+            assertTrue(chunk.length <= ChunkIndex.MAX_CHUNK);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.length >= ChunkIndex.MIN_CHUNK);
+            }
+            offset += chunk.length;
+        }
+        assertEquals(data.length, offset);
+        assertArrayEquals(MD5Util.newMD5().digest(data), whole.digest());
+    }
+
+    @Test
+    void insertionOnlyChangesNearbyChunks() throws IOException {
+        byte[] base = random(8 * 1024 * 1024, 2);
+        int at = 3 * 1024 * 1024 + 17;
+        byte[] inserted = random(100, 3);
+        byte[] modified = new byte[base.length + inserted.length];
+        System.arraycopy(base, 0, modified, 0, at);
+        System.arraycopy(inserted, 0, modified, at, inserted.length);
+        System.arraycopy(base, at, modified, at + inserted.length, base.length - at);
+
+        List<ChunkIndex.Chunk> before = ChunkIndex.split(write("base", base), null);
+        List<ChunkIndex.Chunk> after = ChunkIndex.split(write("modified", modified), null);
+
+        // 插入点之前的边界不变，之后的边界整体后移插入的长度
+        Set<Long> shiftedBoundaries = new HashSet<>();
+        for (ChunkIndex.Chunk chunk : before) {
+            shiftedBoundaries.add(chunk.offset < at ? chunk.offset : chunk.offset + inserted.length);
+        }
+        int kept = 0;
+        for (ChunkIndex.Chunk chunk : after) {
+            if (shiftedBoundaries.contains(chunk.offset)) {
+                kept++;
+            }
+        }
+        assertTrue(kept >= after.size() - 2, "kept " + kept + "/" + after.size());
+
+        Set<String> common = hashes(before);
+        common.retainAll(hashes(after));
+        assertTrue(common.size() >= before.size() - 2, "common " + common.size() + "/" + before.size());
+    }
+
+    @Test
+    void copyChunkVerifiesContent() throws IOException {
+        byte[] data = random(512 * 1024, 4);
+        File source = write("source", data);
+        List<ChunkIndex.Chunk> chunks = ChunkIndex.split(source, null);
+        ChunkIndex index = new ChunkIndex();
+        index.register(source, chunks);
+        assertEquals(hashes(chunks).size(), index.chunkCount());
+
+        ChunkIndex.Chunk chunk = chunks.get(1);
+        Path target = dir.resolve("target");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertTrue(index.copyChunk(chunk.hash, chunk.length, channel, 0));
+        }
+        byte[] expected = new byte[chunk.length];
+        System.arraycopy(data, (int) chunk.offset, expected, 0, chunk.length);
+        assertArrayEquals(expected, Files.readAllBytes(target));
+
+        // 索引之后文件被改写，分块校验失败，不会复制错误的内容
+        write("source", random(data.length, 5));
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            assertFalse(index.copyChunk(chunk.hash, chunk.length, channel, 0));
+        }
+    }
+
+    @Test
+    void splitterMatchesSplitForAnyWriteSizes() throws IOException {
+        byte[] data = random(3 * 1024 * 1024 + 77, 7);
+        // 一段全零的数据只能在最大长度处切分
+        Arrays.fill(data, 1024 * 1024, 2 * 1024 * 1024, (byte) 0);
+        List<ChunkIndex.Chunk> expected = ChunkIndex.split(write("a", data), null);
+
+        Random sizes = new Random(8);
+        ChunkIndex.Splitter splitter = new ChunkIndex.Splitter();
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(data.length - offset, 1 + sizes.nextInt(100_000));
+            splitter.update(data, offset, length);
+            offset += length;
+        }
+        List<ChunkIndex.Chunk> actual = splitter.finish();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).offset, actual.get(i).offset);
+            assertEquals(expected.get(i).length, actual.get(i).length);
+            assertEquals(expected.get(i).hash, actual.get(i).hash);
+        }
+    }
+
+    @Test
+    void manifestsSurviveReload() throws IOException {
+        byte[] data = random(512 * 1024, 9);
+        File source = write("source", data);
+        List<ChunkIndex.Chunk> chunks = ChunkIndex.split(source, null);
+        Path indexFile = dir.resolve("index");
+        ChunkIndex index = new ChunkIndex(indexFile);
+        index.register(source, chunks);
+        index.save();
+
+        ChunkIndex reloaded = new ChunkIndex(indexFile);
+        assertEquals(index.chunkCount(), reloaded.chunkCount());
+        ChunkIndex.Chunk chunk = chunks.get(chunks.size() - 1);
+        Path target = dir.resolve("target");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertTrue(reloaded.copyChunk(chunk.hash, chunk.length, channel, 0));
+        }
+        byte[] expected = new byte[chunk.length];
+        System.arraycopy(data, (int) chunk.offset, expected, 0, chunk.length);
+        assertArrayEquals(expected, Files.readAllBytes(target));
+    }
+
+    @Test
+    void registerRejectsManifestOfOtherLength() throws IOException {
+        File source = write("source", random(256 * 1024, 10));
+        List<ChunkIndex.Chunk> chunks = ChunkIndex.split(source, null);
+        // 登记之前文件又被改写成别的长度
+        write("source", random(100 * 1024, 11));
+        ChunkIndex index = new ChunkIndex();
+        index.register(source, chunks);
+        assertEquals(0, index.chunkCount());
+    }
+
+    @Test
+    void removeDropsLocations() throws IOException {
+        File source = write("source", random(256 * 1024, 6));
+        ChunkIndex index = new ChunkIndex();
+        index.index(source);
+        assertTrue(index.chunkCount() > 0);
+        index.remove(source);
+        assertEquals(0, index.chunkCount());
+    }
+}
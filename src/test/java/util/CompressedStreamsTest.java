@@ -0,0 +1,103 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static util.TestData.random;
+
+class CompressedStreamsTest {
+    private static final int BLOCK_SIZE = CompressedOutputStream.BLOCK_SIZE;
+    private static final int HEADER_SIZE = CompressedOutputStream.HEADER_SIZE;
+
+    // 压缩写出后紧跟一个 int，检查读完原始数据后底层流恰好停在块之后
+    private static byte[] roundTrip(byte[] data, CompressedOutputStream[] written) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        try (CompressionCodec codec = new DeflateCodec()) {
+            CompressedOutputStream compressed = new CompressedOutputStream(out, codec);
+            compressed.write(data, 0, data.length);
+            compressed.finish();
+            out.writeInt(0x7E57);
+            written[0] = compressed;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        byte[] read = new byte[data.length];
+        try (CompressionCodec codec = new DeflateCodec()) {
+            CompressedInputStream compressed = new CompressedInputStream(in, codec);
+            int pos = 0;
+            while (pos < read.length) {
+                int n = compressed.read(read, pos, Math.min(1000, read.length - pos));
+                assertTrue(n > 0);
+                pos += n;
+            }
+        }
+        assertEquals(0x7E57, in.readInt());
+        assertEquals(-1, in.read());
+        return read;
+    }
+
+    @Test
+    void compressibleDataShrinks() throws IOException {
+        byte[] data = new byte[5 * BLOCK_SIZE + 321];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ("easy cloud disk ".charAt(i % 16));
+        }
+        CompressedOutputStream[] written = new CompressedOutputStream[1];
+        assertArrayEquals(data, roundTrip(data, written));
+        assertEquals(data.length, written[0].getRawBytes());
+        assertTrue(written[0].getSentBytes() < data.length / 10, "sent " + written[0].getSentBytes());
+    }
+
+    @Test
+    void incompressibleDataIsSentRaw() throws IOException {
+        byte[] data = random(40 * BLOCK_SIZE + 7, 1);
+        CompressedOutputStream[] written = new CompressedOutputStream[1];
+        assertArrayEquals(data, roundTrip(data, written));
+        // 随机数据原样发送，只多出每块的块头
+        long blocks = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        assertEquals(data.length + blocks * HEADER_SIZE, written[0].getSentBytes());
+    }
+
+    @Test
+    void compressionResumesAfterRandomPrefix() throws IOException {
+        byte[] data = random(64 * BLOCK_SIZE, 2);
+        // 后一半变成可压缩的内容，采样时会重新开始压缩
+        Arrays.fill(data, data.length / 2, data.length, (byte) 'x');
+        CompressedOutputStream[] written = new CompressedOutputStream[1];
+        assertArrayEquals(data, roundTrip(data, written));
+        assertTrue(written[0].getSentBytes() < data.length * 3 / 4, "sent " + written[0].getSentBytes());
+    }
+
+    @Test
+    void singleByteWritesAndEmptyStream() throws IOException {
+        byte[] data = {1, 2, 3};
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (CompressionCodec codec = new DeflateCodec()) {
+            CompressedOutputStream compressed = new CompressedOutputStream(buffer, codec);
+            compressed.finish();
+            assertEquals(0, buffer.size());
+            for (byte b : data) {
+                compressed.write(b);
+            }
+            compressed.finish();
+        }
+        try (CompressionCodec codec = new DeflateCodec()) {
+            CompressedInputStream in = new CompressedInputStream(
+                    new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())), codec);
+            assertEquals(1, in.read());
+            assertEquals(2, in.read());
+            assertEquals(3, in.read());
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static util.TestData.random;
+
+class ContentCacheTest {
+    @TempDir
+    Path dir;
+
+    private File write(String name, byte[] data) throws IOException {
+        return Files.write(dir.resolve(name), data).toFile();
+    }
+
+    @Test
+    void concurrentMissesReadOnce() throws Exception {
+        byte[] data = random(1024 * 1024, 1);
+        File file = write("a", data);
+        ContentCache cache = new ContentCache(8 * 1024 * 1024, 4 * 1024 * 1024);
+
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ByteBuffer>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get(file);
+                }));
+            }
+            start.countDown();
+            for (Future<ByteBuffer> result : results) {
+                assertEquals(ByteBuffer.wrap(data), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // 同时未命中的请求等待同一次读入
+        assertEquals(1, cache.getMisses());
+        assertEquals(threads - 1, cache.getHits());
+        assertEquals(data.length, cache.getCachedBytes());
+    }
+
+    @Test
+    void invalidateReloadsNewContent() throws IOException {
+        File file = write("a", random(1000, 2));
+        ContentCache cache = new ContentCache(1024 * 1024, 64 * 1024);
+        cache.get(file);
+        long lastModified = file.lastModified();
+
+        byte[] updated = random(1000, 3);
+        write("a", updated);
+        // 同样的大小和修改时间，只能靠失效通知发现内容变化
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(lastModified));
+        cache.invalidate(file);
+        assertEquals(ByteBuffer.wrap(updated), cache.get(file));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void oversizedFilesAreNotCached() throws IOException {
+        File file = write("big", new byte[128 * 1024]);
+        ContentCache cache = new ContentCache(1024 * 1024, 64 * 1024);
+        assertNull(cache.get(file));
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    void evictsBeyondLimit() throws IOException {
+        ContentCache cache = new ContentCache(100 * 1024, 64 * 1024);
+        for (int i = 0; i < 5; i++) {
+            cache.get(write("f" + i, new byte[40 * 1024]));
+        }
+        assertEquals(80 * 1024, cache.getCachedBytes());
+        assertEquals(3, cache.getEvictions());
+    }
+}
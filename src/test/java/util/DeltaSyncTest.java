@@ -0,0 +1,113 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static util.TestData.random;
+
+class DeltaSyncTest {
+    private static final int BLOCK_SIZE = 2048;
+
+    // 按差量重建新文件，同时统计引用的旧块数
+    private static final class Rebuild implements DeltaSync.DeltaSink {
+        final byte[] base;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int copiedBlocks;
+        int literalBytes;
+
+        Rebuild(byte[] base) {
+            this.base = base;
+        }
+
+        @Override
+        public void literal(byte[] data, int offset, int length) {
+            assertTrue(length <= DeltaSync.LITERAL_MAX);
+            out.write(data, offset, length);
+            literalBytes += length;
+        }
+
+        @Override
+        public void copy(int firstBlock, int blockCount) {
+            out.write(base, firstBlock * BLOCK_SIZE, blockCount * BLOCK_SIZE);
+            copiedBlocks += blockCount;
+        }
+    }
+
+    private static DeltaSync.Signature signature(byte[] base) {
+        int blockCount = base.length / BLOCK_SIZE;
+        DeltaSync.Signature signature = new DeltaSync.Signature(BLOCK_SIZE, blockCount);
+        MessageDigest md = MD5Util.newMD5();
+        for (int i = 0; i < blockCount; i++) {
+            md.update(base, i * BLOCK_SIZE, BLOCK_SIZE);
+            signature.add(i, DeltaSync.weakChecksum(base, i * BLOCK_SIZE, BLOCK_SIZE), md.digest());
+        }
+        return signature;
+    }
+
+    private static Rebuild delta(byte[] base, byte[] target) throws IOException {
+        Rebuild rebuild = new Rebuild(base);
+        DeltaSync.computeDelta(new ByteArrayInputStream(target), signature(base), rebuild);
+        assertArrayEquals(target, rebuild.out.toByteArray());
+        return rebuild;
+    }
+
+    @Test
+    void identicalFileIsAllCopies() throws IOException {
+        byte[] base = random(64 * BLOCK_SIZE, 1);
+        Rebuild rebuild = delta(base, base);
+        assertEquals(64, rebuild.copiedBlocks);
+        assertEquals(0, rebuild.literalBytes);
+    }
+
+    @Test
+    void rollingChecksumFindsBlocksAtEveryShift() throws IOException {
+        byte[] base = random(16 * BLOCK_SIZE, 2);
+        // 窗口只在起点计算一次完整的校验和，之后每个偏移都靠滚动更新才能命中
+        for (int shift : new int[]{1, 7, BLOCK_SIZE - 1, BLOCK_SIZE + 3}) {
+            byte[] target = new byte[shift + base.length];
+            System.arraycopy(random(shift, shift), 0, target, 0, shift);
+            System.arraycopy(base, 0, target, shift, base.length);
+            Rebuild rebuild = delta(base, target);
+            assertEquals(16, rebuild.copiedBlocks, "shift " + shift);
+            assertEquals(shift, rebuild.literalBytes, "shift " + shift);
+        }
+    }
+
+    @Test
+    void insertionOnlySendsNearbyData() throws IOException {
+        byte[] base = random(256 * BLOCK_SIZE + 100, 3);
+        int at = 100 * BLOCK_SIZE + 17;
+        byte[] inserted = random(300, 4);
+        byte[] target = new byte[base.length + inserted.length];
+        System.arraycopy(base, 0, target, 0, at);
+        System.arraycopy(inserted, 0, target, at, inserted.length);
+        System.arraycopy(base, at, target, at + inserted.length, base.length - at);
+
+        Rebuild rebuild = delta(base, target);
+        // 只有插入点所在的块和末尾不足一块的数据需要作为新数据发送
+        assertEquals(255, rebuild.copiedBlocks);
+        assertTrue(rebuild.literalBytes <= BLOCK_SIZE + inserted.length + 100, "literal " + rebuild.literalBytes);
+    }
+
+    @Test
+    void unrelatedDataIsAllLiterals() throws IOException {
+        byte[] base = random(32 * BLOCK_SIZE, 5);
+        byte[] target = random(200 * 1024 + 5, 6);
+        Rebuild rebuild = delta(base, target);
+        assertEquals(0, rebuild.copiedBlocks);
+        assertEquals(target.length, rebuild.literalBytes);
+    }
+
+    @Test
+    void emptyBaseAndTarget() throws IOException {
+        assertEquals(0, delta(new byte[0], new byte[0]).out.size());
+        assertEquals(10, delta(new byte[0], new byte[10]).literalBytes);
+    }
+}
@@ -0,0 +1,20 @@
+package util;
+
+import java.util.Random;
+
+/**
+ * 测试共用的数据
+ */
+final class TestData {
+    private TestData() {
+    }
+
+    /**
+     * 按种子生成的随机字节，同一种子每次得到相同的内容
+     */
+    static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}